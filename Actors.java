@@ -0,0 +1,253 @@
+import java.io.IOException; // Reading /proc/self/status can fail
+import java.lang.reflect.Method; // Thread.ofVirtual() is looked up by reflection so the build still targets 17
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch; // An actor's end, what join waits for
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor; // Queue length for the report
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Creates the threads that run the simulations' actors (producers, consumers, TA, students).
+//   --threads=platform  one OS thread per actor (the original behavior, default)
+//   --threads=virtual   one virtual thread per actor, for 10k - 100k actors. Needs a Java 21+ runtime.
+//   --threads=pool[=N]  a fixed pool of N platform threads (default 64) runs the actors, works on 17. An
+//                       actor waits in the pool's queue until a thread is free and gives it back when it
+//                       ends. Actors that only end when interrupted (TAs, producers, consumers) keep their
+//                       thread for the whole run, so the pool needs one for each of them (see requirePool)
+//                       and the ones that come and go (students) share the rest.
+// All blocking in the simulations goes through java.util.concurrent (semaphores, ReentrantLock
+// conditions, LockSupport) so a waiting virtual thread unmounts instead of pinning its carrier.
+//
+// --actor-report prints how long it took to start the actors and how much memory each one costs.
+public final class Actors {
+
+    public enum Mode {
+        PLATFORM, VIRTUAL, POOL
+    }
+
+    private static Mode mode = Mode.PLATFORM;
+    private static boolean report = false;
+    private static int poolThreads = 64; // --threads=pool[=N]
+    private static ExecutorService pool; // Made by the first start in POOL mode, its threads are daemons
+
+    // Thread.ofVirtual(), Thread.Builder.name(String) & Thread.Builder.unstarted(Runnable), or null before 21
+    private static final Method OF_VIRTUAL;
+    private static final Method BUILDER_NAME;
+    private static final Method BUILDER_UNSTARTED;
+
+    static {
+        Method ofVirtual = null;
+        Method name = null;
+        Method unstarted = null;
+        try {
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            name = builder.getMethod("name", String.class);
+            unstarted = builder.getMethod("unstarted", Runnable.class);
+        } catch (ReflectiveOperationException e) {
+            ofVirtual = null; // Runtime older than 21, only platform threads
+        }
+        OF_VIRTUAL = ofVirtual;
+        BUILDER_NAME = name;
+        BUILDER_UNSTARTED = unstarted;
+    }
+
+    private Actors() {
+    }
+
+    // Handle --threads=platform|virtual|pool[=N] and --actor-report. Returns false if the argument is not ours.
+    public static boolean configure(String arg) {
+        if (arg.startsWith("--threads=pool=")) {
+            int threads = Integer.parseInt(arg.substring("--threads=pool=".length()));
+            if (threads <= 0) {
+                throw new IllegalArgumentException("pool threads must be positive: " + threads);
+            }
+            poolThreads = threads;
+            mode = Mode.POOL;
+        } else if (arg.startsWith("--threads=")) {
+            Mode requested = Mode.valueOf(arg.substring("--threads=".length()).toUpperCase());
+            if (requested == Mode.VIRTUAL && OF_VIRTUAL == null) {
+                throw new IllegalArgumentException("virtual threads need Java 21 or newer (running "
+                        + System.getProperty("java.version") + ")");
+            }
+            mode = requested;
+        } else if (arg.equals("--actor-report")) {
+            report = true;
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    public static Mode mode() {
+        return mode;
+    }
+
+    // With --threads=pool: refuse to start a run that needs more threads at once than the pool has, for
+    // actors that keep theirs until the end. The ones left in the queue would wait for good (and so would the
+    // running ones, for them)
+    public static void requirePool(int needed, String what) {
+        if (mode == Mode.POOL && poolThreads < needed) {
+            throw new IllegalArgumentException("a pool of " + poolThreads + " threads can not run the " + needed
+                    + " " + what + " that keep their thread until the end, use --threads=pool=" + needed
+                    + " or more");
+        }
+    }
+
+    // Create and start an actor in the configured mode
+    public static Actor start(Runnable task, String name) {
+        Actor actor = new Actor(task);
+        if (mode == Mode.POOL) {
+            pool().execute(actor);
+        } else {
+            create(actor, name).start();
+        }
+        return actor;
+    }
+
+    private static Thread create(Runnable task, String name) {
+        if (mode == Mode.PLATFORM) {
+            return new Thread(task, name);
+        }
+        try {
+            Object builder = BUILDER_NAME.invoke(OF_VIRTUAL.invoke(null), name);
+            return (Thread) BUILDER_UNSTARTED.invoke(builder, task);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Could not create virtual thread " + name, e);
+        }
+    }
+
+    private static synchronized ExecutorService pool() {
+        if (pool == null) {
+            AtomicInteger made = new AtomicInteger();
+            pool = Executors.newFixedThreadPool(poolThreads, task -> {
+                Thread thread = new Thread(task, "Pool-" + made.incrementAndGet());
+                thread.setDaemon(true); // Idle between runs, they must not keep the JVM alive
+                return thread;
+            });
+        }
+        ThreadPoolExecutor executor = (ThreadPoolExecutor) pool;
+        if (executor.getMaximumPoolSize() < poolThreads) { // --threads=pool=N again with another N (tests)
+            executor.setMaximumPoolSize(poolThreads);
+            executor.setCorePoolSize(poolThreads);
+        } else if (executor.getCorePoolSize() > poolThreads) {
+            executor.setCorePoolSize(poolThreads);
+            executor.setMaximumPoolSize(poolThreads);
+        }
+        return pool;
+    }
+
+    // Handle on a started actor, to interrupt it and wait for its end the way the simulations did with its
+    // Thread. In POOL mode the pool thread is only the actor's while it runs, so an interrupt is passed on
+    // only then: one that comes before is delivered when the actor starts, and one left over when it ends is
+    // cleared, it must not hit the next actor on that thread
+    public static final class Actor implements Runnable {
+        private final Runnable task;
+        private final CountDownLatch ended = new CountDownLatch(1);
+        private Thread runner; // Thread running the task, guarded by this
+        private boolean interrupted = false;
+
+        private Actor(Runnable task) {
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                runner = Thread.currentThread();
+                if (interrupted) {
+                    runner.interrupt();
+                }
+            }
+            try {
+                task.run();
+            } finally {
+                synchronized (this) {
+                    runner = null;
+                    Thread.interrupted();
+                }
+                ended.countDown();
+            }
+        }
+
+        public synchronized void interrupt() {
+            interrupted = true;
+            if (runner != null) {
+                runner.interrupt();
+            }
+        }
+
+        public void join() throws InterruptedException {
+            ended.await();
+        }
+
+        // Wait at most millis ms for the actor to end
+        public void join(long millis) throws InterruptedException {
+            ended.await(millis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Memory & time before a batch of actors is started. Only measured when --actor-report is on
+    public static Startup beginStartup() {
+        return report ? new Startup() : null;
+    }
+
+    public static final class Startup {
+        private final long startNanos;
+        private final long heapBefore;
+        private final long rssBefore;
+
+        private Startup() {
+            heapBefore = usedHeap();
+            rssBefore = residentSetSize();
+            startNanos = System.nanoTime();
+        }
+
+        // Print the startup report for count actors started since beginStartup()
+        public void finish(int count) {
+            long elapsed = System.nanoTime() - startNanos;
+            long heap = usedHeap() - heapBefore; // Thread objects, stacks of virtual threads, actor state
+            long rss = residentSetSize() - rssBefore; // Also includes platform thread stacks (native memory)
+            StringBuilder line = new StringBuilder();
+            line.append("Started ").append(count).append(' ').append(mode.name().toLowerCase())
+                    .append(" actors in ").append(elapsed / 1_000_000).append(" ms (")
+                    .append(count == 0 ? 0 : elapsed / count / 1000).append(" us per actor), heap ")
+                    .append(count == 0 ? 0 : heap / count).append(" bytes per actor");
+            if (rssBefore >= 0) {
+                line.append(", resident ").append(count == 0 ? 0 : rss / count).append(" bytes per actor");
+            }
+            if (mode == Mode.POOL) { // Shared by the actors, per actor these drop as more are started
+                ThreadPoolExecutor executor = (ThreadPoolExecutor) pool();
+                line.append(", ").append(executor.getPoolSize()).append(" pool threads with ")
+                        .append(executor.getQueue().size()).append(" actors queued for one");
+            }
+            // Part of the heap above: the event log rings of the threads that have logged so far
+            line.append(", event log ").append(EventLog.memoryBytes() / 1024).append(" KB in ")
+                    .append(EventLog.threadBuffers()).append(" thread buffers");
+            System.out.println(line);
+        }
+    }
+
+    // Heap in use after asking for a GC so the before/after numbers are comparable
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    // Process resident set size in bytes from /proc (Linux only), -1 if not available
+    private static long residentSetSize() {
+        try {
+            for (String line : Files.readAllLines(Path.of("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            return -1;
+        }
+        return -1;
+    }
+}
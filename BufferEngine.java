@@ -0,0 +1,69 @@
+// A buffer engine is the storage + synchronization that sits between producer and consumer threads.
+// ProducerConsumer picks one engine at startup so the original semaphore version and the lock-free
+// ring can be run side by side with the same producer/consumer loops.
+public interface BufferEngine {
+
+    // Insert an item, blocking until a slot is free. Interruption is passed back to the caller so the
+    // producer loop can terminate gracefully the same way it does today.
+    void insert_item(int item) throws InterruptedException;
+
+    // Remove and return the oldest item, blocking until one is available
+    int remove_item() throws InterruptedException;
+
+    // Batch insert: claim count slots (blocking until that many are free), fill them with
+    // items[0..count) and publish them all in one go. count must not exceed capacity().
+    void insert_items(int[] items, int count) throws InterruptedException;
+
+    // Batch remove: block until at least one item is ready, then drain up to max ready items into
+    // dst. Returns how many items were removed.
+    int remove_items(int[] dst, int max) throws InterruptedException;
+
+    // Non-blocking insert: returns false right away if the buffer is full
+    boolean try_insert_item(int item);
+
+    // Non-blocking batch insert: puts all of items[0..count) in, or none of them and returns false right
+    // away if fewer than count slots are free. count must not exceed capacity().
+    boolean try_insert_items(int[] items, int count);
+
+    // Non-blocking remove: drains up to max ready items into dst, returns 0 right away if there are none
+    int try_remove_items(int[] dst, int max);
+
+    // Number of slots in the buffer
+    int capacity();
+
+    // Approximate number of items in the buffer right now, for the occupancy metric
+    int size();
+
+    // Choose what producers do while the buffer is full & consumers while it is empty (see WaitStrategy).
+    // Called before the engine is shared with producer & consumer threads
+    void useWaitStrategies(WaitStrategy producers, WaitStrategy consumers);
+
+    // Strategies in use, the engine's defaults until useWaitStrategies is called
+    WaitStrategy producerWait();
+
+    WaitStrategy consumerWait();
+
+    // True if producers/consumers must still take turns (producerTurn/consumerTurn) with this engine.
+    // The semaphore engine keeps the original one-at-a-time behavior, the ring does not need it.
+    boolean serializesTurns();
+
+    // Short name used in logs & on the command line
+    String name();
+
+    // Release whatever the engine holds outside the heap (the mapped engine's file). Called by main once
+    // the producers & consumers have stopped. Nothing to do for the in-memory engines
+    default void close() {
+    }
+
+    // Largest buffer an engine will allocate (2^30 slots)
+    int MAX_CAPACITY = 1 << 30;
+
+    // Round a requested capacity up to the next power of two so engines can wrap an index with
+    // index & (capacity - 1) instead of the slower index % capacity
+    static int slotsFor(int requested) {
+        if (requested <= 0 || requested > MAX_CAPACITY) {
+            throw new IllegalArgumentException("capacity must be between 1 and " + MAX_CAPACITY + ": " + requested);
+        }
+        return requested == 1 ? 1 : Integer.highestOneBit(requested - 1) << 1;
+    }
+}
@@ -0,0 +1,300 @@
+import java.io.BufferedOutputStream; // Buffer file output from the drain thread
+import java.io.FileNotFoundException; // Log file could not be opened
+import java.io.FileOutputStream; // --log=<file>
+import java.io.PrintStream; // Where formatted lines are written
+import java.lang.reflect.Method; // Thread.isVirtual() is looked up by reflection so the build still targets 17
+import java.util.ArrayList; // Records collected in one drain pass
+import java.util.List;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue; // Registered per-thread buffers. Cheap to add to even with
+                                                   // 100k virtual threads registering
+import java.util.concurrent.atomic.AtomicLong; // Ring cursors shared between a thread & the drain thread
+import java.util.concurrent.locks.LockSupport; // Drain thread naps between passes
+
+// Asynchronous event log for the simulations. Logging from a simulation thread only writes a fixed-size
+// record (time, event, two numbers) into that thread's own ring buffer: no lock, no string building, no
+// allocation once the thread's buffer exists. A background drain thread collects the records from every
+// buffer, orders them by time, turns them into the same text lines the simulations used to println and
+// writes them to stdout or a file.
+//
+// A thread's ring is only allocated the first time it logs something (never with --log-level=off).
+// Platform threads get --log-buffer records each, virtual threads a small ring of VIRTUAL_RECORDS
+// since there can be 100k of them: at 32 bytes a record, 1024 records each would be 3 GB. The drain
+// thread empties every ring each millisecond, so a few records per actor is plenty; if one still fills
+// up its records are dropped & counted. memoryBytes() is what the rings take right now.
+//
+// Levels: off (nothing is recorded, a log call is one field compare), info (state changes) and verbose
+// (every item/attempt too, the default so the output matches the old println output).
+public final class EventLog {
+
+    public enum Level {
+        OFF, INFO, VERBOSE
+    }
+
+    // Every message the simulations log. {t} is the logging thread's name, {a} and {b} the two numbers
+    public enum Event {
+        // ProducerConsumer
+        PRODUCED_AT(Level.VERBOSE, "{t} produced: {a} at index {b}"),
+        CONSUMED_FROM(Level.VERBOSE, "{t} consumed: {a} from index {b}"),
+        PRODUCED(Level.VERBOSE, "{t} produced: {a}"),
+        CONSUMED(Level.VERBOSE, "{t} consumed: {a}"),
+        PRODUCING(Level.INFO, "{t} is producing..."),
+        CONSUMING(Level.INFO, "{t} is consuming..."),
+        ACTOR_SLEEPING(Level.INFO, "{t} sleeping for {a} milliseconds."),
+        MAIN_TERMINATED(Level.INFO, "Main thread has terminated the application."),
+        MAIN_SHUTTING_DOWN(Level.INFO, "Main thread stopped admitting new work, draining for up to {a} ms..."),
+        // SleepingTA
+        TA_SLEEPING(Level.INFO, "{t} is sleeping..."),
+        TA_HELPING(Level.INFO, "{t} is helping Student {a}..."),
+        TA_STOLE(Level.INFO, "{t} took Student {a} from the hallway of TA-{b}"),
+        TA_FINISHED(Level.INFO, "{t} finished helping Student {a}."),
+        TA_INTERRUPTED(Level.INFO, "{t} was interrupted. Exiting..."),
+        TA_SUMMARY(Level.INFO, "{t} helped {a} students, {b} of them from other hallways"),
+        STUDENT_WORKING(Level.VERBOSE, "Student {a} is working on assignments..."),
+        STUDENT_WANTS_TA(Level.VERBOSE, "Student {a} wants to see the TA..."),
+        STUDENT_WAITING(Level.INFO, "Student {a} is waiting in the hallway with patience {b} ms"),
+        STUDENT_HELPED(Level.INFO, "Student {a} is being helped by the TA..."),
+        STUDENT_GAVE_UP(Level.INFO, "Student {a} got tired of waiting and will try again later."),
+        STUDENT_NO_CHAIR(Level.VERBOSE, "Student {a} found no available chairs and will try again later."),
+        STUDENT_SENT_HOME(Level.INFO, "Student {a} found office hours over and went home."),
+        STUDENT_INTERRUPTED(Level.INFO, "Student {a} was interrupted. Exiting..."),
+        STUDENT_CREATED(Level.INFO, "Producer created and started Student {a}"),
+        STUDENT_PRODUCER_INTERRUPTED(Level.INFO, "Producer was interrupted."),
+        STUDENTS_CREATED(Level.INFO, "Producer has created all {a} students."),
+        MAIN_STUDENTS_CREATED(Level.INFO, "All Student threads have been created."),
+        MAIN_STUDENTS_HELPED(Level.INFO, "Students helped: {a}"),
+        MAIN_INTERRUPTING(Level.INFO, "Main thread interrupting all threads..."),
+        MAIN_INTERRUPTING_STUDENTS(Level.INFO, "Main thread interrupting all student threads...");
+
+        final Level level;
+        final String template;
+
+        Event(Level level, String template) {
+            this.level = level;
+            this.template = template;
+        }
+    }
+
+    private static final int RECORD_LONGS = 4; // time, event, a, b
+    private static final int DEFAULT_RECORDS_PER_THREAD = 1024;
+    private static final int VIRTUAL_RECORDS = 16; // Ring size for a virtual thread, 512 bytes of records
+    private static final long DRAIN_INTERVAL_NANOS = 1_000_000; // Drain pass every millisecond when idle
+
+    private static volatile int level = Level.VERBOSE.ordinal(); // Events above this level are not recorded
+    private static int recordsPerThread = DEFAULT_RECORDS_PER_THREAD; // Per-thread ring size, power of two
+    private static PrintStream out = System.out; // Where the drain thread writes
+    private static final AtomicLong dropped = new AtomicLong(); // Records lost because a thread's ring was full
+    private static final AtomicLong ringBytes = new AtomicLong(); // Record arrays of the registered rings
+
+    private static final Queue<ThreadBuffer> buffers = new ConcurrentLinkedQueue<>();
+    private static final ThreadLocal<ThreadBuffer> local = ThreadLocal.withInitial(EventLog::register);
+    private static Thread drainer; // Started with the first registered buffer
+
+    private static final Method IS_VIRTUAL; // Thread.isVirtual(), or null before 21
+
+    static {
+        Method isVirtual;
+        try {
+            isVirtual = Thread.class.getMethod("isVirtual");
+        } catch (NoSuchMethodException e) {
+            isVirtual = null; // Runtime older than 21, every thread is a platform thread
+        }
+        IS_VIRTUAL = isVirtual;
+    }
+
+    private EventLog() {
+    }
+
+    // Handle a --log=stdout|<file>, --log-level=off|info|verbose or --log-buffer=N command line option.
+    // Returns false if the argument is not a log option.
+    public static boolean configure(String arg) {
+        if (arg.startsWith("--log-level=")) {
+            setLevel(Level.valueOf(arg.substring("--log-level=".length()).toUpperCase()));
+        } else if (arg.startsWith("--log-buffer=")) {
+            recordsPerThread = BufferEngine.slotsFor(Integer.parseInt(arg.substring("--log-buffer=".length())));
+        } else if (arg.startsWith("--log=")) {
+            String target = arg.substring("--log=".length());
+            if (!target.equals("stdout")) {
+                try {
+                    out = new PrintStream(new BufferedOutputStream(new FileOutputStream(target), 1 << 16), false);
+                } catch (FileNotFoundException e) {
+                    throw new IllegalArgumentException("Can not open log file " + target, e);
+                }
+            }
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    public static void setLevel(Level newLevel) {
+        level = newLevel.ordinal();
+    }
+
+    public static boolean enabled(Level eventLevel) {
+        return eventLevel.ordinal() <= level;
+    }
+
+    public static void log(Event event) {
+        log(event, 0, 0);
+    }
+
+    public static void log(Event event, long a) {
+        log(event, a, 0);
+    }
+
+    // Record one event. Never blocks: if this thread's ring is full the record is dropped and counted
+    public static void log(Event event, long a, long b) {
+        if (event.level.ordinal() > level) { // Quiet mode stops here
+            return;
+        }
+        ThreadBuffer buffer = local.get();
+        long t = buffer.tail.get();
+        if (t - buffer.head.get() >= buffer.capacity) {
+            dropped.incrementAndGet();
+            return;
+        }
+        int base = (int) (t & buffer.mask) * RECORD_LONGS;
+        long[] data = buffer.data;
+        data[base] = System.nanoTime();
+        data[base + 1] = event.ordinal();
+        data[base + 2] = a;
+        data[base + 3] = b;
+        buffer.tail.lazySet(t + 1); // Publish the record to the drain thread
+    }
+
+    // Bytes held by the record arrays of every thread ring that is still registered
+    public static long memoryBytes() {
+        return ringBytes.get();
+    }
+
+    public static int threadBuffers() {
+        return buffers.size();
+    }
+
+    // Write out everything logged so far. Called at the end of a run and from the shutdown hook
+    public static synchronized void flush() {
+        drain();
+    }
+
+    // One thread's ring of records. Written only by its owner, read only by the drain thread
+    private static final class ThreadBuffer {
+        final Thread owner = Thread.currentThread();
+        final String name = owner.getName(); // Threads are named before they start so this is stable
+        final int capacity = isVirtual(owner) ? Math.min(recordsPerThread, VIRTUAL_RECORDS) : recordsPerThread;
+        final int mask = capacity - 1;
+        final long[] data = new long[capacity * RECORD_LONGS];
+        final AtomicLong tail = new AtomicLong(); // Next record the owner writes
+        final AtomicLong head = new AtomicLong(); // Next record the drain thread reads
+    }
+
+    private static boolean isVirtual(Thread thread) {
+        if (IS_VIRTUAL == null) {
+            return false;
+        }
+        try {
+            return (Boolean) IS_VIRTUAL.invoke(thread);
+        } catch (ReflectiveOperationException e) {
+            return false;
+        }
+    }
+
+    private static ThreadBuffer register() {
+        ThreadBuffer buffer = new ThreadBuffer();
+        ringBytes.addAndGet((long) buffer.data.length * Long.BYTES);
+        buffers.add(buffer);
+        startDrainer();
+        return buffer;
+    }
+
+    private static synchronized void startDrainer() {
+        if (drainer != null) {
+            return;
+        }
+        drainer = new Thread(() -> {
+            while (true) {
+                flush();
+                LockSupport.parkNanos(DRAIN_INTERVAL_NANOS);
+            }
+        }, "EventLog-drain");
+        drainer.setDaemon(true); // Must not keep the JVM alive
+        drainer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(EventLog::flush, "EventLog-flush"));
+    }
+
+    // A record copied out of a thread buffer, ready to be sorted & formatted
+    private static final class Record {
+        final long time;
+        final String thread;
+        final Event event;
+        final long a;
+        final long b;
+
+        Record(long time, String thread, Event event, long a, long b) {
+            this.time = time;
+            this.thread = thread;
+            this.event = event;
+            this.a = a;
+            this.b = b;
+        }
+    }
+
+    // Copy every published record out of every buffer, sort by time and write them. Caller holds the lock
+    private static void drain() {
+        List<Record> records = new ArrayList<>();
+        Event[] events = Event.values();
+        for (Iterator<ThreadBuffer> it = buffers.iterator(); it.hasNext();) {
+            ThreadBuffer buffer = it.next();
+            long h = buffer.head.get();
+            long t = buffer.tail.get();
+            for (; h < t; h++) {
+                int base = (int) (h & buffer.mask) * RECORD_LONGS;
+                long[] data = buffer.data;
+                records.add(new Record(data[base], buffer.name, events[(int) data[base + 1]],
+                        data[base + 2], data[base + 3]));
+            }
+            buffer.head.lazySet(h); // Give the slots back to the owner
+            if (h == buffer.tail.get() && !buffer.owner.isAlive()) { // Nothing left & nobody will write again
+                it.remove();
+                ringBytes.addAndGet(-(long) buffer.data.length * Long.BYTES);
+            }
+        }
+        long lost = dropped.getAndSet(0);
+        if (records.isEmpty() && lost == 0) {
+            return;
+        }
+        records.sort((x, y) -> Long.compare(x.time, y.time)); // Interleave threads in the order things happened
+        StringBuilder line = new StringBuilder(128);
+        for (Record record : records) {
+            line.setLength(0);
+            format(line, record);
+            out.println(line);
+        }
+        if (lost > 0) {
+            out.println("EventLog dropped " + lost + " events (per-thread buffer full, raise --log-buffer)");
+        }
+        out.flush();
+    }
+
+    // Expand the event's template: {t} thread name, {a} & {b} the numbers
+    private static void format(StringBuilder line, Record record) {
+        String template = record.event.template;
+        for (int i = 0; i < template.length(); i++) {
+            char c = template.charAt(i);
+            if (c == '{' && i + 2 < template.length() && template.charAt(i + 2) == '}') {
+                char field = template.charAt(i + 1);
+                if (field == 't') {
+                    line.append(record.thread);
+                } else if (field == 'a') {
+                    line.append(record.a);
+                } else {
+                    line.append(record.b);
+                }
+                i += 2;
+            } else {
+                line.append(c);
+            }
+        }
+    }
+}
@@ -0,0 +1,79 @@
+import java.util.Arrays; // Sorting waits for percentiles
+
+// How the waiting room treated each student in one SleepingTA run, split by priority class (see
+// WaitingRoom). A student's wait is the time they spent in chairs over all their visits until a TA helped
+// them, in simulated milliseconds. Fairness is Jain's index over those waits: 1 when everyone waited the
+// same, 1/n when one student did all the waiting.
+public final class FairnessReport {
+
+    private final int[] priorityClass; // Per student id 1..n
+    private final double[] waitMillis;
+    private final int[] gaveUp;
+
+    FairnessReport(int n) {
+        priorityClass = new int[n + 1];
+        waitMillis = new double[n + 1];
+        gaveUp = new int[n + 1];
+    }
+
+    void student(int id, int priority, double waitedMillis, int gaveUpCount) {
+        priorityClass[id] = priority;
+        waitMillis[id] = waitedMillis;
+        gaveUp[id] = gaveUpCount;
+    }
+
+    // Jain's fairness index over every student's wait
+    double fairness() {
+        double sum = 0;
+        double squares = 0;
+        int n = waitMillis.length - 1;
+        for (int id = 1; id <= n; id++) {
+            sum += waitMillis[id];
+            squares += waitMillis[id] * waitMillis[id];
+        }
+        return squares == 0 ? 1 : sum * sum / (n * squares);
+    }
+
+    // Summary of one priority class (or every student for -1): students, mean, p50, p99 & max wait in ms,
+    // give-ups per student
+    double[] summary(int priority) {
+        int n = waitMillis.length - 1;
+        double[] waits = new double[n];
+        int count = 0;
+        long giveUps = 0;
+        double sum = 0;
+        for (int id = 1; id <= n; id++) {
+            if (priority < 0 || priorityClass[id] == priority) {
+                waits[count++] = waitMillis[id];
+                sum += waitMillis[id];
+                giveUps += gaveUp[id];
+            }
+        }
+        if (count == 0) {
+            return new double[6];
+        }
+        Arrays.sort(waits, 0, count);
+        return new double[] { count, sum / count, percentile(waits, count, 0.50), percentile(waits, count, 0.99),
+                waits[count - 1], (double) giveUps / count };
+    }
+
+    private static double percentile(double[] sorted, int count, double p) {
+        return sorted[Math.min(count - 1, (int) Math.ceil(p * count) - 1)];
+    }
+
+    private static final String[] GROUPS = { "all", "normal", "urgent" };
+
+    // One row per priority class, plus the fairness index
+    void print(String title) {
+        System.out.printf("%s  (fairness %.3f)%n", title, fairness());
+        System.out.printf("  %-7s %9s %10s %10s %10s %10s %10s%n", "class", "students", "mean ms", "p50 ms",
+                "p99 ms", "max ms", "give-ups");
+        for (int group = 0; group < GROUPS.length; group++) {
+            double[] s = summary(group - 1);
+            if (s[0] > 0) {
+                System.out.printf("  %-7s %9.0f %10.1f %10.1f %10.1f %10.1f %10.2f%n", GROUPS[group], s[0], s[1],
+                        s[2], s[3], s[4], s[5]);
+            }
+        }
+    }
+}
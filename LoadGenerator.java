@@ -0,0 +1,175 @@
+import java.io.FileWriter; // --csv=<file>
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays; // Sorting waits for percentiles
+import java.util.Locale;
+import java.util.Random;
+
+// Load sweep for the Sleeping TA: the same TAs & chairs are fed open-loop arrivals (see Workload) at a
+// range of load levels, and each level reports throughput, how many students went home unhelped and the
+// chair wait percentiles of the ones who were helped. Where throughput stops growing & rejections take off
+// is the saturation point of that TA & chair configuration.
+//   java LoadGenerator [--tas=M] [--chairs=N | --chairs-per-ta=N] [--students=N] [--sweep=from:to:step]
+//                      [--arrivals=poisson|bursty|trace:<csv>] [--burst=B] [--help-time=D] [--work-time=D]
+//                      [--patience=D] [--retries=R] [--seed=S] [--room=...] [--csv=<file>]
+// A load level is the offered load: arrival rate x mean help time / TAs, so 1.0 brings exactly as much
+// work as the TAs can do. Every level runs --students arrivals through the event-driven simulation
+// (SleepingTASimulator, same rules as the threaded one), so a whole sweep takes well under a second.
+public class LoadGenerator {
+
+    private static final double REJECT_LIMIT = 0.05; // Share of rejected students that counts as saturated
+
+    // Nearest-rank percentile of sorted values
+    private static long percentile(long[] sorted, double p) {
+        return sorted.length == 0 ? 0 : sorted[Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1)];
+    }
+
+    public static void main(String[] args) {
+        int students = 2000;
+        int chairCount = 3;
+        int tas = 1;
+        boolean chairsPerTa = false;
+        long seed = new Random().nextLong();
+        double from = 0.2;
+        double to = 2.0;
+        double step = 0.2;
+        String csvFile = null;
+        Workload.Trace trace = null;
+        try {
+            for (String arg : args) {
+                if (arg.startsWith("--students=")) {
+                    students = Integer.parseInt(arg.substring("--students=".length()));
+                } else if (arg.startsWith("--chairs=")) {
+                    chairCount = Integer.parseInt(arg.substring("--chairs=".length()));
+                    chairsPerTa = false;
+                } else if (arg.startsWith("--chairs-per-ta=")) {
+                    chairCount = Integer.parseInt(arg.substring("--chairs-per-ta=".length()));
+                    chairsPerTa = true;
+                } else if (arg.startsWith("--tas=")) {
+                    tas = Integer.parseInt(arg.substring("--tas=".length()));
+                } else if (arg.startsWith("--seed=")) {
+                    seed = Long.parseLong(arg.substring("--seed=".length()));
+                } else if (arg.startsWith("--sweep=")) {
+                    String[] range = arg.substring("--sweep=".length()).split(":");
+                    if (range.length != 3) {
+                        throw new IllegalArgumentException("sweep must be from:to:step, not " + arg);
+                    }
+                    from = Double.parseDouble(range[0]);
+                    to = Double.parseDouble(range[1]);
+                    step = Double.parseDouble(range[2]);
+                    if (!(from > 0 && to >= from && step > 0)) {
+                        throw new IllegalArgumentException("sweep needs 0 < from <= to and step > 0: " + arg);
+                    }
+                } else if (arg.startsWith("--csv=")) {
+                    csvFile = arg.substring("--csv=".length());
+                } else if (!Workload.configure(arg) && !WaitingRoom.configure(arg)) { // Arrivals, times & --room
+                    System.out.println("Usage: java LoadGenerator [--tas=M] [--chairs=N | --chairs-per-ta=N]"
+                            + " [--students=N] [--sweep=from:to:step] [--arrivals=poisson|bursty|trace:<csv>]"
+                            + " [--burst=B] [--help-time=D] [--work-time=D] [--patience=D] [--retries=R] [--seed=S]"
+                            + " [--room=fifo|priority|aging] [--urgent=X] [--aging=ms] [--csv=<file>]"
+                            + " (D: fixed:MS, uniform:LO:HI, exp:MEAN or lognormal:MEAN:CV)");
+                    System.exit(1);
+                }
+            }
+            if (Workload.arrivals == Workload.Arrivals.TRACE) {
+                trace = Workload.Trace.read(Workload.traceFile);
+            }
+        } catch (IllegalArgumentException e) { // Bad number, distribution or trace file
+            System.out.println("Invalid option value: " + e.getMessage());
+            System.exit(1);
+        }
+        if (students <= 0 || chairCount <= 0 || tas <= 0) {
+            System.out.println("Students, chairs and TAs must be positive integers.");
+            System.exit(1);
+        }
+
+        double meanHelp = Workload.helpTime.mean();
+        String helpName = Workload.helpTime.toString();
+        if (trace != null) { // The trace decides the students & their help times where it has them
+            long given = 0;
+            long sum = 0;
+            for (int help : trace.help) {
+                if (help >= 0) {
+                    given++;
+                    sum += help;
+                }
+            }
+            meanHelp = (sum + (trace.size() - given) * meanHelp) / trace.size();
+            if (given > 0) {
+                helpName = String.format("from the trace (mean %.0f ms)", meanHelp);
+            }
+            students = trace.size();
+        }
+        double capacity = tas * 3_600_000 / meanHelp; // Students per hour the TAs can help at most
+        System.out.printf("Load sweep: %d TA%s, %d %s, %s arrivals%s, help %s, patience %s, %d retr%s (work %s),"
+                + " %d students per level, seed %d%n", tas, tas == 1 ? "" : "s", chairCount,
+                chairsPerTa ? "chairs per TA" : "chairs", trace != null ? "trace " + Workload.traceFile
+                : Workload.arrivals.name().toLowerCase(), Workload.arrivals == Workload.Arrivals.BURSTY
+                ? " (bursts of " + Workload.burstSize + ")" : "", helpName, Workload.patience,
+                Workload.retries, Workload.retries == 1 ? "y" : "ies", Workload.workTime, students, seed);
+        System.out.printf("TA capacity %.0f students/h%n", capacity);
+        System.out.printf("%6s %11s %10s %8s %9s %9s %8s %9s %9s %9s%n", "load", "arrivals/h", "helped/h", "TA util",
+                "rejected", "no chair", "gave up", "wait p50", "wait p90", "wait p99");
+
+        PrintWriter csv = null;
+        if (csvFile != null) {
+            try {
+                csv = new PrintWriter(new FileWriter(csvFile));
+                csv.println("load,arrivals_per_hour,helped_per_hour,ta_utilization,rejected,no_chair,gave_up,"
+                        + "wait_p50_ms,wait_p90_ms,wait_p99_ms");
+            } catch (IOException e) {
+                System.out.println("Invalid option value: can not write " + csvFile + ": " + e.getMessage());
+                System.exit(1);
+            }
+        }
+
+        double peak = 0; // Highest throughput & the load it was reached at
+        double peakLoad = 0;
+        double saturatedAt = -1; // First load with more than REJECT_LIMIT rejected
+        int levels = (int) Math.floor((to - from) / step + 1e-9) + 1;
+        for (int level = 0; level < levels; level++) {
+            double load = from + level * step;
+            double rate = load * tas / meanHelp * 1000; // Arrivals per second
+            Workload workload = trace != null ? Workload.fromTrace(trace, rate / trace.ratePerSecond(), seed)
+                    : Workload.generate(students, rate, seed);
+            SleepingTASimulator simulator = new SleepingTASimulator(workload, tas, chairCount, chairsPerTa, seed);
+            TaStatistics stats = simulator.run();
+            double hours = Math.max(1, simulator.endTime()) / 3_600_000.0;
+            double helpedPerHour = stats.helped / hours;
+            double rejected = (double) simulator.wentHome() / workload.n;
+            double noChair = (double) simulator.turnedAway() / workload.n;
+            long[] waits = simulator.helpedWaits();
+            Arrays.sort(waits);
+            System.out.printf("%6.2f %11.0f %10.0f %7.1f%% %8.1f%% %8.1f%% %7.1f%% %6d ms %6d ms %6d ms%n", load,
+                    rate * 3600, helpedPerHour, stats.utilization() * 100, rejected * 100, noChair * 100,
+                    (rejected - noChair) * 100, percentile(waits, 0.50), percentile(waits, 0.90),
+                    percentile(waits, 0.99));
+            if (csv != null) {
+                csv.println(String.format(Locale.ROOT, "%.3f,%.1f,%.1f,%.4f,%.4f,%.4f,%.4f,%d,%d,%d", load,
+                        rate * 3600, helpedPerHour, stats.utilization(), rejected, noChair, rejected - noChair,
+                        percentile(waits, 0.50), percentile(waits, 0.90), percentile(waits, 0.99)));
+            }
+            if (helpedPerHour > peak) {
+                peak = helpedPerHour;
+                peakLoad = load;
+            }
+            if (saturatedAt < 0 && rejected > REJECT_LIMIT) {
+                saturatedAt = load;
+            }
+        }
+        if (csv != null) {
+            csv.close();
+            System.out.println("Wrote " + csvFile);
+        }
+
+        System.out.printf("Peak throughput %.0f students/h (%.1f%% of capacity) at load %.2f%n", peak,
+                peak * 100 / capacity, peakLoad);
+        if (saturatedAt < 0) {
+            System.out.printf("Not saturated: at most %.0f%% of students went home unhelped at every level%n",
+                    REJECT_LIMIT * 100);
+        } else {
+            System.out.printf("Saturated from load %.2f (%.0f arrivals/h): more than %.0f%% of students went home"
+                    + " unhelped%n", saturatedAt, saturatedAt * capacity, REJECT_LIMIT * 100);
+        }
+    }
+}
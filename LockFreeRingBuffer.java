@@ -0,0 +1,143 @@
+// Lock-free multi-producer/multi-consumer ring buffer of ints, the --engine=ring BufferEngine. The slot
+// bookkeeping (per-slot sequence numbers, padded head & tail, back-off) is in RingSequencer, shared with
+// the long & object rings; this class only stores the int values and logs/measures like the other engine.
+public class LockFreeRingBuffer extends RingSequencer implements BufferEngine {
+
+    private final int[] items; // Slot values
+
+    // Time spent waiting for a free slot / a published item, see Metrics
+    private final Metrics.Histogram blockedEmpty = Metrics.histogram("buffer.blocked_empty");
+    private final Metrics.Histogram blockedFull = Metrics.histogram("buffer.blocked_full");
+
+    public LockFreeRingBuffer(int capacity) {
+        super(capacity);
+        items = new int[size];
+    }
+
+    // Try to insert without blocking. Returns false if the buffer is full.
+    @Override
+    public boolean try_insert_item(int item) {
+        long pos = tryClaim();
+        if (pos == NONE) {
+            return false;
+        }
+        items[index(pos)] = item;
+        publish(pos); // Ordered after the item write
+        EventLog.log(EventLog.Event.PRODUCED, item);
+        return true;
+    }
+
+    @Override
+    public void insert_item(int item) throws InterruptedException {
+        long start = Metrics.now();
+        long pos = claim(); // Buffer full: back off until a consumer frees a slot
+        blockedEmpty.recordSince(start);
+        items[index(pos)] = item;
+        publish(pos);
+        EventLog.log(EventLog.Event.PRODUCED, item);
+    }
+
+    @Override
+    public int remove_item() throws InterruptedException {
+        long start = Metrics.now();
+        long pos = take(); // Buffer empty: back off until a producer publishes
+        blockedFull.recordSince(start);
+        int item = items[index(pos)];
+        release(pos);
+        EventLog.log(EventLog.Event.CONSUMED, item);
+        return item;
+    }
+
+    @Override
+    public void insert_items(int[] batch, int count) throws InterruptedException {
+        if (count <= 0) {
+            return;
+        }
+        long start = Metrics.now();
+        long first = claim(count); // Reserve count consecutive positions with one CAS
+        blockedEmpty.recordSince(start);
+        fill(first, batch, count);
+    }
+
+    // Non-blocking batch insert: all count items go in with one claim, or none if there is not room for all
+    // of them right now (SocketBuffer serves inserts from other processes with this)
+    @Override
+    public boolean try_insert_items(int[] batch, int count) {
+        if (count <= 0) {
+            return true;
+        }
+        long first = tryClaim(count);
+        if (first == NONE) {
+            return false;
+        }
+        fill(first, batch, count);
+        return true;
+    }
+
+    private void fill(long first, int[] batch, int count) {
+        boolean interrupted = false;
+        for (int i = 0; i < count; i++) { // Fill and publish them in order
+            long pos = first + i;
+            interrupted |= awaitFree(pos); // A consumer that already claimed this slot's old item may not be done
+            items[index(pos)] = batch[i];
+            publishQuietly(pos); // Publish the slot to consumers
+        }
+        consumerWait.signal(); // Wake blocked consumers once for the batch
+        for (int i = 0; i < count; i++) {
+            EventLog.log(EventLog.Event.PRODUCED, batch[i]);
+        }
+        if (interrupted) { // The batch is in, now stop
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public int remove_items(int[] dst, int max) throws InterruptedException {
+        if (max <= 0) {
+            return 0;
+        }
+        long start = Metrics.now();
+        int tries = 0;
+        int count;
+        while ((count = try_remove_items(dst, max)) == 0) { // Buffer empty, wait until a producer publishes
+            tries = consumerWait.idle(tries);
+        }
+        consumerWait.done(tries);
+        blockedFull.recordSince(start);
+        return count;
+    }
+
+    @Override
+    public int try_remove_items(int[] dst, int max) {
+        while (max > 0) {
+            long pos = headPosition();
+            int ready = readyFrom(pos, max); // Published slots in a row starting at head
+            if (ready == 0) {
+                if (headPosition() == pos) { // Really empty, not just a stale head
+                    return 0;
+                }
+            } else if (takeRun(pos, ready)) { // Claim all of them with one CAS
+                for (int i = 0; i < ready; i++) {
+                    dst[i] = items[index(pos + i)];
+                    releaseQuietly(pos + i); // Hand the slot to the next lap's producer
+                }
+                producerWait.signal(); // Wake blocked producers once for the batch
+                for (int i = 0; i < ready; i++) {
+                    EventLog.log(EventLog.Event.CONSUMED, dst[i]);
+                }
+                return ready;
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public boolean serializesTurns() {
+        return false; // Any number of producers and consumers can work at once
+    }
+
+    @Override
+    public String name() {
+        return "ring";
+    }
+}
@@ -0,0 +1,93 @@
+// Lock-free multi-producer/multi-consumer ring buffer of longs. Same operations as the int BufferEngine
+// but carrying 64-bit values (timestamps, ids, packed fields) in a long[], so nothing is ever boxed.
+// It is a plain instance: a process can have as many independent buffers as it needs.
+public class LongRingBuffer extends RingSequencer {
+
+    private final long[] items; // Slot values
+
+    // capacity is rounded up to a power of two
+    public LongRingBuffer(int capacity) {
+        super(capacity);
+        items = new long[size];
+    }
+
+    // Insert without blocking. Returns false if the buffer is full.
+    public boolean try_insert_item(long item) {
+        long pos = tryClaim();
+        if (pos == NONE) {
+            return false;
+        }
+        items[index(pos)] = item;
+        publish(pos);
+        return true;
+    }
+
+    // Insert, backing off until a slot is free
+    public void insert_item(long item) throws InterruptedException {
+        long pos = claim();
+        items[index(pos)] = item;
+        publish(pos);
+    }
+
+    // Remove the oldest item, backing off until one is available
+    public long remove_item() throws InterruptedException {
+        long pos = take();
+        long item = items[index(pos)];
+        release(pos);
+        return item;
+    }
+
+    // Claim count slots with one CAS (waiting until that many are free) and publish items[0..count)
+    public void insert_items(long[] batch, int count) throws InterruptedException {
+        if (count <= 0) {
+            return;
+        }
+        long first = claim(count);
+        boolean interrupted = false;
+        for (int i = 0; i < count; i++) {
+            long pos = first + i;
+            interrupted |= awaitFree(pos);
+            items[index(pos)] = batch[i];
+            publishQuietly(pos);
+        }
+        consumerWait.signal();
+        if (interrupted) { // Published, now stop
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Wait for at least one item, then drain up to max ready items into dst. Returns how many
+    public int remove_items(long[] dst, int max) throws InterruptedException {
+        if (max <= 0) {
+            return 0;
+        }
+        int tries = 0;
+        int count;
+        while ((count = try_remove_items(dst, max)) == 0) {
+            tries = consumerWait.idle(tries);
+        }
+        consumerWait.done(tries);
+        return count;
+    }
+
+    // Drain up to max ready items into dst without waiting. Returns 0 right away if there are none
+    public int try_remove_items(long[] dst, int max) {
+        while (max > 0) {
+            long pos = headPosition();
+            int ready = readyFrom(pos, max);
+            if (ready == 0) {
+                if (headPosition() == pos) { // Really empty, not just a stale head
+                    return 0;
+                }
+            } else if (takeRun(pos, ready)) {
+                for (int i = 0; i < ready; i++) {
+                    dst[i] = items[index(pos + i)];
+                    releaseQuietly(pos + i);
+                }
+                producerWait.signal();
+                return ready;
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,630 @@
+import java.io.IOException;
+import java.lang.invoke.MethodHandles; // Atomic access to longs inside the mapped file
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer; // The ring lives in the page cache, no copying or serializing
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock; // One process uses a ring file, or several that all attach it shared
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.LockSupport; // The timed flusher parks between flushes
+
+// Persistent version of the lock-free ring, the --engine=mapped BufferEngine. It runs the same per-slot
+// sequence protocol as RingSequencer, but the sequences, the head (out) & tail (in) cursors and the items
+// are all kept in a file mapped into memory with NIO, so whatever is still queued when the program is
+// stopped or crashes is there again on the next run. Items are written straight into the mapping: a
+// process crash loses nothing because the pages belong to the OS page cache, the flush policy only decides
+// how much can be lost if the machine itself goes down.
+//   --ring-file=<path>          file holding the ring (default buffer.ring), created if it does not exist
+//   --fsync=batch|timed|none    flush after every batch, every --fsync-interval ms (default), or never
+//   --fsync-interval=ms         time between flushes for --fsync=timed (default 100)
+//
+// Normally one process owns the file. Producer & consumer processes (ProducerConsumer --role) attach it
+// shared instead: every slot, sequence & cursor is already CASed or written with release/acquire in the
+// mapping, which works the same between processes as between threads since they all map the same pages.
+// Two byte-range locks in the header keep the owners apart:
+//   OPEN_LOCK_AT   held while a process opens the file, so only one opens (and maybe recovers) at a time
+//   USERS_LOCK_AT  exclusive for an owner, shared by every attached process. Whoever finds nobody else
+//                  holding it is alone and recovers the ring; the others must leave it as it is
+// A process that dies between claiming a slot and publishing it (or taking an item and freeing its slot)
+// stalls the ring at that slot for everyone still attached, until they have all gone & the next open
+// recovers it.
+//
+// File layout (native byte order, every field at an 8 byte aligned offset so it can be CASed):
+//   0   magic       8   version (int)   12  slots (int)
+//   64  tail        next position a producer will claim, on its own cache line
+//   128 head        next position a consumer will claim (the last committed position), own cache line
+//   192 slots       16 bytes each: sequence number (long) + item (int) + 4 bytes padding
+// On restart the head is read back and the ring is rebuilt from there: every slot published after head is
+// handed to consumers again, and anything that was claimed but not published yet is dropped.
+public class MappedRingBuffer implements BufferEngine {
+
+    enum Sync { BATCH, TIMED, NONE }
+
+    // Settings from the command line, used by open()
+    private static Path file = Paths.get("buffer.ring");
+    private static Sync sync = Sync.TIMED;
+    private static long syncMillis = 100;
+    static boolean shared = false; // Attach shared with other processes, set by ProducerConsumer for --role
+
+    private static final long MAGIC = 0x6f7370726f6a5242L; // "osprojRB"
+    private static final int VERSION = 1;
+    private static final int MAGIC_AT = 0;
+    private static final int VERSION_AT = 8;
+    private static final int SLOTS_AT = 12;
+    private static final int TAIL_AT = 64;
+    private static final int HEAD_AT = 128;
+    private static final int DATA_AT = 192; // First slot
+    private static final int SLOT_BYTES = 16;
+    private static final int ITEM_AT = 8; // Item inside a slot
+    private static final long OPEN_LOCK_AT = 0; // Byte-range locks, see above. Locks are advisory, they do
+    private static final long USERS_LOCK_AT = 1; // not stop anyone reading or writing the magic under them
+
+    // A slot a consumer took but did not hand back for this long belongs to a consumer that died in the middle
+    // of copying it (a killed process sharing the file), see awaitFree
+    private static final long STALE_NANOS = 2_000_000_000L;
+
+    // A single mapping is at most 2 GB, which leaves room for 2^26 slots after the header
+    static final int MAX_SLOTS = 1 << 26;
+
+    // Views of the mapping as longs & ints. Unlike a plain ByteBuffer.getLong these support volatile
+    // reads, release writes & compare-and-set (on aligned offsets), which is what the ring protocol needs
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class,
+            ByteOrder.nativeOrder());
+    private static final VarHandle INTS = MethodHandles.byteBufferViewVarHandle(int[].class,
+            ByteOrder.nativeOrder());
+
+    private final Path path;
+    private final FileChannel channel;
+    private final FileLock lock;
+    private final MappedByteBuffer map;
+    private final int size; // Number of slots, a power of two
+    private final int mask; // size - 1
+    private final int recovered; // Items found in the file when it was opened
+    private final boolean attached; // Opened shared while other processes had it open, nothing recovered
+    private final Sync policy;
+    private final Thread flusher; // Flushes every syncMillis for Sync.TIMED, null otherwise
+    private volatile boolean closed = false;
+
+    // How producers wait while the ring is full & consumers while it is empty, see WaitStrategy
+    private WaitStrategy producerWait = new WaitStrategy.SpinPark();
+    private WaitStrategy consumerWait = new WaitStrategy.SpinPark();
+
+    // Time spent waiting for a free slot / a published item & flushing pages to disk, see Metrics
+    private final Metrics.Histogram blockedEmpty = Metrics.histogram("buffer.blocked_empty");
+    private final Metrics.Histogram blockedFull = Metrics.histogram("buffer.blocked_full");
+    private final Metrics.Histogram flushes = Metrics.histogram("buffer.fsync");
+
+    // Handle --ring-file, --fsync & --fsync-interval. Returns false if the argument is not ours.
+    public static boolean configure(String arg) {
+        if (arg.startsWith("--ring-file=")) {
+            file = Paths.get(arg.substring("--ring-file=".length()));
+        } else if (arg.startsWith("--fsync=")) {
+            sync = Sync.valueOf(arg.substring("--fsync=".length()).toUpperCase());
+        } else if (arg.startsWith("--fsync-interval=")) {
+            syncMillis = Long.parseLong(arg.substring("--fsync-interval=".length()));
+            if (syncMillis <= 0) {
+                throw new IllegalArgumentException("fsync interval must be positive: " + syncMillis);
+            }
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    // Open (or create) the ring file given on the command line. A new file gets capacity slots, an existing
+    // one keeps the size it was created with. Problems with the file come back as IllegalArgumentException
+    // like any other bad option value.
+    static MappedRingBuffer open(int capacity) {
+        return open(capacity, "");
+    }
+
+    // Same with suffix added to the file name, for the other buffers of a pipeline
+    static MappedRingBuffer open(int capacity, String suffix) {
+        Path target = Paths.get(file + suffix);
+        try {
+            MappedRingBuffer ring = new MappedRingBuffer(target, capacity, sync, syncMillis, shared);
+            if (ring.attached) {
+                System.out.println("Attached to " + target + ", shared with other processes (" + ring.size()
+                        + " items queued)");
+            } else if (ring.recovered() > 0) {
+                System.out.println("Recovered " + ring.recovered() + " queued items from " + target);
+            }
+            if (ring.capacity() != BufferEngine.slotsFor(capacity)) {
+                System.out.println(target + " was created with " + ring.capacity() + " slots, keeping that size");
+            }
+            return ring;
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Can not open ring file " + target + ": " + e.getMessage(), e);
+        }
+    }
+
+    public MappedRingBuffer(Path path, int capacity, Sync policy, long syncMillis) throws IOException {
+        this(path, capacity, policy, syncMillis, false);
+    }
+
+    // shared: attach next to other processes that opened the file shared, instead of owning it
+    public MappedRingBuffer(Path path, int capacity, Sync policy, long syncMillis, boolean shared)
+            throws IOException {
+        this.path = path;
+        this.policy = policy;
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        FileLock opening = null;
+        try {
+            boolean alone;
+            try {
+                opening = channel.lock(OPEN_LOCK_AT, 1, false); // Waits while another process is opening it
+                FileLock users = channel.tryLock(USERS_LOCK_AT, 1, false);
+                alone = users != null;
+                if (alone && shared) { // Nobody else has it: recover below, then let others attach too. We
+                    users.release();   // still hold OPEN_LOCK_AT, so nobody can open it in between
+                    users = channel.lock(USERS_LOCK_AT, 1, true);
+                } else if (!alone && shared) {
+                    users = channel.tryLock(USERS_LOCK_AT, 1, true); // null if its owner did not share it
+                }
+                lock = users;
+            } catch (OverlappingFileLockException e) { // Already open in this JVM
+                throw new IOException("already open");
+            }
+            if (lock == null) {
+                throw new IOException("in use by another process");
+            }
+            attached = !alone;
+            int slots = existingSlots();
+            boolean fresh = slots == 0;
+            if (attached && fresh) { // Whoever attached first formats it while holding OPEN_LOCK_AT
+                throw new IOException("not a finished ring file");
+            }
+            if (fresh) {
+                slots = BufferEngine.slotsFor(capacity);
+                if (slots > MAX_SLOTS) {
+                    throw new IllegalArgumentException("a mapped ring holds at most " + MAX_SLOTS + " slots");
+                }
+            }
+            size = slots;
+            mask = size - 1;
+            map = channel.map(FileChannel.MapMode.READ_WRITE, 0, DATA_AT + (long) size * SLOT_BYTES);
+            if (fresh) {
+                format();
+                recovered = 0;
+            } else if (attached) { // Others are using it right now, its tail & slots are theirs
+                recovered = 0;
+            } else {
+                recovered = recover();
+            }
+            opening.release();
+        } catch (IOException | RuntimeException e) {
+            channel.close(); // Also releases the locks
+            throw e;
+        }
+        if (policy == Sync.TIMED) {
+            flusher = new Thread(() -> {
+                while (!closed) {
+                    LockSupport.parkNanos(syncMillis * 1_000_000);
+                    if (!closed) {
+                        flush();
+                    }
+                }
+            }, "MappedRing-flusher");
+            flusher.setDaemon(true); // Never keeps the program alive
+            flusher.start();
+        } else {
+            flusher = null;
+        }
+    }
+
+    // Slot count stored in an existing ring file, or 0 for a new (or never finished) file
+    private int existingSlots() throws IOException {
+        if (channel.size() < DATA_AT) {
+            return 0;
+        }
+        ByteBuffer header = ByteBuffer.allocate(DATA_AT).order(ByteOrder.nativeOrder());
+        channel.read(header, 0);
+        if (header.getLong(MAGIC_AT) == 0) { // Crashed while formatting: the magic is written last
+            return 0;
+        }
+        if (header.getLong(MAGIC_AT) != MAGIC) {
+            throw new IOException("not a ring file");
+        }
+        if (header.getInt(VERSION_AT) != VERSION) {
+            throw new IOException("ring file version " + header.getInt(VERSION_AT) + ", expected " + VERSION);
+        }
+        int slots = header.getInt(SLOTS_AT);
+        if (slots <= 0 || slots > MAX_SLOTS || Integer.bitCount(slots) != 1
+                || channel.size() < DATA_AT + (long) slots * SLOT_BYTES) {
+            throw new IOException("ring file header is damaged");
+        }
+        return slots;
+    }
+
+    // Lay out an empty ring: every slot free for the first lap, head = tail = 0
+    private void format() {
+        INTS.set(map, VERSION_AT, VERSION);
+        INTS.set(map, SLOTS_AT, size);
+        LONGS.set(map, TAIL_AT, 0L);
+        LONGS.set(map, HEAD_AT, 0L);
+        for (int i = 0; i < size; i++) {
+            LONGS.set(map, DATA_AT + i * SLOT_BYTES, (long) i);
+        }
+        map.force(); // Everything above is on disk before the magic says the file is usable
+        LONGS.setVolatile(map, MAGIC_AT, MAGIC);
+        map.force(MAGIC_AT, 8);
+    }
+
+    // Rebuild the ring from the committed head. The published slots in a row after head are kept, the
+    // tail is moved to just behind them, and every other slot is made free for the position that will use
+    // it next. That drops slots a producer had claimed but not published, and anything published after
+    // such a gap, since consumers could never have reached them in order.
+    private int recover() {
+        long head = (long) LONGS.getVolatile(map, HEAD_AT);
+        long pos = head;
+        while (pos - head < size && sequence(pos) == pos + 1) {
+            pos++;
+        }
+        for (long free = pos; free < head + size; free++) {
+            free(free);
+        }
+        LONGS.setVolatile(map, TAIL_AT, pos);
+        map.force();
+        return (int) (pos - head);
+    }
+
+    // Make the slot of pos free for the producer that claimed pos
+    private void free(long pos) {
+        LONGS.setVolatile(map, offset(pos), pos);
+    }
+
+    // Wait until the consumer that took the previous lap's item from the slot of a batch-claimed position has
+    // handed the slot back. That is normally a few instructions away, so an interrupt is remembered rather
+    // than obeyed: the batch's positions are already claimed and have to be published, or every consumer
+    // would stall at them. A slot still not handed back after STALE_NANOS is freed the way recover() frees
+    // it; the item the dead consumer took is lost with it. Returns true if the thread was interrupted
+    private boolean awaitFree(long pos) {
+        if (sequence(pos) == pos) {
+            return false;
+        }
+        long start = System.nanoTime();
+        boolean interrupted = false;
+        int tries = 0;
+        while (sequence(pos) != pos) {
+            if (System.nanoTime() - start > STALE_NANOS) {
+                // Taken (pos - size + 1) but never released. A consumer releasing it now writes the same value
+                if (LONGS.compareAndSet(map, offset(pos), pos - size + 1, pos)) {
+                    System.out.println("Freed a slot of " + path + " a consumer took " + STALE_NANOS / 1_000_000
+                            + " ms ago and never handed back, its item is lost");
+                }
+                continue;
+            }
+            try {
+                tries = producerWait.idle(tries);
+            } catch (InterruptedException e) { // Finish the batch first, see above
+                interrupted = true;
+                tries = 0; // A blocking strategy dropped its registration, start over
+            }
+        }
+        producerWait.done(tries);
+        return interrupted;
+    }
+
+    // Byte offset of the slot for a position. Wraps around the ring circularly
+    private int offset(long pos) {
+        return DATA_AT + (int) (pos & mask) * SLOT_BYTES;
+    }
+
+    private long sequence(long pos) {
+        return (long) LONGS.getVolatile(map, offset(pos));
+    }
+
+    private long tail() {
+        return (long) LONGS.getVolatile(map, TAIL_AT);
+    }
+
+    private long head() {
+        return (long) LONGS.getVolatile(map, HEAD_AT);
+    }
+
+    // Claim one position for a producer without waiting. Returns RingSequencer.NONE if the buffer is full.
+    private long tryClaim() {
+        long pos = tail();
+        while (true) {
+            long diff = sequence(pos) - pos;
+            if (diff == 0) { // Slot is free for this position, try to claim it
+                if (LONGS.compareAndSet(map, TAIL_AT, pos, pos + 1)) {
+                    return pos;
+                }
+                pos = tail(); // Another producer won the slot, retry with the new tail
+            } else if (diff < 0) { // Slot still holds an item from the previous lap, buffer is full
+                return RingSequencer.NONE;
+            } else { // Another producer already moved past pos
+                pos = tail();
+            }
+        }
+    }
+
+    // Claim one published position for a consumer without waiting. Returns RingSequencer.NONE if empty.
+    private long tryTake() {
+        long pos = head();
+        while (true) {
+            long diff = sequence(pos) - (pos + 1);
+            if (diff == 0) { // Slot holds the item for this position, try to claim it
+                if (LONGS.compareAndSet(map, HEAD_AT, pos, pos + 1)) {
+                    return pos;
+                }
+                pos = head();
+            } else if (diff < 0) { // Producer has not published this slot yet, buffer is empty
+                return RingSequencer.NONE;
+            } else {
+                pos = head();
+            }
+        }
+    }
+
+    // Write an item and hand it to consumers: the sequence is written after the item (release). The caller
+    // wakes blocked consumers with consumerWait.signal() once it is done writing
+    private void write(long pos, int item) {
+        int at = offset(pos);
+        INTS.set(map, at + ITEM_AT, item);
+        LONGS.setRelease(map, at, pos + 1);
+    }
+
+    // Read a taken item and hand its slot to the producer one lap later, followed by producerWait.signal()
+    private int read(long pos) {
+        int at = offset(pos);
+        int item = (int) INTS.get(map, at + ITEM_AT);
+        LONGS.setRelease(map, at, pos + size);
+        return item;
+    }
+
+    // Sync.BATCH: push the slots a producer just published to disk. A run that wraps is two ranges
+    private void flushSlots(long first, int count) {
+        if (policy != Sync.BATCH) {
+            return;
+        }
+        long start = Metrics.now();
+        int from = (int) (first & mask);
+        int run = Math.min(count, size - from);
+        map.force(DATA_AT + from * SLOT_BYTES, run * SLOT_BYTES);
+        if (run < count) {
+            map.force(DATA_AT, (count - run) * SLOT_BYTES);
+        }
+        flushes.recordSince(start);
+    }
+
+    // Sync.BATCH: commit the new head after a consumer took items
+    private void flushHead() {
+        if (policy != Sync.BATCH) {
+            return;
+        }
+        long start = Metrics.now();
+        map.force(HEAD_AT, 8);
+        flushes.recordSince(start);
+    }
+
+    // Push every changed page to disk
+    private void flush() {
+        long start = Metrics.now();
+        map.force();
+        flushes.recordSince(start);
+    }
+
+    @Override
+    public boolean try_insert_item(int item) {
+        long pos = tryClaim();
+        if (pos == RingSequencer.NONE) {
+            return false;
+        }
+        write(pos, item);
+        consumerWait.signal();
+        flushSlots(pos, 1);
+        EventLog.log(EventLog.Event.PRODUCED, item);
+        return true;
+    }
+
+    @Override
+    public void insert_item(int item) throws InterruptedException {
+        long start = Metrics.now();
+        int tries = 0;
+        long pos;
+        while ((pos = tryClaim()) == RingSequencer.NONE) { // Buffer full: wait until a consumer frees a slot
+            tries = producerWait.idle(tries);
+        }
+        producerWait.done(tries);
+        blockedEmpty.recordSince(start);
+        write(pos, item);
+        consumerWait.signal();
+        flushSlots(pos, 1);
+        EventLog.log(EventLog.Event.PRODUCED, item);
+    }
+
+    @Override
+    public int remove_item() throws InterruptedException {
+        long start = Metrics.now();
+        int tries = 0;
+        long pos;
+        while ((pos = tryTake()) == RingSequencer.NONE) { // Buffer empty: wait until a producer publishes
+            tries = consumerWait.idle(tries);
+        }
+        consumerWait.done(tries);
+        blockedFull.recordSince(start);
+        int item = read(pos);
+        producerWait.signal();
+        flushHead();
+        EventLog.log(EventLog.Event.CONSUMED, item);
+        return item;
+    }
+
+    @Override
+    public void insert_items(int[] batch, int count) throws InterruptedException {
+        if (count <= 0) {
+            return;
+        }
+        if (count > size) {
+            throw new IllegalArgumentException("batch of " + count + " does not fit in " + size + " slots");
+        }
+        long start = Metrics.now();
+        int tries = 0;
+        long first;
+        while (true) { // Reserve count consecutive positions with one CAS, head is the gate (see RingSequencer)
+            first = tail();
+            if (first + count - head() > size) { // Not enough room yet
+                tries = producerWait.idle(tries);
+            } else if (LONGS.compareAndSet(map, TAIL_AT, first, first + count)) {
+                producerWait.done(tries);
+                break;
+            }
+        }
+        blockedEmpty.recordSince(start);
+        fill(first, batch, count);
+    }
+
+    @Override
+    public boolean try_insert_items(int[] batch, int count) {
+        if (count <= 0) {
+            return true;
+        }
+        if (count > size) {
+            throw new IllegalArgumentException("batch of " + count + " does not fit in " + size + " slots");
+        }
+        long first;
+        do {
+            first = tail();
+            if (first + count - head() > size) { // Not enough room
+                return false;
+            }
+        } while (!LONGS.compareAndSet(map, TAIL_AT, first, first + count));
+        fill(first, batch, count);
+        return true;
+    }
+
+    // Fill & publish the count positions claimed from first on
+    private void fill(long first, int[] batch, int count) {
+        boolean interrupted = false;
+        for (int i = 0; i < count; i++) { // Fill and publish them in order
+            long pos = first + i;
+            interrupted |= awaitFree(pos); // A consumer may still be copying this slot's old item
+            write(pos, batch[i]);
+        }
+        consumerWait.signal(); // Wake blocked consumers once for the batch
+        flushSlots(first, count); // One flush for the whole batch
+        for (int i = 0; i < count; i++) {
+            EventLog.log(EventLog.Event.PRODUCED, batch[i]);
+        }
+        if (interrupted) { // The batch is in, now stop
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public int remove_items(int[] dst, int max) throws InterruptedException {
+        if (max <= 0) {
+            return 0;
+        }
+        long start = Metrics.now();
+        int tries = 0;
+        int count;
+        while ((count = try_remove_items(dst, max)) == 0) { // Buffer empty, wait until a producer publishes
+            tries = consumerWait.idle(tries);
+        }
+        consumerWait.done(tries);
+        blockedFull.recordSince(start);
+        return count;
+    }
+
+    @Override
+    public int try_remove_items(int[] dst, int max) {
+        while (max > 0) {
+            long pos = head();
+            int ready = 0; // Published slots in a row starting at head
+            while (ready < max && sequence(pos + ready) == pos + ready + 1) {
+                ready++;
+            }
+            if (ready == 0) {
+                if (head() == pos) { // Really empty, not just a stale head
+                    return 0;
+                }
+            } else if (LONGS.compareAndSet(map, HEAD_AT, pos, pos + ready)) { // Claim all of them with one CAS
+                for (int i = 0; i < ready; i++) {
+                    dst[i] = read(pos + i);
+                }
+                producerWait.signal(); // Wake blocked producers once for the batch
+                flushHead(); // One flush for the whole batch
+                for (int i = 0; i < ready; i++) {
+                    EventLog.log(EventLog.Event.CONSUMED, dst[i]);
+                }
+                return ready;
+            }
+        }
+        return 0;
+    }
+
+    // Items that were still queued in the file when it was opened
+    public int recovered() {
+        return recovered;
+    }
+
+    public Path path() {
+        return path;
+    }
+
+    @Override
+    public void useWaitStrategies(WaitStrategy producers, WaitStrategy consumers) {
+        producerWait = producers;
+        consumerWait = consumers;
+    }
+
+    @Override
+    public WaitStrategy producerWait() {
+        return producerWait;
+    }
+
+    @Override
+    public WaitStrategy consumerWait() {
+        return consumerWait;
+    }
+
+    @Override
+    public int size() {
+        long count = tail() - head();
+        return (int) Math.max(0, Math.min(count, size));
+    }
+
+    @Override
+    public int capacity() {
+        return size;
+    }
+
+    @Override
+    public boolean serializesTurns() {
+        return false; // Same lock-free protocol as the ring engine
+    }
+
+    @Override
+    public String name() {
+        return "mapped";
+    }
+
+    // Stop the flusher, flush once more (unless --fsync=none) and release the file. The mapping itself is
+    // unmapped by the garbage collector, Java has no way to do it by hand.
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (flusher != null) {
+            LockSupport.unpark(flusher);
+        }
+        if (policy != Sync.NONE) {
+            flush();
+        }
+        try {
+            channel.close(); // Also releases the lock
+        } catch (IOException e) {
+            System.out.println("Could not close ring file " + path + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,367 @@
+import java.io.BufferedOutputStream; // CSV snapshots
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory; // Platform MBean server for JMX
+import java.util.LinkedHashMap; // Metrics are reported in the order they were registered
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray; // Histogram bucket counts
+import java.util.concurrent.atomic.LongAccumulator; // Histogram maximum
+import java.util.concurrent.atomic.LongAdder; // Striped counters, no single contended cache line
+import java.util.function.LongSupplier; // Gauges read a live value when a snapshot is taken
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+// Live counters, gauges & latency histograms for the simulations. Switched off by default: then a counter
+// update is one volatile read and Metrics.now() returns 0 without reading the clock, so the simulations &
+// benchmarks pay next to nothing. Turned on with
+//   --metrics[=ms]        print a text snapshot every ms milliseconds (default 1000) and at the end
+//   --metrics-csv=<file>  write the same snapshot as one CSV row every interval
+// While metrics are on they can also be watched with JConsole/VisualVM as the osproj:type=Metrics MBean.
+//
+// Counters are LongAdders. Histograms keep HdrHistogram-style log-linear buckets: every power of two is
+// split into 32 buckets, so a recorded value is off by at most ~3% and recording is a couple of shifts and
+// one atomic increment. Histogram values are recorded in nanoseconds & reported in microseconds.
+public final class Metrics {
+
+    private static volatile boolean enabled = false;
+    private static long intervalMillis = 1000; // Time between snapshots
+    private static boolean printSnapshots = false; // Text snapshots on stdout
+    private static PrintStream csv; // CSV snapshots, null if not asked for
+    private static boolean csvHeaderWritten = false;
+
+    private static final Map<String, Object> metrics = new LinkedHashMap<>(); // Counter, Histogram or LongSupplier.
+                                                                               // Guarded by Metrics.class
+    private static long startNanos; // When start() was called, for rates & utilization
+    private static Thread reporter; // Writes the periodic snapshots
+    private static ObjectName mbeanName; // Registered MBean, unregistered again by stop()
+
+    private Metrics() {
+    }
+
+    // Handle --metrics, --metrics=ms or --metrics-csv=<file>. Returns false if the argument is not ours.
+    public static boolean configure(String arg) {
+        if (arg.equals("--metrics")) {
+            printSnapshots = true;
+        } else if (arg.startsWith("--metrics=")) {
+            intervalMillis = Long.parseLong(arg.substring("--metrics=".length()));
+            if (intervalMillis <= 0) {
+                throw new IllegalArgumentException("metrics interval must be positive: " + intervalMillis);
+            }
+            printSnapshots = true;
+        } else if (arg.startsWith("--metrics-csv=")) {
+            String target = arg.substring("--metrics-csv=".length());
+            try {
+                csv = new PrintStream(new BufferedOutputStream(new FileOutputStream(target)), false);
+            } catch (FileNotFoundException e) {
+                throw new IllegalArgumentException("Can not open metrics file " + target, e);
+            }
+        } else {
+            return false;
+        }
+        enabled = true;
+        return true;
+    }
+
+    public static boolean enabled() {
+        return enabled;
+    }
+
+    // Start time for a Histogram.recordSince / Counter.addSince, or 0 (no clock read) when metrics are off
+    public static long now() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    // Nanoseconds since start(), at least 1 so it can be divided by
+    public static long elapsedNanos() {
+        return Math.max(1, System.nanoTime() - startNanos);
+    }
+
+    // The counter with this name, created the first time it is asked for
+    public static synchronized Counter counter(String name) {
+        return (Counter) metrics.computeIfAbsent(name, n -> new Counter());
+    }
+
+    // The histogram with this name, created the first time it is asked for
+    public static synchronized Histogram histogram(String name) {
+        return (Histogram) metrics.computeIfAbsent(name, n -> new Histogram());
+    }
+
+    // A value read each time a snapshot is taken. Registering the same name again replaces the supplier
+    public static synchronized void gauge(String name, LongSupplier value) {
+        metrics.put(name, value);
+    }
+
+    // Begin reporting for a simulation: register the MBean & start the snapshot thread. Nothing happens when
+    // metrics are off
+    public static synchronized void start(String simulation) {
+        if (!enabled) {
+            return;
+        }
+        startNanos = System.nanoTime();
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            mbeanName = new ObjectName("osproj:type=Metrics,name=" + simulation);
+            if (server.isRegistered(mbeanName)) {
+                server.unregisterMBean(mbeanName);
+            }
+            server.registerMBean(new View(), mbeanName);
+        } catch (JMException e) { // JMX is a convenience, the snapshots still work without it
+            System.out.println("Metrics MBean not registered: " + e);
+            mbeanName = null;
+        }
+        reporter = new Thread(() -> {
+            try {
+                while (true) {
+                    Thread.sleep(intervalMillis);
+                    report();
+                }
+            } catch (InterruptedException e) { // stop() writes the last snapshot
+                Thread.currentThread().interrupt();
+            }
+        }, "Metrics-reporter");
+        reporter.setDaemon(true); // Must not keep the JVM alive
+        reporter.start();
+    }
+
+    // Write the final snapshot and stop reporting
+    public static void stop() {
+        Thread stopping;
+        synchronized (Metrics.class) {
+            if (!enabled || reporter == null) {
+                return;
+            }
+            stopping = reporter;
+            reporter = null;
+        }
+        stopping.interrupt();
+        try {
+            stopping.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (Metrics.class) {
+            report();
+            if (csv != null) {
+                csv.flush();
+            }
+            if (mbeanName != null) {
+                try {
+                    ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+                } catch (JMException e) {
+                    // Already gone
+                }
+                mbeanName = null;
+            }
+        }
+    }
+
+    // Every metric as name -> value. Histograms are flattened into count, mean, p50, p99, p99.9 & max
+    public static synchronized Map<String, Long> snapshot() {
+        Map<String, Long> values = new LinkedHashMap<>();
+        for (Map.Entry<String, Object> metric : metrics.entrySet()) {
+            String name = metric.getKey();
+            Object value = metric.getValue();
+            if (value instanceof Counter) {
+                values.put(name, ((Counter) value).sum());
+            } else if (value instanceof Histogram) {
+                ((Histogram) value).snapshot(name, values);
+            } else {
+                values.put(name, ((LongSupplier) value).getAsLong());
+            }
+        }
+        return values;
+    }
+
+    // One snapshot to stdout and/or the CSV file
+    private static synchronized void report() {
+        Map<String, Long> values = snapshot();
+        long elapsedMillis = elapsedNanos() / 1_000_000;
+        if (printSnapshots) {
+            StringBuilder line = new StringBuilder("metrics ").append(elapsedMillis).append(" ms:");
+            for (Map.Entry<String, Long> value : values.entrySet()) {
+                line.append(' ').append(value.getKey()).append('=').append(value.getValue());
+            }
+            System.out.println(line);
+        }
+        if (csv != null) {
+            if (!csvHeaderWritten) {
+                csv.print("elapsed_ms");
+                for (String name : values.keySet()) {
+                    csv.print(',');
+                    csv.print(name);
+                }
+                csv.println();
+                csvHeaderWritten = true;
+            }
+            csv.print(elapsedMillis);
+            for (Long value : values.values()) {
+                csv.print(',');
+                csv.print(value);
+            }
+            csv.println();
+            csv.flush(); // So a long run can be watched with tail -f
+        }
+    }
+
+    // Striped counter
+    public static final class Counter {
+        private final LongAdder adder = new LongAdder();
+
+        public void increment() {
+            if (enabled) {
+                adder.increment();
+            }
+        }
+
+        public void add(long amount) {
+            if (enabled) {
+                adder.add(amount);
+            }
+        }
+
+        // Add the nanoseconds since start, a Metrics.now() value. Does nothing if start is 0 (metrics off)
+        public void addSince(long start) {
+            if (start != 0) {
+                adder.add(System.nanoTime() - start);
+            }
+        }
+
+        public long sum() {
+            return adder.sum();
+        }
+    }
+
+    // Log-linear histogram of nanosecond values
+    public static final class Histogram {
+        private static final int SUB_BITS = 6; // Values below 2^6 get a bucket each
+        private static final int SUB_COUNT = 1 << SUB_BITS; // 64
+        private static final int HALF = SUB_COUNT / 2; // Buckets per power of two above that
+        static final int BUCKETS = SUB_COUNT + (63 - SUB_BITS) * HALF;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final LongAdder total = new LongAdder(); // Sum of all values, for the mean
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        // Record the nanoseconds since start, a Metrics.now() value. Does nothing if start is 0 (metrics off)
+        public void recordSince(long start) {
+            if (start != 0) {
+                record(System.nanoTime() - start);
+            }
+        }
+
+        public void record(long nanos) {
+            if (!enabled) {
+                return;
+            }
+            long value = Math.max(0, nanos);
+            counts.getAndIncrement(bucket(value));
+            total.add(value);
+            max.accumulate(value);
+        }
+
+        // Bucket for a value: values below SUB_COUNT map to themselves, larger ones keep their top SUB_BITS
+        // bits (the top one always set) and the shift that was needed
+        static int bucket(long value) {
+            int shift = (64 - Long.numberOfLeadingZeros(value)) - SUB_BITS;
+            if (shift <= 0) {
+                return (int) value;
+            }
+            return SUB_COUNT + (shift - 1) * HALF + (int) (value >>> shift) - HALF;
+        }
+
+        // Largest value that falls in a bucket
+        static long highestValue(int bucket) {
+            if (bucket < SUB_COUNT) {
+                return bucket;
+            }
+            int shift = (bucket - SUB_COUNT) / HALF + 1;
+            long top = (bucket - SUB_COUNT) % HALF + HALF;
+            return ((top + 1) << shift) - 1;
+        }
+
+        // Add name.count, name.mean_us, name.p50_us, name.p99_us, name.p999_us & name.max_us to values
+        void snapshot(String name, Map<String, Long> values) {
+            long[] copy = new long[BUCKETS];
+            long count = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                copy[i] = counts.get(i);
+                count += copy[i];
+            }
+            long highest = max.get(); // A bucket's upper bound can be above the largest value recorded in it
+            values.put(name + ".count", count);
+            values.put(name + ".mean_us", count == 0 ? 0 : total.sum() / count / 1000);
+            values.put(name + ".p50_us", Math.min(highest, percentile(copy, count, 0.50)) / 1000);
+            values.put(name + ".p99_us", Math.min(highest, percentile(copy, count, 0.99)) / 1000);
+            values.put(name + ".p999_us", Math.min(highest, percentile(copy, count, 0.999)) / 1000);
+            values.put(name + ".max_us", highest / 1000);
+        }
+
+        private static long percentile(long[] counts, long count, double quantile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(quantile * count)); // Values at or below the percentile
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return highestValue(i);
+                }
+            }
+            return highestValue(counts.length - 1);
+        }
+    }
+
+    // Read-only JMX view: one Long attribute per snapshot value
+    private static final class View implements DynamicMBean {
+        @Override
+        public Object getAttribute(String attribute) {
+            return snapshot().get(attribute);
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            Map<String, Long> values = snapshot();
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                if (values.containsKey(attribute)) {
+                    list.add(new Attribute(attribute, values.get(attribute)));
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) {
+            throw new UnsupportedOperationException("metrics are read-only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String action, Object[] params, String[] signature) {
+            throw new UnsupportedOperationException("no operations");
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            Map<String, Long> values = snapshot();
+            MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[values.size()];
+            int i = 0;
+            for (String name : values.keySet()) {
+                attributes[i++] = new MBeanAttributeInfo(name, "java.lang.Long", name, true, false, false);
+            }
+            return new MBeanInfo(Metrics.class.getName(), "Simulation metrics", attributes, null, null, null);
+        }
+    }
+}
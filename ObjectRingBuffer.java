@@ -0,0 +1,64 @@
+import java.util.function.Supplier; // Creates the slot objects up front
+
+// Lock-free multi-producer/multi-consumer ring buffer of T that never allocates after construction. Every
+// slot holds one T created by the factory when the buffer is built. Instead of handing objects over, a
+// producer claims a slot, fills in the object that is already there and publishes it; a consumer takes the
+// slot, reads the object and releases it for reuse:
+//
+//   long seq = buffer.claimSlot();    Message m = buffer.get(seq); m.id = ...; buffer.publishSlot(seq);
+//   long seq = buffer.takeSlot();     Message m = buffer.get(seq); process(m); buffer.releaseSlot(seq);
+//
+// So steady-state production makes no garbage no matter how big the payload is. The object returned by
+// get(seq) belongs to the caller only between claiming/taking the slot and publishing/releasing it; keep no
+// reference after that.
+public class ObjectRingBuffer<T> extends RingSequencer {
+
+    public static final long NONE = RingSequencer.NONE; // tryClaim/tryTake result when full/empty
+
+    private final Object[] slots; // One preallocated T per slot, never replaced
+
+    // capacity is rounded up to a power of two, factory is called once per slot
+    public ObjectRingBuffer(int capacity, Supplier<? extends T> factory) {
+        super(capacity);
+        slots = new Object[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = factory.get();
+        }
+    }
+
+    // Producer: claim a slot without waiting. Returns its sequence, or NONE if the buffer is full
+    public long tryClaimSlot() {
+        return tryClaim();
+    }
+
+    // Producer: claim a slot, backing off until one is free
+    public long claimSlot() throws InterruptedException {
+        return claim();
+    }
+
+    // Producer: make a claimed & filled slot visible to consumers
+    public void publishSlot(long sequence) {
+        publish(sequence);
+    }
+
+    // Consumer: take the oldest published slot without waiting. Returns its sequence, or NONE if empty
+    public long tryTakeSlot() {
+        return tryTake();
+    }
+
+    // Consumer: take the oldest published slot, backing off until there is one
+    public long takeSlot() throws InterruptedException {
+        return take();
+    }
+
+    // Consumer: give a taken slot back so a producer can reuse its object
+    public void releaseSlot(long sequence) {
+        release(sequence);
+    }
+
+    // The slot object of a claimed or taken sequence
+    @SuppressWarnings("unchecked")
+    public T get(long sequence) {
+        return (T) slots[index(sequence)];
+    }
+}
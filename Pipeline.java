@@ -0,0 +1,176 @@
+import java.util.ArrayList; // Stages in pipeline order
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder; // Items & busy time, added to by every worker of a stage
+import java.util.function.LongSupplier;
+
+// A chain of stages between ProducerConsumer's producers and consumers (--pipeline). The producers fill the
+// first bounded buffer, the workers of each stage drain the buffer in front of them, work on the items and
+// insert them into the next buffer, and the consumers drain the last one:
+//   producers -> [buffer] -> stage 1 workers -> [buffer] -> ... -> stage k workers -> [buffer] -> consumers
+// Every buffer is an engine of the kind given with --engine, so a full buffer blocks the stage in front of
+// it and a slow stage shows up as a full buffer in front of it. Stages are given as
+//   --pipeline=name:workers[:ms],name:workers[:ms],...
+// where ms is the simulated work per item (default 500, skipped with --no-delays like every other delay).
+// While it runs each stage's items are Metrics counters (stage.<name>.items) and the depth of its input
+// buffer a gauge (stage.<name>.depth). At the end report() prints throughput, queue depth & how busy
+// the workers were for every stage, and points at the likely bottleneck.
+final class Pipeline {
+
+    private static final int SAMPLE_MILLIS = 10; // Time between queue depth samples
+
+    // One stage, including the producers ("source") and consumers ("sink") at the two ends
+    static final class Stage {
+        final String name;
+        final int workers;
+        final int millisPerItem;
+        BufferEngine in; // Buffer the stage drains, null for the producers
+        BufferEngine out; // Buffer the stage fills, null for the consumers
+        final LongAdder items = new LongAdder(); // Items a middle stage worked on, counted even with metrics off
+        Metrics.Counter itemsMetric; // The same as stage.<name>.items
+        final LongAdder busyNanos = new LongAdder(); // Time its workers spent working, not waiting
+        LongSupplier processed; // Items done: items.sum() for middle stages, the item totals at the ends
+        // Input buffer depth samples, only touched by the sampler thread (and report() after it stopped)
+        long depthSum = 0;
+        long depthSamples = 0;
+        int depthMax = 0;
+
+        Stage(String name, int workers, int millisPerItem) {
+            this.name = name;
+            this.workers = workers;
+            this.millisPerItem = millisPerItem;
+        }
+
+        boolean middle() {
+            return in != null && out != null;
+        }
+    }
+
+    private final List<Stage> stages = new ArrayList<>(); // Source, middle stages, sink
+    private Thread sampler;
+    private volatile boolean sampling = false;
+    private long startNanos;
+
+    // Parse the middle stages of --pipeline=name:workers[:ms],... Throws IllegalArgumentException for a bad spec
+    static List<Stage> parse(String spec) {
+        List<Stage> parsed = new ArrayList<>();
+        for (String part : spec.split(",")) {
+            String[] fields = part.split(":");
+            if (fields.length < 2 || fields.length > 3 || fields[0].isEmpty()) {
+                throw new IllegalArgumentException("stage must be name:workers[:ms], got " + part);
+            }
+            int workers = Integer.parseInt(fields[1]);
+            int millis = fields.length == 3 ? Integer.parseInt(fields[2]) : 500;
+            if (workers <= 0 || millis < 0) {
+                throw new IllegalArgumentException("stage " + fields[0] + " needs at least one worker & ms >= 0");
+            }
+            for (Stage stage : parsed) {
+                if (stage.name.equals(fields[0])) {
+                    throw new IllegalArgumentException("stage " + fields[0] + " is given twice");
+                }
+            }
+            Stage stage = new Stage(fields[0], workers, millis);
+            stage.itemsMetric = Metrics.counter("stage." + stage.name + ".items");
+            stage.processed = stage.items::sum;
+            parsed.add(stage);
+        }
+        return parsed;
+    }
+
+    // Wire source -> middle stages -> sink together with buffers[0..middle.size()]
+    Pipeline(int producers, LongSupplier produced, List<Stage> middle, int consumers, LongSupplier consumed,
+            BufferEngine[] buffers) {
+        Stage source = new Stage("producers", producers, 0);
+        source.out = buffers[0];
+        source.processed = produced;
+        stages.add(source);
+        for (int i = 0; i < middle.size(); i++) {
+            Stage stage = middle.get(i);
+            stage.in = buffers[i];
+            stage.out = buffers[i + 1];
+            stages.add(stage);
+        }
+        Stage sink = new Stage("consumers", consumers, 0);
+        sink.in = buffers[middle.size()];
+        sink.processed = consumed;
+        stages.add(sink);
+        for (Stage stage : stages) {
+            if (stage.in != null) {
+                Metrics.gauge("stage." + stage.name + ".depth", stage.in::size);
+            }
+        }
+    }
+
+    List<Stage> middleStages() {
+        return stages.subList(1, stages.size() - 1);
+    }
+
+    // Start sampling queue depths
+    void start() {
+        startNanos = System.nanoTime();
+        sampling = true;
+        sampler = new Thread(() -> {
+            while (sampling) {
+                for (Stage stage : stages) {
+                    if (stage.in != null) {
+                        int depth = stage.in.size();
+                        stage.depthSum += depth;
+                        stage.depthSamples++;
+                        stage.depthMax = Math.max(stage.depthMax, depth);
+                    }
+                }
+                try {
+                    Thread.sleep(SAMPLE_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "Pipeline-sampler");
+        sampler.setDaemon(true);
+        sampler.start();
+    }
+
+    // Stop sampling and print one row per stage. The stage whose input buffer was fullest on average is the
+    // likely bottleneck: everything in front of it backs up, everything after it waits
+    void report() {
+        sampling = false;
+        if (sampler != null) {
+            sampler.interrupt();
+            try {
+                sampler.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        double seconds = Math.max(1, System.nanoTime() - startNanos) / 1e9;
+        System.out.printf("%-12s %7s %10s %10s %12s %9s %6s%n", "stage", "workers", "items", "items/s",
+                "queue mean", "queue max", "busy");
+        Stage bottleneck = null;
+        double fullest = -1;
+        for (Stage stage : stages) {
+            long items = stage.processed.getAsLong();
+            String mean = "-";
+            String max = "-";
+            if (stage.in != null && stage.depthSamples > 0) {
+                double depth = (double) stage.depthSum / stage.depthSamples;
+                mean = String.format("%.1f/%d", depth, stage.in.capacity());
+                max = Integer.toString(stage.depthMax);
+                double fill = depth / stage.in.capacity();
+                if (fill > fullest) {
+                    fullest = fill;
+                    bottleneck = stage;
+                }
+            }
+            String busy = stage.middle()
+                    ? String.format("%.0f%%", stage.busyNanos.sum() / (seconds * 1e9 * stage.workers) * 100)
+                    : "-";
+            System.out.printf("%-12s %7d %10d %10.1f %12s %9s %6s%n", stage.name, stage.workers, items,
+                    items / seconds, mean, max, busy);
+        }
+        if (bottleneck != null && fullest >= 0.5) {
+            System.out.printf("Likely bottleneck: %s (input buffer %.0f%% full on average), try more workers%n",
+                    bottleneck.name, fullest * 100);
+        } else {
+            System.out.println("No stage is backing up (every input buffer under half full on average)");
+        }
+    }
+}
@@ -1,112 +1,161 @@
 import java.util.concurrent.Semaphore; // Import Semaphore to control access to shared resouces in the program 
+import java.util.ArrayList; // Pipeline stages & their worker threads
+import java.util.List;
 import java.util.Random; // Import random to make random sleep times for producer and consumer threads 
+import java.util.concurrent.TimeUnit; // Adaptive pacing sleeps are in nanoseconds
+import java.util.concurrent.atomic.LongAdder; // Item totals for the pipeline report
 
 public class ProducerConsumer { // Define the main class ProducerConsumer that contains all components of the
                                 // simulation
 
-    // Shared buffer and its size
-    private static int[] buffer; // Declare the buffer
-    private static int in = 0; // Producer's index in the buffer. Defined as explanatory in variable for easy
-                               // reading
-    private static int out = 0; // Consumer's index in the buffer. Defined as explanaotry out variable for easy
-                                // reading
+    // The buffer engine holds the shared buffer and its synchronization. Chosen at startup with
+    // --engine=semaphore (the original mutex/empty/full version) or --engine=ring (lock-free ring)
+    private static BufferEngine engine;
     private static final int RandMax = 100; // Maximum value for random items. Items will have values between 0 and 100
                                             // inclusive. The values will be 0 - 100 because RandMax is inclusive not
                                             // exclusive
 
-    // Buffer size locked at 5 maximum
+    // Default buffer size & batch size. Both can be changed with --capacity and --batch. The engine
+    // rounds the capacity up to a power of two, so the default 5 becomes 8 slots
     private static final int BUFFER_SIZE = 5;
+    private static int batchSize = BUFFER_SIZE; // Items a producer claims/publishes or a consumer drains per turn
 
-    // Semaphores for synchronization
-    private static Semaphore empty; // Tracks empty slots in the buffer
-    private static Semaphore full; // Tracks filled slots in the buffer
-    private static final Semaphore mutex = new Semaphore(1); // Ensures mutual exclusion when accessing the buffer with
-                                                             // a mutex semaphore
+    // When false (--no-delays) the 500 ms per item and random 1 - 3 second sleeps are skipped so only the
+    // cost of the buffer engine is left
+    static volatile boolean simulateDelays = true;
+
+    // Adaptive pacing (--pacing=adaptive[=ms]): instead of the fixed random 1 - 3 second sleep after a batch,
+    // a producer sleeps longer the fuller the buffer is. Nothing below PACE_LOW occupancy so an emptying
+    // buffer is refilled right away, growing linearly to pacingMaxMillis at PACE_HIGH and above. This is
+    // backpressure rather than simulated work, so it also applies with --no-delays. 0 = fixed sleeps
+    private static double pacingMaxMillis = 0;
+    private static final double PACE_LOW = 0.25;
+    private static final double PACE_HIGH = 0.75;
+    private static final Metrics.Histogram pacing = Metrics.histogram("producer.pacing");
+
+    // Pause chosen by adaptive pacing for the current occupancy, in nanoseconds
+    static long pacingNanos(int occupancy, int capacity, double maxMillis) {
+        double fill = (double) occupancy / capacity;
+        double share = Math.min(1, Math.max(0, (fill - PACE_LOW) / (PACE_HIGH - PACE_LOW)));
+        return (long) (share * maxMillis * 1_000_000);
+    }
+
+    // Sleep for the simulated amount of time unless delays are switched off
+    private static void pause(long millis) throws InterruptedException {
+        if (simulateDelays) {
+            Thread.sleep(millis);
+        }
+    }
+
+    // Seeds the producers' & consumers' random items and sleeps (--seed), so with --trace/--replay a run
+    // can be repeated exactly. Different every run unless given
+    private static long seed = new Random().nextLong();
+
+    // Random number generator of producer (actor > 0) or consumer (actor < 0) number |actor|
+    static Random actorRandom(int actor) {
+        return new Random(seed * 31 + actor);
+    }
+
+    // Items handed to / taken from the engine, see Metrics
+    private static final Metrics.Counter producedItems = Metrics.counter("items.produced");
+    private static final Metrics.Counter consumedItems = Metrics.counter("items.consumed");
+    // The same totals counted even with metrics off, for the --pipeline report
+    private static final LongAdder producedTotal = new LongAdder();
+    private static final LongAdder consumedTotal = new LongAdder();
+
+    // Items admitted into the buffers & consumed, for the two-step shutdown at the end of the run: producers
+    // stop putting in new batches, then the consumers get up to --drain ms to empty the buffers
+    private static final Shutdown shutdown = new Shutdown();
+
+    // Which actors this process runs (--role). With producer or consumer the other side runs in another
+    // process on the same machine and the buffer is shared with it: a mapped ring file attached by both, or
+    // a buffer one process serves on a Unix-domain socket (SocketBuffer). Each side can then be started,
+    // scaled & stopped on its own, and a garbage collection in one does not pause the other
+    enum Role { BOTH, PRODUCER, CONSUMER }
+
+    private static Role role = Role.BOTH;
+    // Buffer is shared with other processes: producers & consumers here may not be the ones at the other
+    // end, so a process only drains its own hand-offs. Producers count a batch as finished once it is in
+    // the buffer and the consumers' items are not ours to count. Whatever is queued at the end stays there
+    // for the processes still running (or, for a mapped ring file, for the next run)
+    private static boolean shared = false;
 
     // Additional semaphores to ensure only one producer or consumer produces or
-    // consumes at a time
+    // consumes at a time. Only used when the engine serializes turns (semaphore engine)
     private static final Semaphore producerTurn = new Semaphore(1); // Ensures only one producer produces at a time
                                                                     // May have >1 producer thread running at once.
     private static final Semaphore consumerTurn = new Semaphore(1); // Ensures only one consumer consumes at a time
                                                                     // May have >1 consumer thread running at once.
 
-    // Function to insert an item into the buffer
-    public static void insert_item(int item) {
-        try {
-            mutex.acquire(); // Lock the buffer. If another thread holds the mutex, the current thread waits
-                             // until it can acquire the mutex. This ensures exclusive access to the buffer.
-            buffer[in] = item; // Add the item to the buffer so producer is using in index value
-            // Log the producer event including producer thread name, the integer produced,
-            // & index where int was placed.
-            System.out.println(Thread.currentThread().getName() + " produced: " + item + " at index " + in);
-            // Updates the producers index in to the next index in the buffer_size without
-            // going over special method with % cited with stack overflow.
-            // % wraps over the buffer size to avoid going over
-            in = (in + 1) % buffer.length; // Move to the next index circularly. Found from stack overflow link:
-                                           // https://stackoverflow.com/questions/35680026/circular-buffer-in-java
-        } catch (InterruptedException e) { // Interruption for graceful termination from Main function
-            Thread.currentThread().interrupt();
-        } finally { // always happens at the end
-            mutex.release(); // Unlock the buffer
-            full.release(); // Signal a filled slot because production has completed
-        }
+    // Function to insert an item into the buffer. Blocks until the engine has a free slot
+    public static void insert_item(int item) throws InterruptedException {
+        engine.insert_item(item);
     }
 
-    // Function to remove an item from the buffer
-    public static void remove_item() {
-        try {
-            mutex.acquire(); // Lock the buffer for exclusive access
-            int item = buffer[out]; // Remove the item from the buffer with out index
-            // Log what was removed. Notify thread name, consumed item,
-            // and which index it was consumed from
-            System.out.println(Thread.currentThread().getName() + " consumed: " + item + " from index " + out);
-            buffer[out] = 0; // Clear the buffer slot for clarity
-            out = (out + 1) % buffer.length; // Move to the next index circularly without going over with % trick
-                                             // Found from stack overflow link:
-                                             // https://stackoverflow.com/questions/35680026/circular-buffer-in-java
-        } catch (InterruptedException e) { // Graceful termination from main function
-            Thread.currentThread().interrupt();
-        } finally { // always will happen, consumption complete
-            mutex.release(); // Unlock the buffer
-            empty.release(); // Signal an empty slot
-        }
+    // Function to remove an item from the buffer. Blocks until the engine has an item
+    public static int remove_item() throws InterruptedException {
+        return engine.remove_item();
     }
 
     // Producer thread
     static class Producer implements Runnable { // Producer thread is ran as a task
-        private final Random random = new Random(); // Random number generator
+        private final Random random; // Random number generator
+        private final int[] batch = new int[batchSize]; // Items produced this turn, reused every turn
+        private final BufferEngine out; // Buffer the items go into: engine, or the first buffer of a pipeline
+
+        Producer(BufferEngine out, int number) {
+            this.out = out;
+            this.random = actorRandom(number);
+        }
 
         @Override
         public void run() {
             while (!Thread.currentThread().isInterrupted()) { // Producer thread runs continuously until it is
                                                               // interrupted
+                boolean turnTaken = false; // Only release producerTurn if we actually took it
                 try {
-                    producerTurn.acquire(); // Ensure only one producer produces at a time. Semaphore logic. If another
-                                            // producer holds
-                                            // the permit, then the current producer waits.
-                    // Log that producer is waiting for the buffer to be empty
-                    System.out.println(Thread.currentThread().getName() + " is waiting for empty buffer...");
-                    // Empty semaphore to wait until buffer has empty slots
-                    empty.acquire(BUFFER_SIZE); // Wait until buffer has BUFFER_SIZE empty slots
+                    if (out.serializesTurns()) {
+                        producerTurn.acquire(); // Ensure only one producer produces at a time. Semaphore logic. If
+                                                // another producer holds the permit, then the current producer waits.
+                        turnTaken = true;
+                    }
                     // Log which producer thread is producing
-                    System.out.println(Thread.currentThread().getName() + " is producing...");
-                    // Produce as many items as there is space in the empty buffer
-                    for (int i = 0; i < BUFFER_SIZE; i++) { // Produce BUFFER_SIZE items
-                        int item = random.nextInt(RandMax + 1); // Generate random item (0 to RandMax)
-                        insert_item(item);
-                        Thread.sleep(500); // Simulate production time per item
+                    EventLog.log(EventLog.Event.PRODUCING);
+                    for (int i = 0; i < batchSize; i++) { // Produce a batch of items
+                        batch[i] = random.nextInt(RandMax + 1); // Generate random item (0 to RandMax)
+                        pause(500); // Simulate production time per item
+                    }
+                    if (!shutdown.admit(batchSize)) { // Shutting down, this batch is never put in
+                        break;
+                    }
+                    // Claim batchSize slots, fill & publish them in one go. Only waits for as many free
+                    // slots as the batch needs, not for the whole buffer to be empty
+                    out.insert_items(batch, batchSize);
+                    if (shared) { // Handed over, the consumers are someone else's
+                        shutdown.finish(batchSize);
+                    }
+                    producedItems.add(batchSize);
+                    producedTotal.add(batchSize);
+                    if (pacingMaxMillis > 0) { // Back off according to how full the buffer is
+                        long nanos = pacingNanos(out.size(), out.capacity(), pacingMaxMillis);
+                        pacing.record(nanos);
+                        EventLog.log(EventLog.Event.ACTOR_SLEEPING, (int) (nanos / 1_000_000));
+                        if (nanos > 0) {
+                            TimeUnit.NANOSECONDS.sleep(nanos);
+                        }
+                    } else {
+                        // Sleep for a random amount of time between 1 to 3 seconds
+                        int sleepTime = random.nextInt(2000) + 1000;
+                        EventLog.log(EventLog.Event.ACTOR_SLEEPING, sleepTime); // Log random sleep for producer
+                        pause(sleepTime); // Sleep producer thread for random amount of time
                     }
-                    // Sleep for a random amount of time between 1 to 3 seconds
-                    int sleepTime = random.nextInt(2000) + 1000;
-                    System.out.println(
-                            // Log random sleep for producer
-                            Thread.currentThread().getName() + " sleeping for " + sleepTime + " milliseconds.");
-                    Thread.sleep(sleepTime); // Sleep producer thread for random amount of time
                 } catch (InterruptedException e) { // Interrupt thread for graceful termination by main function
                     Thread.currentThread().interrupt();
                 } finally { // always happens, release the producerTurn semaphore to allow other producers
                             // to produce
-                    producerTurn.release(); // Allow other producers to produce
+                    if (turnTaken) {
+                        producerTurn.release(); // Allow other producers to produce
+                    }
                 }
             }
         }
@@ -114,41 +163,131 @@ public class ProducerConsumer { // Define the main class ProducerConsumer that c
 
     // Consumer thread
     static class Consumer implements Runnable {
-        private final Random random = new Random(); // Random number generator
+        private final Random random; // Random number generator
+        private final int[] batch = new int[batchSize]; // Items drained this turn, reused every turn
+        private final BufferEngine in; // Buffer the items come from: engine, or the last buffer of a pipeline
+
+        Consumer(BufferEngine in, int number) {
+            this.in = in;
+            this.random = actorRandom(-number);
+        }
 
         @Override
         public void run() {
             while (!Thread.currentThread().isInterrupted()) { // Loops until interrupted
+                boolean turnTaken = false; // Only release consumerTurn if we actually took it
                 try {
-                    consumerTurn.acquire(); // Ensure only one consumer consumes at a time
-                    System.out.println(Thread.currentThread().getName() + " is waiting for full buffer...");
-                    full.acquire(BUFFER_SIZE); // Wait until buffer has BUFFER_SIZE full slots.
-                                               // Only consume once slots are full
+                    if (in.serializesTurns()) {
+                        consumerTurn.acquire(); // Ensure only one consumer consumes at a time
+                        turnTaken = true;
+                    }
                     // Log that thread is consuming
-                    System.out.println(Thread.currentThread().getName() + " is consuming...");
-                    for (int i = 0; i < BUFFER_SIZE; i++) { // Consume BUFFER_SIZE items
-                        remove_item();
-                        Thread.sleep(500); // Simulate consumption time per item
+                    EventLog.log(EventLog.Event.CONSUMING);
+                    int consumed = 0;
+                    while (consumed < batchSize) { // Consume a batch of items
+                        // Drain whatever is ready (at least one item) up to what is left of the batch
+                        int count = in.remove_items(batch, batchSize - consumed);
+                        consumed += count;
+                        consumedItems.add(count);
+                        consumedTotal.add(count);
+                        if (!shared) {
+                            shutdown.finish(count); // The last item of a drain wakes main up
+                        }
+                        pause(500L * count); // Simulate consumption time per item
                     }
                     // Sleep for a random amount of time between 1 to 3 seconds
                     int sleepTime = random.nextInt(2000) + 1000;
-                    System.out.println(
-                            Thread.currentThread().getName() + " sleeping for " + sleepTime + " milliseconds.");
-                    Thread.sleep(sleepTime);
+                    EventLog.log(EventLog.Event.ACTOR_SLEEPING, sleepTime);
+                    pause(sleepTime);
                 } catch (InterruptedException e) { // For graceful termination from main function
                     Thread.currentThread().interrupt();
                 } finally { // always happens, allow other consumers be releasing consumerTurn semaphore
-                    consumerTurn.release(); // Allow other consumers to consume
+                    if (turnTaken) {
+                        consumerTurn.release(); // Allow other consumers to consume
+                    }
                 }
             }
         }
     }
 
+    // Worker of a middle pipeline stage (--pipeline): drain items from the stage's input buffer, work on them
+    // and pass them on to the next buffer. No turns & no sleeps between batches, a stage works as fast as
+    // its input arrives and its output drains
+    static class StageWorker implements Runnable {
+        private final Pipeline.Stage stage;
+        private final int[] batch = new int[batchSize];
+
+        StageWorker(Pipeline.Stage stage) {
+            this.stage = stage;
+        }
+
+        @Override
+        public void run() {
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    int count = stage.in.remove_items(batch, batchSize); // At least one item
+                    long start = System.nanoTime();
+                    pause((long) stage.millisPerItem * count); // Simulate the stage's work per item
+                    stage.busyNanos.add(System.nanoTime() - start);
+                    stage.items.add(count);
+                    stage.itemsMetric.add(count);
+                    stage.out.insert_items(batch, count); // Blocks while the next stage is behind
+                } catch (InterruptedException e) { // For graceful termination from main function
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    // Build the buffer engine named on the command line, or null if the name is unknown
+    static BufferEngine createEngine(String name, int capacity) {
+        return createEngine(name, capacity, 0);
+    }
+
+    // Same for buffer number index of a pipeline. Mapped buffers after the first one get their own file,
+    // <ring-file>.<index>. With --shards=K the buffer is K engines of that kind with capacity slots each
+    // (ShardedBuffer), mapped shards in <ring-file>[.<index>].shard<k>
+    static BufferEngine createEngine(String name, int capacity, int index) {
+        String suffix = index == 0 ? "" : "." + index;
+        boolean known = name.equals("semaphore") || name.equals("ring") || name.equals("mapped");
+        if (ShardedBuffer.shardCount > 1 && name.equals("socket")) { // Clients see one ring, not K of them
+            throw new IllegalArgumentException("--shards can not be used with --engine=socket");
+        }
+        if (ShardedBuffer.shardCount > 1 && known) {
+            return new ShardedBuffer(ShardedBuffer.shardCount, ShardedBuffer.shardOrdering,
+                    k -> createEngine(name, capacity, suffix + ".shard" + k));
+        }
+        return createEngine(name, capacity, suffix);
+    }
+
+    private static BufferEngine createEngine(String name, int capacity, String suffix) {
+        switch (name) {
+            case "semaphore":
+                return new SemaphoreBufferEngine(capacity);
+            case "ring":
+                return new LockFreeRingBuffer(capacity);
+            case "mapped": // Ring kept in a file (--ring-file) so queued items survive a restart
+                return MappedRingBuffer.open(capacity, suffix);
+            case "socket": // Ring served to other processes on a Unix-domain socket (--socket)
+                return SocketBuffer.open(capacity, suffix);
+            default:
+                return null;
+        }
+    }
+
     public static void main(String[] args) {
 
         // Validate and parse command-line arguments
-        if (args.length != 3) {
-            System.out.println("Usage: java ProducerConsumer <sleep_time> <num_producers> <num_consumers>");
+        if (args.length < 3) {
+            System.out.println("Usage: java ProducerConsumer <sleep_time> <num_producers> <num_consumers>"
+                    + " [--engine=semaphore|ring|mapped|socket] [--capacity=N] [--batch=N]"
+                    + " [--role=both|producer|consumer] [--socket=<file>]"
+                    + " [--ring-file=<file>] [--fsync=batch|timed|none] [--fsync-interval=ms]"
+                    + " [--wait=<s>] [--producer-wait=<s>] [--consumer-wait=<s>] [--pacing=fixed|adaptive[=ms]]"
+                    + " [--pipeline=name:workers[:ms],...] [--shards=K|cores] [--ordering=shard|global]"
+                    + " [--seed=S] [--trace=<file> | --replay=<file>] [--drain=ms]"
+                    + " [--no-delays] [--log=stdout|<file>] [--log-level=off|info|verbose] [--log-buffer=N]"
+                    + " [--threads=platform|virtual|pool[=N]] [--actor-report] [--metrics[=ms]] [--metrics-csv=<file>]");
             System.exit(1);
         }
         // command line argument variables initialized to zero to start
@@ -172,49 +311,260 @@ public class ProducerConsumer { // Define the main class ProducerConsumer that c
             System.exit(1);
         }
 
-        // Initialize buffer and semaphores defined on lines 21 - 23
-        buffer = new int[BUFFER_SIZE]; // Fixed-size buffer
-        empty = new Semaphore(BUFFER_SIZE); // Initially, buffer is empty
-        full = new Semaphore(0); // No items in the buffer initially
+        // Optional flags after the three required arguments
+        String engineName = "semaphore"; // Original engine by default
+        int capacity = BUFFER_SIZE;
+        boolean batchGiven = false;
+        List<Pipeline.Stage> stages = new ArrayList<>(); // Middle stages of --pipeline, none by default
+        try {
+            for (int i = 3; i < args.length; i++) {
+                if (args[i].startsWith("--engine=")) {
+                    engineName = args[i].substring("--engine=".length());
+                } else if (args[i].startsWith("--capacity=")) {
+                    capacity = Integer.parseInt(args[i].substring("--capacity=".length()));
+                } else if (args[i].startsWith("--batch=")) {
+                    batchSize = Integer.parseInt(args[i].substring("--batch=".length()));
+                    batchGiven = true;
+                } else if (args[i].equals("--no-delays")) {
+                    simulateDelays = false;
+                } else if (args[i].startsWith("--seed=")) {
+                    seed = Long.parseLong(args[i].substring("--seed=".length()));
+                } else if (args[i].startsWith("--pipeline=")) {
+                    stages = Pipeline.parse(args[i].substring("--pipeline=".length()));
+                } else if (args[i].startsWith("--role=")) {
+                    role = Role.valueOf(args[i].substring("--role=".length()).toUpperCase());
+                } else if (args[i].equals("--pacing=fixed")) {
+                    pacingMaxMillis = 0;
+                } else if (args[i].equals("--pacing=adaptive")) {
+                    pacingMaxMillis = 3000; // Same longest sleep as the fixed 1 - 3 seconds
+                } else if (args[i].startsWith("--pacing=adaptive=")) {
+                    pacingMaxMillis = Double.parseDouble(args[i].substring("--pacing=adaptive=".length()));
+                    if (!(pacingMaxMillis > 0)) {
+                        throw new IllegalArgumentException("pacing time must be positive: " + pacingMaxMillis);
+                    }
+                } else if (!EventLog.configure(args[i]) && !Actors.configure(args[i])
+                        && !Metrics.configure(args[i]) && !MappedRingBuffer.configure(args[i])
+                        && !WaitStrategy.configure(args[i]) && !ShardedBuffer.configure(args[i])
+                        && !SyncTrace.configure(args[i]) && !Shutdown.configure(args[i])
+                        && !SocketBuffer.configure(args[i])) {
+                    // --log, --threads, --metrics, --ring-file/--fsync, --wait, --shards, --trace, --drain &
+                    // --socket options
+                    System.out.println("Unknown option: " + args[i]);
+                    System.exit(1);
+                }
+            }
+            shared = role != Role.BOTH || engineName.equals("socket");
+            if (role != Role.BOTH && !engineName.equals("mapped") && !engineName.equals("socket")) {
+                throw new IllegalArgumentException("--role=" + role.name().toLowerCase() + " needs a buffer other"
+                        + " processes can reach, --engine=mapped or --engine=socket");
+            }
+            if (role != Role.BOTH && !stages.isEmpty()) {
+                throw new IllegalArgumentException("a --pipeline runs in one process, it can not be used with --role");
+            }
+            // The global tickets are counters in this process's memory, the other process would hand out its own
+            if (role != Role.BOTH && ShardedBuffer.shardCount > 1
+                    && ShardedBuffer.shardOrdering == ShardedBuffer.Ordering.GLOBAL) {
+                throw new IllegalArgumentException("--ordering=global needs the whole run in one process, use"
+                        + " --ordering=shard with --role");
+            }
+            if (Actors.mode() == Actors.Mode.POOL && SyncTrace.configured()) { // Steps are traced per thread
+                throw new IllegalArgumentException("--trace and --replay need a thread per actor, not --threads=pool");
+            }
+            int stageWorkers = 0;
+            for (Pipeline.Stage stage : stages) {
+                stageWorkers += stage.workers;
+            }
+            Actors.requirePool((role == Role.CONSUMER ? 0 : numProducers) + stageWorkers
+                    + (role == Role.PRODUCER ? 0 : numConsumers), "producers, stage workers & consumers");
+            if (shared && SyncTrace.configured()) { // The other process's steps can not be recorded or ordered
+                throw new IllegalArgumentException("--trace and --replay need the whole run in one process");
+            }
+            MappedRingBuffer.shared = role != Role.BOTH;
+            seed = SyncTrace.start("ProducerConsumer", args, seed); // A replay uses the recorded seed
+        } catch (IllegalArgumentException e) { // Bad number, log level, log file, trace file or role
+            System.out.println("Invalid option value: " + e.getMessage());
+            System.exit(1);
+        }
+        if (capacity <= 0 || capacity > BufferEngine.MAX_CAPACITY) {
+            System.out.println("Capacity must be between 1 and " + BufferEngine.MAX_CAPACITY + ".");
+            System.exit(1);
+        }
+
+        // Initialize the buffer engine, one per link of the pipeline: just one without --pipeline
+        BufferEngine[] buffers = new BufferEngine[stages.size() + 1];
+        int smallest = Integer.MAX_VALUE; // A mapped buffer keeps the size of an existing file
+        for (int b = 0; b < buffers.length; b++) {
+            try {
+                buffers[b] = createEngine(engineName, capacity, b);
+            } catch (IllegalArgumentException e) { // Ring file can not be opened, or is too big to map
+                System.out.println("Invalid option value: " + e.getMessage());
+                System.exit(1);
+            }
+            if (buffers[b] == null) {
+                System.out.println("Unknown engine: " + engineName + ". Use semaphore, ring, mapped or socket.");
+                System.exit(1);
+            }
+            smallest = Math.min(smallest, buffers[b].capacity());
+            if (!shared) { // Items a mapped buffer recovered from its file have to drain too
+                shutdown.admit(buffers[b].size());
+            }
+            if (SyncTrace.on()) { // Every enqueue & dequeue becomes a traced step
+                buffers[b] = new TracedBuffer(buffers[b]);
+            }
+        }
+        engine = buffers[0];
+        if (!batchGiven) { // Default batch shrinks to fit a small buffer
+            batchSize = Math.min(BUFFER_SIZE, smallest);
+        }
+        if (batchSize <= 0 || batchSize > smallest) { // A batch has to fit in the buffer
+            System.out.println("Batch size must be between 1 and the capacity (" + smallest + ").");
+            System.exit(1);
+        }
+        for (BufferEngine buffer : buffers) {
+            buffer.useWaitStrategies(WaitStrategy.forProducers(buffer.producerWait()),
+                    WaitStrategy.forConsumers(buffer.consumerWait()));
+            if (shared && !(buffer instanceof SocketBuffer.Host) // Only the serving process has the ring here
+                    && (buffer.producerWait().blocks() || buffer.consumerWait().blocks())) {
+                System.out.println("Invalid option value: block waits for a signal from this process, use spin,"
+                        + " yield, park or timed with a buffer shared between processes");
+                System.exit(1);
+            }
+        }
+        System.out.println("Using " + engine.name() + " buffer engine with " + engine.capacity() + " slots"
+                + " (producers wait: " + engine.producerWait().name() + ", consumers wait: "
+                + engine.consumerWait().name() + ")"
+                + (buffers.length > 1 ? ", " + buffers.length + " buffers in the pipeline" : "")
+                + (role != Role.BOTH ? ", " + role.name().toLowerCase() + "s only" : ""));
+        Pipeline pipeline = null;
+        if (stages.isEmpty()) {
+            Metrics.gauge("buffer.occupancy", engine::size);
+        } else {
+            pipeline = new Pipeline(numProducers, producedTotal::sum, stages, numConsumers, consumedTotal::sum,
+                    buffers);
+        }
+        Metrics.start("ProducerConsumer"); // Periodic snapshots & JMX if --metrics or --metrics-csv was given
 
         // Create and start producer threads
         // Producers created from command line argument value
         // Creates an array to hold references to producer threads
-        Thread[] producerThreads = new Thread[numProducers];
+        // Threads are platform or virtual threads or pool threads depending on --threads
+        Actors.Startup startup = Actors.beginStartup(); // Measure startup time & memory with --actor-report
+        if (role == Role.CONSUMER) { // The producers are in another process
+            numProducers = 0;
+        } else if (role == Role.PRODUCER) {
+            numConsumers = 0;
+        }
+        Actors.Actor[] producerThreads = new Actors.Actor[numProducers];
         for (int i = 0; i < numProducers; i++) {
-            Producer producer = new Producer(); // Creates a new producer object
-            Thread producerThread = new Thread(producer); // Wraps the producer object in a new thread
-            producerThread.setName("Producer-" + (i + 1)); // Assigns a name to producer for easy log identification
-            producerThread.start(); // Start producer thread
+            Producer producer = new Producer(engine, i + 1); // Creates a new producer object
+            // Wraps the producer object in a new thread with a name for easy log identification & starts it
+            Actors.Actor producerThread = Actors.start(producer, "Producer-" + (i + 1));
             producerThreads[i] = producerThread; // Store the producer thread for later use in the array
                                                  // for easy termination etc.
         }
 
+        // Workers of the pipeline stages, if any, named after their stage
+        List<Actors.Actor> stageThreads = new ArrayList<>();
+        for (Pipeline.Stage stage : stages) {
+            for (int i = 0; i < stage.workers; i++) {
+                stageThreads.add(Actors.start(new StageWorker(stage), stage.name + "-" + (i + 1)));
+            }
+        }
+
         // Create and start consumer threads. Same idea as above for producer threads
-        Thread[] consumerThreads = new Thread[numConsumers];
+        Actors.Actor[] consumerThreads = new Actors.Actor[numConsumers];
         for (int i = 0; i < numConsumers; i++) {
-            Consumer consumer = new Consumer();
-            Thread consumerThread = new Thread(consumer);
-            consumerThread.setName("Consumer-" + (i + 1));
-            consumerThread.start();
-            consumerThreads[i] = consumerThread;
+            Consumer consumer = new Consumer(buffers[buffers.length - 1], i + 1);
+            consumerThreads[i] = Actors.start(consumer, "Consumer-" + (i + 1));
+        }
+        if (startup != null) {
+            startup.finish(numProducers + stageThreads.size() + numConsumers);
+        }
+        if (pipeline != null) {
+            pipeline.start();
         }
 
-        // Main thread sleeps for the specified time
+        // Main thread sleeps for the specified time. A replay waits for the turn of the recorded shutdown instead
         try {
-            Thread.sleep(sleepTime * 1000); // Convert seconds to milliseconds
+            if (!SyncTrace.replaying()) {
+                Thread.sleep(sleepTime * 1000); // Convert seconds to milliseconds
+            }
         } catch (InterruptedException e) { // If the main thread is interrupted during sleep, it handles the exception
             Thread.currentThread().interrupt();
         }
 
-        // Interrupt threads for graceful termination
-        for (Thread t : producerThreads) { // Interrupt producer threads
+        // Shut down in two steps. 1: producers put no new batches in (a batch already admitted still goes in).
+        // 2: consumers & pipeline stages keep going until everything admitted is consumed, or --drain ms
+        // passed. The consumer that takes the last item counts down a latch, so main wakes up right away
+        SyncTrace.begin(); // Traced like any other step, so a replay stops admitting at the recorded point
+        try {
+            shutdown.stopAdmitting();
+            EventLog.log(EventLog.Event.MAIN_SHUTTING_DOWN, Shutdown.drainMillis);
+        } finally {
+            SyncTrace.end(SyncTrace.Step.SHUTDOWN, 0);
+        }
+        try {
+            shutdown.awaitDrained();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        // Interrupt threads for graceful termination. After a full drain they are all idle
+        for (Actors.Actor t : producerThreads) { // Interrupt producer threads
+            t.interrupt();
+        }
+        for (Actors.Actor t : stageThreads) { // Interrupt pipeline stage workers
             t.interrupt();
         }
-        for (Thread t : consumerThreads) { // Interrupt consumer threads
+        for (Actors.Actor t : consumerThreads) { // Interrupt consumer threads
             t.interrupt();
         }
+        // Wait for them to stop before the engines are closed, so nothing is written to a mapped
+        // engine's file after its last flush
+        try {
+            for (Actors.Actor t : producerThreads) {
+                t.join(1000);
+            }
+            for (Actors.Actor t : stageThreads) {
+                t.join(1000);
+            }
+            for (Actors.Actor t : consumerThreads) {
+                t.join(1000);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        long queued = 0; // Abandoned items still in a buffer. The rest were admitted batches a producer was
+                         // still waiting to put in, or items in a stage worker's hands
+        for (BufferEngine buffer : buffers) {
+            queued += buffer.size();
+        }
+        shutdown.report("items");
+        if (shared) { // Not ours to drain, see shared
+            if (queued > 0) {
+                System.out.println("  " + queued + " items left in the shared buffer" + (engineName.equals("mapped")
+                        ? " (kept in the ring file)" : engine instanceof SocketBuffer.Host
+                        ? " (lost, this process was serving it)" : ""));
+            }
+        } else if (shutdown.outstanding() > 0) {
+            System.out.println("  " + queued + " of them still queued" + (engineName.equals("mapped")
+                    ? " (kept in the ring file for the next run)" : "")
+                    + ", the rest waiting to go in or between pipeline stages");
+        }
+        for (BufferEngine buffer : buffers) {
+            buffer.close();
+            if (buffer instanceof ShardedBuffer) { // How often consumers found their home shard empty
+                ShardedBuffer sharded = (ShardedBuffer) buffer;
+                System.out.printf("%s: %.1f%% of takes stolen from another shard (%d steals)%n", sharded.name(),
+                        sharded.stealShare() * 100, sharded.steals());
+            }
+        }
+        if (pipeline != null) { // Throughput & queue depth of every stage
+            pipeline.report();
+        }
+        SyncTrace.close(); // Finish a --trace recording, or say how far a --replay got
 
-        System.out.println("Main thread has terminated the application."); // Alert user program is done
+        EventLog.log(EventLog.Event.MAIN_TERMINATED); // Alert user program is done
+        Metrics.stop(); // Final snapshot
     }
 }
@@ -0,0 +1,233 @@
+import java.util.concurrent.atomic.AtomicLong; // Head/tail counters are claimed with compare-and-set
+import java.util.concurrent.atomic.AtomicLongArray; // One sequence number per slot
+
+// Slot bookkeeping of the lock-free multi-producer/multi-consumer ring (bounded MPMC queue by Dmitry Vyukov:
+// https://www.1024cores.net/home/lock-free-algorithms/queues/bounded-mpmc-queue), without the slots
+// themselves. The int ring (LockFreeRingBuffer), the long ring (LongRingBuffer) and the object ring
+// (ObjectRingBuffer) extend it and keep their values in an array of their own type, so nothing is boxed.
+// Every slot carries a sequence number that says whose turn it is:
+//   sequence == pos         -> slot is free for the producer that claims position pos
+//   sequence == pos + 1     -> slot holds the item written at pos, ready for a consumer
+//   sequence == pos + size  -> consumer is done, slot is free for the producer one lap later
+// Producers only contend on tail, consumers only contend on head, and nobody holds a lock, so
+// many producers and consumers can make progress at the same time on different cores.
+// The size is a power of two so a position maps to its slot with pos & mask.
+// What a thread does while the buffer stays full or empty is up to each side's WaitStrategy.
+abstract class RingSequencer {
+
+    static final long NONE = Long.MIN_VALUE; // No position: buffer full (claim) or empty (take)
+
+    private final AtomicLongArray sequences; // Slot sequence numbers (see table above)
+    final int size; // Number of slots, always a power of two
+    final int mask; // size - 1
+
+    // Head and tail live on their own cache lines so producers and consumers do not invalidate
+    // each other's line every time one of them moves (false sharing)
+    private final PaddedCounter tail = new PaddedCounter(); // Next position a producer will claim
+    private final PaddedCounter head = new PaddedCounter(); // Next position a consumer will claim
+
+    // How producers wait while the buffer is full & consumers while it is empty. Spin-yield-park by default.
+    // Set before the buffer is shared with other threads
+    WaitStrategy producerWait = new WaitStrategy.SpinPark();
+    WaitStrategy consumerWait = new WaitStrategy.SpinPark();
+
+    RingSequencer(int capacity) {
+        size = BufferEngine.slotsFor(capacity); // Round up to a power of two
+        mask = size - 1;
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i); // Every slot starts free for the producer of the first lap
+        }
+    }
+
+    // Slot of a position. Wraps around the ring circularly
+    final int index(long pos) {
+        return (int) (pos & mask);
+    }
+
+    // Claim one position for a producer without waiting. Returns NONE if the buffer is full.
+    final long tryClaim() {
+        long pos = tail.get();
+        while (true) {
+            long diff = sequences.get(index(pos)) - pos;
+            if (diff == 0) { // Slot is free for this position, try to claim it
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    return pos;
+                }
+                pos = tail.get(); // Another producer won the slot, retry with the new tail
+            } else if (diff < 0) { // Slot still holds an item from the previous lap, buffer is full
+                return NONE;
+            } else { // Another producer already moved past pos
+                pos = tail.get();
+            }
+        }
+    }
+
+    // Claim one position, waiting until a consumer frees a slot
+    final long claim() throws InterruptedException {
+        int tries = 0;
+        long pos;
+        while ((pos = tryClaim()) == NONE) {
+            tries = producerWait.idle(tries);
+        }
+        producerWait.done(tries);
+        return pos;
+    }
+
+    // Claim count consecutive positions for a batch with one CAS, waiting until that many slots are free.
+    // Uses head as the gate: positions up to head + size are either free or about to be released by a
+    // consumer, so each slot still has to be checked with awaitFree before it is written.
+    final long claim(int count) throws InterruptedException {
+        int tries = 0;
+        long pos;
+        while ((pos = tryClaim(count)) == NONE) { // Not enough room yet
+            tries = producerWait.idle(tries);
+        }
+        producerWait.done(tries);
+        return pos;
+    }
+
+    // Same without waiting: NONE if fewer than count slots are free right now
+    final long tryClaim(int count) {
+        if (count > size) {
+            throw new IllegalArgumentException("batch of " + count + " does not fit in " + size + " slots");
+        }
+        while (true) {
+            long pos = tail.get();
+            if (pos + count - head.get() > size) {
+                return NONE;
+            }
+            if (tail.compareAndSet(pos, pos + count)) {
+                return pos;
+            }
+        }
+    }
+
+    // Wait until the slot for a batch-claimed position has been handed back by its consumer. That consumer
+    // already claimed the slot's old item and is mid-copy, so this is normally very short, but the consumer
+    // can be descheduled in the middle, so the wait goes through producerWait like any other. An interrupt is
+    // remembered rather than obeyed: the batch's positions are claimed and have to be published, or every
+    // consumer would stall at them. Returns true if the thread was interrupted, the caller re-asserts it
+    // once the batch is published
+    final boolean awaitFree(long pos) {
+        int index = index(pos);
+        if (sequences.get(index) == pos) {
+            return false;
+        }
+        boolean interrupted = false;
+        int tries = 0;
+        while (sequences.get(index) != pos) {
+            try {
+                tries = producerWait.idle(tries);
+            } catch (InterruptedException e) { // Finish the batch first, see above
+                interrupted = true;
+                tries = 0; // A blocking strategy dropped its registration, start over
+            }
+        }
+        producerWait.done(tries);
+        return interrupted;
+    }
+
+    // Hand a written position to consumers: ordered after the item write
+    final void publish(long pos) {
+        sequences.lazySet(index(pos), pos + 1);
+        consumerWait.signal(); // Nothing unless consumers block
+    }
+
+    // publish() for one position of a batch. The caller wakes consumers once for the whole batch with
+    // consumerWait.signal() afterwards
+    final void publishQuietly(long pos) {
+        sequences.lazySet(index(pos), pos + 1);
+    }
+
+    // Claim one published position for a consumer without waiting. Returns NONE if the buffer is empty.
+    final long tryTake() {
+        long pos = head.get();
+        while (true) {
+            long diff = sequences.get(index(pos)) - (pos + 1);
+            if (diff == 0) { // Slot holds the item for this position, try to claim it
+                if (head.compareAndSet(pos, pos + 1)) {
+                    return pos;
+                }
+                pos = head.get();
+            } else if (diff < 0) { // Producer has not published this slot yet, buffer is empty
+                return NONE;
+            } else {
+                pos = head.get();
+            }
+        }
+    }
+
+    // Claim one published position, waiting until a producer publishes
+    final long take() throws InterruptedException {
+        int tries = 0;
+        long pos;
+        while ((pos = tryTake()) == NONE) {
+            tries = consumerWait.idle(tries);
+        }
+        consumerWait.done(tries);
+        return pos;
+    }
+
+    // Batch drain, used as: pos = headPosition(), ready = readyFrom(pos, max), then takeRun(pos, ready)
+    // claims them all with one CAS (false if another consumer moved head first, start over)
+    final long headPosition() {
+        return head.get();
+    }
+
+    // Number of published slots in a row starting at pos, at most max
+    final int readyFrom(long pos, int max) {
+        int ready = 0;
+        while (ready < max && sequences.get(index(pos + ready)) == pos + ready + 1) {
+            ready++;
+        }
+        return ready;
+    }
+
+    final boolean takeRun(long pos, int count) {
+        return head.compareAndSet(pos, pos + count);
+    }
+
+    // Hand a consumed position's slot to the producer one lap later
+    final void release(long pos) {
+        sequences.lazySet(index(pos), pos + size);
+        producerWait.signal(); // Nothing unless producers block
+    }
+
+    // release() for one position of a batch, followed by one producerWait.signal()
+    final void releaseQuietly(long pos) {
+        sequences.lazySet(index(pos), pos + size);
+    }
+
+    // Choose how each side waits, see WaitStrategy
+    public void useWaitStrategies(WaitStrategy producers, WaitStrategy consumers) {
+        producerWait = producers;
+        consumerWait = consumers;
+    }
+
+    public WaitStrategy producerWait() {
+        return producerWait;
+    }
+
+    public WaitStrategy consumerWait() {
+        return consumerWait;
+    }
+
+    // Approximate number of items in the buffer
+    public int size() {
+        long count = tail.get() - head.get();
+        return (int) Math.max(0, Math.min(count, size));
+    }
+
+    // Number of slots in the buffer
+    public int capacity() {
+        return size;
+    }
+
+    // AtomicLong followed by enough padding to fill the rest of a 64 byte cache line
+    @SuppressWarnings("unused")
+    static final class PaddedCounter extends AtomicLong {
+        private static final long serialVersionUID = 1L;
+        long p1, p2, p3, p4, p5, p6, p7;
+    }
+}
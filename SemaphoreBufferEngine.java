@@ -0,0 +1,248 @@
+import java.util.concurrent.Semaphore; // Import Semaphore to control access to the shared buffer
+
+// The original ProducerConsumer buffer: an int[] guarded by a mutex semaphore with empty/full
+// semaphores counting free and filled slots. Kept as the reference engine.
+public class SemaphoreBufferEngine implements BufferEngine {
+
+    private final int[] buffer; // The shared buffer, power of two sized
+    private final int mask; // buffer.length - 1, wraps an index with & instead of %
+    private int in = 0; // Producer's index in the buffer
+    private int out = 0; // Consumer's index in the buffer
+
+    private final Semaphore empty; // Tracks empty slots in the buffer
+    private final Semaphore full = new Semaphore(0); // Tracks filled slots in the buffer. No items initially
+    private final Semaphore mutex = new Semaphore(1); // Ensures mutual exclusion when accessing the buffer
+
+    // How producers wait for empty slots & consumers for full ones. Blocking on the semaphores by default,
+    // any other WaitStrategy polls them with tryAcquire instead
+    private WaitStrategy producerWait = new WaitStrategy.Blocking();
+    private WaitStrategy consumerWait = new WaitStrategy.Blocking();
+
+    // Time spent blocked on each semaphore, see Metrics
+    private final Metrics.Histogram blockedEmpty = Metrics.histogram("buffer.blocked_empty");
+    private final Metrics.Histogram blockedFull = Metrics.histogram("buffer.blocked_full");
+    private final Metrics.Histogram blockedMutex = Metrics.histogram("buffer.blocked_mutex");
+
+    public SemaphoreBufferEngine(int capacity) {
+        buffer = new int[BufferEngine.slotsFor(capacity)]; // Fixed-size buffer rounded up to a power of two
+        mask = buffer.length - 1;
+        empty = new Semaphore(buffer.length); // Initially, buffer is empty
+    }
+
+    @Override
+    public void insert_item(int item) throws InterruptedException {
+        acquire(empty, 1, producerWait, blockedEmpty); // Wait for an empty slot
+        lock(empty, 1);
+        try {
+            put(item);
+        } finally {
+            mutex.release(); // Unlock the buffer
+            full.release(); // Signal a filled slot because production has completed
+        }
+    }
+
+    @Override
+    public int remove_item() throws InterruptedException {
+        acquire(full, 1, consumerWait, blockedFull); // Wait for a filled slot
+        lock(full, 1);
+        try {
+            return take();
+        } finally {
+            mutex.release(); // Unlock the buffer
+            empty.release(); // Signal an empty slot
+        }
+    }
+
+    @Override
+    public void insert_items(int[] items, int count) throws InterruptedException {
+        if (count <= 0) {
+            return;
+        }
+        if (count > buffer.length) {
+            throw new IllegalArgumentException("batch of " + count + " does not fit in " + buffer.length + " slots");
+        }
+        acquire(empty, count, producerWait, blockedEmpty); // Claim count empty slots at once
+        lock(empty, count);
+        try {
+            for (int i = 0; i < count; i++) { // Fill them under one mutex acquisition
+                put(items[i]);
+            }
+        } finally {
+            mutex.release(); // Unlock the buffer
+            full.release(count); // Publish the whole batch to consumers
+        }
+    }
+
+    @Override
+    public int remove_items(int[] dst, int max) throws InterruptedException {
+        if (max <= 0) {
+            return 0;
+        }
+        acquire(full, 1, consumerWait, blockedFull); // Wait for at least one filled slot
+        int count = 1;
+        while (count < max && full.tryAcquire()) { // Take whatever else is ready without waiting
+            count++;
+        }
+        lock(full, count);
+        try {
+            for (int i = 0; i < count; i++) {
+                dst[i] = take();
+            }
+        } finally {
+            mutex.release(); // Unlock the buffer
+            empty.release(count); // Signal the freed slots
+        }
+        return count;
+    }
+
+    @Override
+    public boolean try_insert_item(int item) {
+        if (!empty.tryAcquire()) { // Buffer full
+            return false;
+        }
+        lockUninterruptibly(); // Only held for one slot write so this is short
+        try {
+            put(item);
+        } finally {
+            mutex.release();
+            full.release();
+        }
+        return true;
+    }
+
+    @Override
+    public boolean try_insert_items(int[] items, int count) {
+        if (count <= 0) {
+            return true;
+        }
+        if (count > buffer.length) {
+            throw new IllegalArgumentException("batch of " + count + " does not fit in " + buffer.length + " slots");
+        }
+        if (!empty.tryAcquire(count)) { // Fewer than count free slots
+            return false;
+        }
+        lockUninterruptibly();
+        try {
+            for (int i = 0; i < count; i++) {
+                put(items[i]);
+            }
+        } finally {
+            mutex.release();
+            full.release(count);
+        }
+        return true;
+    }
+
+    @Override
+    public int try_remove_items(int[] dst, int max) {
+        int count = 0;
+        while (count < max && full.tryAcquire()) { // Take whatever is ready
+            count++;
+        }
+        if (count == 0) {
+            return 0;
+        }
+        lockUninterruptibly();
+        try {
+            for (int i = 0; i < count; i++) {
+                dst[i] = take();
+            }
+        } finally {
+            mutex.release();
+            empty.release(count);
+        }
+        return count;
+    }
+
+    // Take permits from empty or full, timing the wait for the metrics
+    private static void acquire(Semaphore slots, int permits, WaitStrategy wait, Metrics.Histogram blocked)
+            throws InterruptedException {
+        long start = Metrics.now();
+        if (wait.blocks()) {
+            slots.acquire(permits); // The semaphore blocks & wakes us itself
+        } else {
+            int tries = 0;
+            while (!slots.tryAcquire(permits)) {
+                tries = wait.idle(tries);
+            }
+            wait.done(tries);
+        }
+        blocked.recordSince(start);
+    }
+
+    // Lock the buffer for exclusive access. If interrupted while waiting, give the permits taken
+    // from slots back so the count stays right
+    private void lock(Semaphore slots, int permits) throws InterruptedException {
+        long start = Metrics.now();
+        try {
+            mutex.acquire();
+        } catch (InterruptedException e) {
+            slots.release(permits);
+            throw e;
+        }
+        blockedMutex.recordSince(start);
+    }
+
+    private void lockUninterruptibly() {
+        long start = Metrics.now();
+        mutex.acquireUninterruptibly();
+        blockedMutex.recordSince(start);
+    }
+
+    // Write one item at the producer's index. Caller holds mutex
+    private void put(int item) {
+        buffer[in] = item; // Add the item to the buffer at the producer's index
+        // Log the producer event including producer thread name, the integer produced,
+        // & index where int was placed. Only a fixed-size record is written here, the text is built
+        // by the EventLog drain thread outside the mutex
+        EventLog.log(EventLog.Event.PRODUCED_AT, item, in);
+        in = (in + 1) & mask; // Move to the next index circularly. Power of two size so & wraps like %
+    }
+
+    // Read one item at the consumer's index. Caller holds mutex
+    private int take() {
+        int item = buffer[out]; // Remove the item from the buffer with out index
+        // Log what was removed. Notify thread name, consumed item,
+        // and which index it was consumed from
+        EventLog.log(EventLog.Event.CONSUMED_FROM, item, out);
+        buffer[out] = 0; // Clear the buffer slot for clarity
+        out = (out + 1) & mask; // Move to the next index circularly
+        return item;
+    }
+
+    @Override
+    public void useWaitStrategies(WaitStrategy producers, WaitStrategy consumers) {
+        producerWait = producers;
+        consumerWait = consumers;
+    }
+
+    @Override
+    public WaitStrategy producerWait() {
+        return producerWait;
+    }
+
+    @Override
+    public WaitStrategy consumerWait() {
+        return consumerWait;
+    }
+
+    @Override
+    public int capacity() {
+        return buffer.length;
+    }
+
+    @Override
+    public int size() {
+        return full.availablePermits(); // Published items not yet claimed by a consumer
+    }
+
+    @Override
+    public boolean serializesTurns() {
+        return true; // Original behavior: one producer and one consumer at a time
+    }
+
+    @Override
+    public String name() {
+        return "semaphore";
+    }
+}
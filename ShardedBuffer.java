@@ -0,0 +1,426 @@
+import java.util.Arrays; // Recovered shard sizes in an error
+import java.util.concurrent.atomic.AtomicInteger; // Hands out home shards
+import java.util.concurrent.atomic.AtomicLong; // Global tickets
+import java.util.concurrent.atomic.AtomicLongArray; // Whose turn it is on each shard
+import java.util.concurrent.atomic.LongAdder; // Take & steal counts, added to by every consumer
+import java.util.function.IntFunction;
+
+// K independent buffers behind one BufferEngine (--shards=K), so producers and consumers spread over K sets
+// of cache lines instead of all fighting over one head, one tail (or one mutex). Java can not pin a thread
+// to a core, so "affinity" is a home shard per thread: each producer and each consumer thread gets one the
+// first time it uses the buffer, handed out round-robin so K producers land on K different shards.
+// Two orderings (--ordering):
+//   shard   (default) a producer always inserts into its home shard, so one producer's items stay in order.
+//           A consumer drains its home shard first and steals from the others (starting with its
+//           neighbour) when it is empty. Producers & consumers on different shards never touch the same
+//           cache line, so throughput can grow with the number of cores
+//   global  items are spread over the shards by a global ticket: the i-th item goes to shard i % K and the
+//           i-th take reads shard i % K. Each shard has a put turn & a take turn (ticket / K), so a shard is
+//           filled and emptied in ticket order even with many producers: the i-th take gets the i-th item.
+//           A ticket is only handed out for an item or a slot that is sure to come (the RingSequencer
+//           gate), and every ticket has a partner on the other side waiting for it, so a thread holding
+//           tickets finishes them before it obeys an interrupt. The two ticket counters are shared by
+//           everyone, which costs some of the scaling; there is no stealing
+// Steals are counted in shard.steals & shard.steal_pct (Metrics gauges) and in stealShare().
+public class ShardedBuffer implements BufferEngine {
+
+    enum Ordering { SHARD, GLOBAL }
+
+    // Settings from the command line. 1 shard = no sharding, the engine is used as it is
+    static int shardCount = 1;
+    static Ordering shardOrdering = Ordering.SHARD;
+
+    // Handle --shards=K|cores & --ordering=shard|global. Returns false if the argument is not ours.
+    public static boolean configure(String arg) {
+        if (arg.startsWith("--shards=")) {
+            String value = arg.substring("--shards=".length());
+            shardCount = value.equals("cores") ? Runtime.getRuntime().availableProcessors() : Integer.parseInt(value);
+            if (shardCount <= 0) {
+                throw new IllegalArgumentException("shard count must be positive: " + shardCount);
+            }
+        } else if (arg.startsWith("--ordering=")) {
+            shardOrdering = Ordering.valueOf(arg.substring("--ordering=".length()).toUpperCase());
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    private final BufferEngine[] shards;
+    private final int shardSlots; // Slots of the smallest shard, the largest batch one shard can take
+    private final Ordering ordering;
+
+    private final AtomicInteger nextProducerHome = new AtomicInteger();
+    private final AtomicInteger nextConsumerHome = new AtomicInteger();
+    private final ThreadLocal<int[]> producerHome; // int[1] so the lookup does not box
+    private final ThreadLocal<int[]> consumerHome;
+
+    // Ordering.GLOBAL: next ticket for an insert & for a take. put - take is the number of items in flight
+    private final AtomicLong putTicket = new AtomicLong();
+    private final AtomicLong takeTicket = new AtomicLong();
+    private final AtomicLongArray putTurn; // Per shard: the round (ticket / K) whose item goes in next
+    private final AtomicLongArray takeTurn; // Per shard: the round whose item comes out next
+
+    private final LongAdder homeTakes = new LongAdder(); // Batches a consumer took from its home shard
+    private final LongAdder steals = new LongAdder(); // Batches a consumer took from another shard
+
+    // How consumers wait while every shard is empty. The shards get the same strategies, so a blocking
+    // strategy is woken by whichever shard a producer fills
+    private WaitStrategy producerWait = new WaitStrategy.SpinPark();
+    private WaitStrategy consumerWait = new WaitStrategy.SpinPark();
+
+    // count shards made by newShard(index)
+    public ShardedBuffer(int count, Ordering ordering, IntFunction<BufferEngine> newShard) {
+        if (count <= 0) {
+            throw new IllegalArgumentException("shard count must be positive: " + count);
+        }
+        this.ordering = ordering;
+        shards = new BufferEngine[count];
+        int smallest = Integer.MAX_VALUE;
+        for (int i = 0; i < count; i++) {
+            shards[i] = newShard.apply(i);
+            smallest = Math.min(smallest, shards[i].capacity());
+        }
+        shardSlots = smallest;
+        putTurn = new AtomicLongArray(count);
+        takeTurn = new AtomicLongArray(count);
+        if (ordering == Ordering.GLOBAL) {
+            seedTickets();
+        }
+        producerHome = ThreadLocal.withInitial(() -> new int[] { nextProducerHome.getAndIncrement() % count });
+        consumerHome = ThreadLocal.withInitial(() -> new int[] { nextConsumerHome.getAndIncrement() % count });
+        Metrics.gauge("shard.steals", steals::sum);
+        Metrics.gauge("shard.steal_pct", () -> Math.round(stealShare() * 100));
+    }
+
+    // Ordering.GLOBAL with mapped shards that recovered items from their files: the tickets and turns start
+    // where the last run left off instead of at 0, or the recovered items would never be taken and their
+    // slots would count as free. N items left in global order are the tickets s .. s+N-1 for some s < K, so
+    // every shard holds N / K of them and the N % K shards from shard s on (wrapping around) one more. Find
+    // that s; with anything else in the files the items were not left by a global run
+    private void seedTickets() {
+        int k = shards.length;
+        int[] left = new int[k];
+        long total = 0;
+        for (int i = 0; i < k; i++) {
+            left[i] = shards[i].size();
+            total += left[i];
+        }
+        if (total == 0) {
+            return;
+        }
+        for (int start = 0; start < k; start++) {
+            boolean fits = true;
+            for (int i = 0; i < k && fits; i++) {
+                fits = left[i] == total / k + (Math.floorMod(i - start, k) < total % k ? 1 : 0);
+            }
+            if (fits) {
+                takeTicket.set(start);
+                putTicket.set(start + total);
+                for (int i = 0; i < k; i++) {
+                    long firstTicket = start + Math.floorMod(i - start, k); // Oldest ticket of shard i
+                    takeTurn.set(i, firstTicket / k);
+                    putTurn.set(i, firstTicket / k + left[i]);
+                }
+                return;
+            }
+        }
+        throw new IllegalArgumentException("the items recovered in the shards (" + Arrays.toString(left)
+                + ") were not left in global order, take them out with --ordering=shard first");
+    }
+
+    // Share of consumer batches that were stolen from another shard, 0 to 1
+    public double stealShare() {
+        long stolen = steals.sum();
+        long total = stolen + homeTakes.sum();
+        return total == 0 ? 0 : (double) stolen / total;
+    }
+
+    public long steals() {
+        return steals.sum();
+    }
+
+    @Override
+    public void insert_item(int item) throws InterruptedException {
+        if (ordering == Ordering.GLOBAL) {
+            finish(put(claimPuts(1), item));
+        } else {
+            shards[producerHome.get()[0]].insert_item(item);
+        }
+        consumerWait.signal(); // For consumers waiting on all shards at once
+    }
+
+    @Override
+    public void insert_items(int[] items, int count) throws InterruptedException {
+        if (count <= 0) {
+            return;
+        }
+        if (ordering == Ordering.GLOBAL) {
+            int most = capacity(); // Can not hold tickets for more than fits
+            for (int done = 0; done < count; done += most) {
+                int n = Math.min(most, count - done);
+                long first = claimPuts(n); // One ticket per item, items spread round-robin
+                boolean interrupted = false;
+                for (int i = 0; i < n; i++) {
+                    interrupted |= put(first + i, items[done + i]);
+                }
+                finish(interrupted);
+            }
+        } else {
+            BufferEngine home = shards[producerHome.get()[0]];
+            if (count <= shardSlots) {
+                home.insert_items(items, count);
+            } else { // Larger than one shard: insert it a shard-sized piece at a time, still in order
+                int[] piece = new int[shardSlots];
+                for (int done = 0; done < count; done += shardSlots) {
+                    int n = Math.min(shardSlots, count - done);
+                    System.arraycopy(items, done, piece, 0, n);
+                    home.insert_items(piece, n);
+                }
+            }
+        }
+        consumerWait.signal();
+    }
+
+    @Override
+    public int remove_item() throws InterruptedException {
+        int[] one = new int[1];
+        remove_items(one, 1);
+        return one[0];
+    }
+
+    @Override
+    public int remove_items(int[] dst, int max) throws InterruptedException {
+        if (max <= 0) {
+            return 0;
+        }
+        int tries = 0;
+        int count;
+        while ((count = try_remove_items(dst, max)) == 0) { // Every shard empty
+            tries = consumerWait.idle(tries);
+        }
+        consumerWait.done(tries);
+        return count;
+    }
+
+    @Override
+    public boolean try_insert_item(int item) {
+        if (ordering == Ordering.GLOBAL) {
+            long ticket = tryClaimPuts(1);
+            if (ticket < 0) {
+                return false;
+            }
+            finish(put(ticket, item)); // Short: only other ticket holders are in the way
+            return true; // put signalled the consumers
+        } else if (!shards[producerHome.get()[0]].try_insert_item(item)) {
+            return false;
+        }
+        consumerWait.signal();
+        return true;
+    }
+
+    // Ordering.SHARD: all in the home shard, so a batch larger than one shard can not go in in one go
+    @Override
+    public boolean try_insert_items(int[] items, int count) {
+        if (count <= 0) {
+            return true;
+        }
+        if (ordering == Ordering.GLOBAL) {
+            if (count > capacity()) {
+                throw new IllegalArgumentException("batch of " + count + " does not fit in " + capacity() + " slots");
+            }
+            long first = tryClaimPuts(count);
+            if (first < 0) {
+                return false;
+            }
+            boolean interrupted = false;
+            for (int i = 0; i < count; i++) {
+                interrupted |= put(first + i, items[i]);
+            }
+            finish(interrupted);
+            return true;
+        }
+        if (count > shardSlots) {
+            throw new IllegalArgumentException("batch of " + count + " does not fit in one shard of " + shardSlots
+                    + " slots");
+        }
+        if (!shards[producerHome.get()[0]].try_insert_items(items, count)) {
+            return false;
+        }
+        consumerWait.signal();
+        return true;
+    }
+
+    @Override
+    public int try_remove_items(int[] dst, int max) {
+        if (max <= 0) {
+            return 0;
+        }
+        if (ordering == Ordering.GLOBAL) {
+            long first;
+            int count;
+            do { // Only take tickets for items a producer has a ticket for
+                first = takeTicket.get();
+                count = (int) Math.min(max, putTicket.get() - first);
+                if (count <= 0) {
+                    return 0;
+                }
+            } while (!takeTicket.compareAndSet(first, first + count));
+            finish(take(first, dst, count)); // Short: only other ticket holders are in the way
+            return count;
+        }
+        int home = consumerHome.get()[0];
+        int count = shards[home].try_remove_items(dst, max);
+        if (count > 0) {
+            homeTakes.increment();
+        } else {
+            for (int k = 1; k < shards.length && count == 0; k++) { // Steal, nearest neighbour first
+                count = shards[(home + k) % shards.length].try_remove_items(dst, max);
+            }
+            if (count == 0) {
+                return 0;
+            }
+            steals.increment();
+        }
+        producerWait.signal();
+        return count;
+    }
+
+    private int shardOf(long ticket) {
+        return (int) (ticket % shards.length);
+    }
+
+    // Ordering.GLOBAL: claim count consecutive put tickets, waiting (interruptibly, nothing is held yet)
+    // until all of them will have room once the items in front of them are taken. Returns the first one
+    private long claimPuts(int count) throws InterruptedException {
+        int tries = 0;
+        long first;
+        while ((first = tryClaimPuts(count)) < 0) {
+            tries = producerWait.idle(tries);
+        }
+        producerWait.done(tries);
+        return first;
+    }
+
+    // Ordering.GLOBAL: claimPuts without waiting, -1 if there is no room for count tickets yet
+    private long tryClaimPuts(int count) {
+        long first;
+        do {
+            first = putTicket.get();
+            if (first + count - takeTicket.get() > capacity()) {
+                return -1;
+            }
+        } while (!putTicket.compareAndSet(first, first + count));
+        return first;
+    }
+
+    // Ordering.GLOBAL: wait until the shard of a claimed put ticket is at the ticket's round and has room, put
+    // the item & hand the turn on. Waits through the producer strategy; returns true if interrupted meanwhile
+    private boolean put(long ticket, int item) {
+        int shard = shardOf(ticket);
+        long round = ticket / shards.length;
+        boolean interrupted = false;
+        int tries = 0;
+        while (putTurn.get(shard) != round || !shards[shard].try_insert_item(item)) {
+            try {
+                tries = producerWait.idle(tries);
+            } catch (InterruptedException e) { // The consumer with the same ticket waits for this item
+                interrupted = true;
+                tries = 0; // A blocking strategy dropped its registration, start over
+            }
+        }
+        producerWait.done(tries);
+        putTurn.set(shard, round + 1);
+        producerWait.signal(); // The producer with the next round of this shard may be waiting for its turn
+        consumerWait.signal();
+        return interrupted;
+    }
+
+    // Ordering.GLOBAL: take the items of count claimed take tickets from first on into dst, each once its
+    // shard is at the ticket's round & the item is in. Returns true if interrupted meanwhile, like put
+    private boolean take(long first, int[] dst, int count) {
+        int[] one = new int[1];
+        boolean interrupted = false;
+        for (int i = 0; i < count; i++) {
+            int shard = shardOf(first + i);
+            long round = (first + i) / shards.length;
+            int tries = 0;
+            while (takeTurn.get(shard) != round || shards[shard].try_remove_items(one, 1) == 0) {
+                try {
+                    tries = consumerWait.idle(tries);
+                } catch (InterruptedException e) { // The slot is promised to a producer's ticket
+                    interrupted = true;
+                    tries = 0;
+                }
+            }
+            consumerWait.done(tries);
+            takeTurn.set(shard, round + 1);
+            consumerWait.signal(); // For the consumer with the next round of this shard
+            dst[i] = one[0];
+        }
+        producerWait.signal();
+        return interrupted;
+    }
+
+    // Tickets are used up, obey an interrupt that came while they were held
+    private static void finish(boolean interrupted) {
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public int capacity() {
+        return shardSlots * shards.length;
+    }
+
+    // Largest batch a producer can hand over in one go with Ordering.SHARD
+    public int shardCapacity() {
+        return shardSlots;
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (BufferEngine shard : shards) {
+            size += shard.size();
+        }
+        return size;
+    }
+
+    @Override
+    public void useWaitStrategies(WaitStrategy producers, WaitStrategy consumers) {
+        producerWait = producers;
+        consumerWait = consumers;
+        for (BufferEngine shard : shards) {
+            shard.useWaitStrategies(producers, consumers);
+        }
+    }
+
+    @Override
+    public WaitStrategy producerWait() {
+        return producerWait;
+    }
+
+    @Override
+    public WaitStrategy consumerWait() {
+        return consumerWait;
+    }
+
+    @Override
+    public boolean serializesTurns() {
+        return false; // Every shard is safe for many threads, taking turns would undo the sharding
+    }
+
+    @Override
+    public String name() {
+        return "sharded " + ordering.name().toLowerCase() + "-ordered " + shards.length + " x " + shards[0].name();
+    }
+
+    @Override
+    public void close() {
+        for (BufferEngine shard : shards) {
+            shard.close();
+        }
+    }
+}
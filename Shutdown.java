@@ -0,0 +1,97 @@
+import java.util.concurrent.CountDownLatch; // Signals that everything admitted has finished
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder; // Admitted & finished work, added to by many threads
+
+// Two-step shutdown shared by the simulations. Work (items put into the buffer, students sitting down)
+// is admitted with admit() and reported with finish() once it is done (consumed, helped, gave up):
+//   1. stopAdmitting(): from now on admit() says no, so producers & students stop adding work
+//   2. awaitDrained(): wait up to --drain ms for the work already admitted to finish. The thread that
+//      finishes the last piece counts down a latch, so main wakes up right then instead of polling
+// Whatever is still admitted but not finished after the deadline is abandoned, report() prints both.
+final class Shutdown {
+
+    // Setting from the command line: longest time to wait for the drain
+    static long drainMillis = 5000;
+
+    // Handle --drain=ms. Returns false if the argument is not ours.
+    static boolean configure(String arg) {
+        if (arg.startsWith("--drain=")) {
+            drainMillis = Long.parseLong(arg.substring("--drain=".length()));
+            if (drainMillis < 0) {
+                throw new IllegalArgumentException("drain time can not be negative: " + drainMillis);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder finished = new LongAdder();
+    private volatile boolean admitting = true;
+    private final CountDownLatch drained = new CountDownLatch(1);
+    private long stoppedAt; // nanoTime of stopAdmitting
+    private long finishedAtStop; // finished() when admitting stopped
+    private long drainNanos = -1; // Time the drain took, -1 until it is over
+
+    // Admit count pieces of work. Returns false once admitting stopped, the work must then not be started
+    boolean admit(long count) {
+        admitted.add(count); // Written before admitting is read, and stopAdmitting writes admitting before it
+                             // sums admitted: either we see the stop or the drain waits for this work
+        if (!admitting) {
+            admitted.add(-count);
+            checkDrained();
+            return false;
+        }
+        return true;
+    }
+
+    // count pieces of admitted work are done
+    void finish(long count) {
+        finished.add(count);
+        if (!admitting) {
+            checkDrained();
+        }
+    }
+
+    boolean admitting() {
+        return admitting;
+    }
+
+    // Step 1: stop taking new work
+    void stopAdmitting() {
+        stoppedAt = System.nanoTime();
+        finishedAtStop = finished.sum();
+        admitting = false;
+        checkDrained();
+    }
+
+    // Step 2: wait up to drainMillis for the admitted work to finish. Returns true if it all did
+    boolean awaitDrained() throws InterruptedException {
+        boolean done = drained.await(drainMillis, TimeUnit.MILLISECONDS);
+        drainNanos = System.nanoTime() - stoppedAt;
+        return done;
+    }
+
+    // Work admitted but not finished: abandoned if the drain ran out of time
+    long outstanding() {
+        return Math.max(0, admitted.sum() - finished.sum());
+    }
+
+    long finished() {
+        return finished.sum();
+    }
+
+    // One line: how much finished while draining & how much was abandoned, in unit ("items", "students")
+    void report(String unit) {
+        long abandoned = outstanding();
+        System.out.printf("Shutdown: %d %s finished while draining (%.1f ms), %d abandoned%s%n",
+                finished.sum() - finishedAtStop, unit, drainNanos / 1e6, abandoned,
+                abandoned > 0 ? " after the " + drainMillis + " ms drain deadline" : "");
+    }
+
+    private void checkDrained() {
+        if (finished.sum() >= admitted.sum()) { // finished first: it only grows, so this never fires early
+            drained.countDown();
+        }
+    }
+}
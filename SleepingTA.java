@@ -1,99 +1,387 @@
 import java.util.ArrayList; // This import lets us make an array to keep track of & easily terminate our student threads 
-import java.util.LinkedList; // This import lets us make our queue of type linked list 
 import java.util.List; // This import lets us make a list of student threads in our producer thread 
-import java.util.Queue; // This import lets us make a queue of type linked list so that we can move students in & out of the hallway 
 import java.util.Random; // This import lets us make random numbers for work times and wait times for each student 
 import java.util.concurrent.Semaphore; // This import lets us bring in semaphores to control access to shared resources among threads 
 import java.util.concurrent.CountDownLatch; // Countdown latch makes student threads wait until producer thread is done producing all student threads 
+import java.util.concurrent.TimeUnit; // Student patience is waited for in nanoseconds
+import java.util.concurrent.atomic.AtomicInteger; // Students helped, counted by every TA
+import java.util.concurrent.atomic.LongAccumulator; // Time the last student was helped
+import java.util.concurrent.atomic.LongAdder; // Per-run totals for TaStatistics
+import java.util.concurrent.locks.Condition; // TAs sleep on a condition of their hallway lock
+import java.util.concurrent.locks.LockSupport; // Per-thread park/unpark for the student <-> TA hand-off
+import java.util.concurrent.locks.ReentrantLock; // Hallway lock. Unlike synchronized + wait() it does not pin a
+                                                 // virtual thread's carrier while waiting
 
 public class SleepingTA { // main class to encapsulate all components of the simulation
 
-    // Semaphores and shared state
-    private static final Semaphore taSemaphore = new Semaphore(1); // Only one student can see the TA at a time so mark
-                                                                   // this semaphore with a 1 resource/permit
-    private static final Semaphore chairs = new Semaphore(3); // Three chairs in the hallway so this semaphore
-                                                              // gets 3 resources/permits
-    // Integer typed Queue because it stores student ID's
-    private static final Queue<Integer> waitingStudents = new LinkedList<>(); // Queue for waiting students of type
-                                                                              // linked list & integer type for student
-                                                                              // ID storage
-    private static volatile int currentStudent = -1; // Tracks the student being helped (-1 means no one). Basic flag
-                                                     // for who needs help
-    private static volatile int totalStudentsHelped = 0; // Total number of students helped by the TA. Increments until
-                                                         // equal to n students & then program terminates
+    // Semaphores and shared state. Reset by runSimulation so the simulation can be run more than once in
+    // the same JVM (benchmarks do this)
+    // One hallway per TA: each TA has its own queue of waiting students & its own lock, so students & TAs
+    // only contend with the people at the same hallway instead of everyone queuing behind one global lock.
+    // An idle TA steals waiting students from the other hallways (see TA.steal)
+    private static Hallway[] hallways;
+    private static Student[] students; // Every student of the run by id, the waiting rooms hold ids
+    private static final AtomicInteger totalStudentsHelped = new AtomicInteger(); // Total number of students helped by
+                                                         // all TAs. Increments until equal to n students & then
+                                                         // program terminates. Atomic because every TA adds to it
     // CountDownLatch source:
     // https://stackoverflow.com/questions/4691533/java-wait-for-thread-to-finish
-    private static final CountDownLatch startSignal = new CountDownLatch(1); // Countdown latch makes student threads
-                                                                             // wait until producer thread is done
-                                                                             // making student threads
+    private static CountDownLatch startSignal; // Countdown latch makes student threads wait until producer
+                                               // thread is done making student threads
+    private static CountDownLatch allHelped; // Counted down by the TA for every student helped. Main waits on
+                                             // it instead of checking totalStudentsHelped every second
+    // Students sitting down are admitted work, finished once helped or gone. With --time-limit main stops
+    // seating students when the time is up & gives the TAs --drain ms to help the ones still in a chair
+    private static Shutdown shutdown;
+    private static List<Actors.Actor> taThreads; // Threads of the current run, interrupted & joined at the end of it
+    private static List<Actors.Actor> studentThreads;
+
+    // Metrics, see Metrics.java. Utilization & the number of students waiting are gauges registered in main
+    private static final Metrics.Histogram chairWait = Metrics.histogram("student.chair_wait"); // Time in a chair
+                                                                                                // per visit
+    private static final Metrics.Counter gaveUp = Metrics.counter("student.gave_up"); // Patience ran out
+    private static final Metrics.Counter noChair = Metrics.counter("student.no_chair"); // All chairs taken
+    private static final Metrics.Counter taBusy = Metrics.counter("ta.busy_ns"); // Time TAs spent with students
+    private static final Metrics.Histogram lockHold = Metrics.histogram("hallway.lock_hold"); // Per acquisition
+    private static final Metrics.Histogram lockWait = Metrics.histogram("hallway.lock_wait"); // When it was taken
+
+    // --lock-report: print how contended the hallway locks were & how long they were held. Measuring costs two
+    // clock reads per lock, so it is only done with --lock-report or metrics on
+    static boolean lockReport = false;
+    private static boolean measureLocks = false;
+
+    // Default number of students, chairs & TAs. All can be changed on the command line
+    private static final int DEFAULT_STUDENTS = 10;
+    private static final int DEFAULT_CHAIRS = 3;
+    private static final int DEFAULT_TAS = 1;
+
+    // When false the fixed & random sleeps (help time, work time, time between students) are skipped so
+    // only the synchronization is left. Students still have their patience timeout.
+    static volatile boolean simulateDelays = true;
+
+    // Every simulated time (sleeps & patience) is multiplied by this. --time-scale=0.01 runs 100 times
+    // faster than real time with the same rules
+    static volatile double timeScale = 1.0;
+
+    // Wall-clock milliseconds after which office hours end even if not every student was helped
+    // (--time-limit). 0 = no limit, the run ends when the last student is helped
+    static long timeLimitMillis = 0;
+
+    // The rules of the simulation. SleepingTASimulator uses the same ones so both can be compared
+    static final int HELP_MILLIS = 2000; // Time the TA spends with a student
+    static final int TIME_BETWEEN_STUDENTS_MILLIS = 500; // Time between the producer creating students
+
+    // Time a student works before going to see the TA: 2000 to 4999 ms
+    static int workTime(Random random) {
+        return random.nextInt(3000) + 2000;
+    }
+
+    // How long a student waits in a chair before giving up: 1000 to 2999 ms
+    static int patienceTime(Random random) {
+        // 2000 generates values from 0 - 1999 because the function is exclusive. +1000 shifts to 1000 to 2999
+        return random.nextInt(2000) + 1000;
+    }
+
+    // Work time generator of one student. Patience times come from new Random(seed) in creation order
+    static Random studentRandom(long seed, int studentId) {
+        return new Random(seed * 31 + studentId);
+    }
+
+    // Sleep for the simulated amount of time unless delays are switched off
+    private static void pause(long millis) throws InterruptedException {
+        if (simulateDelays) {
+            TimeUnit.NANOSECONDS.sleep(scaledNanos(millis));
+        }
+    }
+
+    private static long scaledNanos(long millis) {
+        return (long) (TimeUnit.MILLISECONDS.toNanos(millis) * timeScale);
+    }
+
+    // Totals for the TaStatistics of the current run. Recorded whether or not metrics are on
+    private static final class Tally {
+        final LongAdder visits = new LongAdder();
+        final LongAdder gaveUp = new LongAdder();
+        final LongAdder noChair = new LongAdder();
+        final LongAdder chairWaitNanos = new LongAdder();
+        final LongAdder busyNanos = new LongAdder();
+        final LongAccumulator lastHelped = new LongAccumulator(Math::max, 0); // nanoTime of the last finish
+        volatile long started; // nanoTime the students were let go
+        // Hallway locks, only measured with --lock-report or metrics on (see Hallway.lock)
+        final LongAdder lockAcquisitions = new LongAdder();
+        final LongAdder lockContended = new LongAdder(); // Lock was already held, the thread had to wait
+        final LongAdder lockWaitNanos = new LongAdder();
+        final LongAdder lockHoldNanos = new LongAdder();
+        final LongAccumulator lockMaxHold = new LongAccumulator(Math::max, 0);
+    }
+
+    private static Tally tally;
+
+    // A TA's office door: the waiting room of students waiting for that TA and the lock guarding it. Waiting on
+    // the Condition instead of synchronized + wait() lets a virtual thread unmount from its carrier.
+    // Only the TA waits on the condition. Students are woken one at a time with LockSupport.unpark (see
+    // Student), so calling one student does not wake every other student in the hallway.
+    static final class Hallway {
+        final int ta; // Number of the TA whose door this is, 1 to M
+        final ReentrantLock lock = new ReentrantLock();
+        final Condition changed = lock.newCondition(); // Signalled when a student sits down, wakes the TA
+        final WaitingRoom room; // Ids of the students in the chairs, in the order they will be called
+        final Semaphore chairs; // Chairs students of this hallway sit in. Shared by all hallways when the hallway
+                                // capacity is global, one semaphore per hallway with --chairs-per-ta
+        volatile int waiting = 0; // room.size(), readable without the lock by students picking a hallway & by
+                                  // TAs looking for someone to steal
+        volatile boolean helping = false; // TA is with a student
+        volatile boolean sleeping = false; // TA is (about to be) waiting on changed with nothing to do
+        int helped = 0; // Students this TA helped, only touched by the TA's own thread
+        int stolen = 0; // How many of them were taken from another hallway
+
+        private long lockedAt; // nanoTime the lock was taken, only touched by the thread holding it
+
+        Hallway(int ta, Semaphore chairs, WaitingRoom room) {
+            this.ta = ta;
+            this.chairs = chairs;
+            this.room = room;
+        }
+
+        // Take the lock. Used instead of lock.lock() so contention, wait & hold times can be measured
+        void lock() {
+            if (!measureLocks) {
+                lock.lock();
+                return;
+            }
+            if (!lock.tryLock()) { // Someone else holds it
+                long start = System.nanoTime();
+                lock.lock();
+                long waited = System.nanoTime() - start;
+                tally.lockContended.increment();
+                tally.lockWaitNanos.add(waited);
+                lockWait.record(waited);
+            }
+            tally.lockAcquisitions.increment();
+            lockedAt = System.nanoTime();
+        }
+
+        void unlock() {
+            if (measureLocks) {
+                released();
+            }
+            lock.unlock();
+        }
+
+        // Wait on changed. Time asleep does not count as holding the lock
+        void await() throws InterruptedException {
+            if (measureLocks) {
+                released();
+            }
+            try {
+                changed.await();
+            } finally { // The lock is held again, also when interrupted
+                if (measureLocks) {
+                    tally.lockAcquisitions.increment();
+                    lockedAt = System.nanoTime();
+                }
+            }
+        }
+
+        private void released() {
+            long held = System.nanoTime() - lockedAt;
+            tally.lockHoldNanos.add(held);
+            tally.lockMaxHold.accumulate(held);
+            lockHold.record(held);
+        }
+
+        // Call the next student in the room, null if it is empty. Caller holds lock
+        Student next() {
+            int id = room.poll();
+            return id < 0 ? null : students[id];
+        }
+
+        // How busy this TA is: students waiting plus the one being helped
+        int load() {
+            return waiting + (helping ? 1 : 0);
+        }
+    }
 
     // TA thread
     static class TA implements Runnable { // Defines the TA as a runnable task to be executed by a thread
+        private final Hallway own; // This TA's own hallway
+
+        TA(Hallway own) {
+            this.own = own;
+        }
+
         @Override
         public void run() { // run method
             while (true) { // Main TA behavior encapsulated in an infinite loop
                 try {
-                    synchronized (waitingStudents) { // Exclusive access to waiting students queue. Only TA can access.
-                                                     // Thread safe access to shared resources.
-                                                     // waitingStudentsQueue
-                        if (waitingStudents.isEmpty()) { // If the queue is empty then
-                            System.out.println("TA is sleeping..."); // TA is sleeping because there are no students to
-                                                                     // help
-                            waitingStudents.wait(); // TA sleeps until notified by a student
+                    // No TA permit semaphore: each TA thread helps one student at a time by itself, so M permits
+                    // for M TAs never made anyone wait, they only added two atomic updates per student
+                    Student next = null;
+                    SyncTrace.begin(); // With --trace/--replay calling a student is one traced step
+                    try {
+                        next = callOwn(); // Next student in this TA's own hallway
+                        if (next == null) {
+                            next = steal(); // Own hallway is empty, help someone from a busier TA's hallway
                         }
+                    } finally {
+                        SyncTrace.end(SyncTrace.Step.TA_CALL, next == null ? 0 : next.studentId);
                     }
-
-                    // Acquire TA's own semaphore before helping a student. This ensures that the TA
-                    // is not helping another student
-                    // TA self checks availability
-                    taSemaphore.acquire();
-
-                    synchronized (waitingStudents) { // TA has exclusive access to waiting students queue. Thread safe
-                                                     // access to shared resources.
-                        currentStudent = waitingStudents.poll(); // Get the next student in line. Retrieves & removes
-                                                                 // the head of waitingStudents queue. Assigns student
-                                                                 // ID to currentStudent.
-                        if (currentStudent != -1) { // currentStudent set with poll so it is not -1, someone needs help
-                            chairs.release(); // if we are in this if statement, then we know a student is being helped,
-                                              // so release a chair so that another student can take a seat.
-                            System.out.println("TA is helping Student " + currentStudent + "...");
-                            waitingStudents.notifyAll(); // Notify all students. This wakes up any student threads
-                                                         // waiting on waitingStudent queue
-                                                         // This notify command wakes up all student threads that call
-                                                         // waitingStudents.wait()
-                        } else { // currentStudent must be -1
-                            // No student to help, release the semaphore to allow another student to be
-                            // helped & continue with the loop
-                            taSemaphore.release(); // releasing the semaphore lets other students acquire it in the
-                                                   // future E.G. seek help from TA
-                            continue; // Skips the current code in the loop & proceeds with the next iteration because
-                                      // the TA has no student to help
-                        }
+                    if (next == null) { // No one is waiting anywhere
+                        // No student to help, sleep until a student shows up
+                        sleep();
+                        continue; // Start over, someone is waiting now (or the wake up was spurious)
                     }
 
+                    long helpStart = System.nanoTime();
                     // Simulate time TA helps a student
-                    Thread.sleep(2000);
-
-                    synchronized (waitingStudents) { // TA has thread safe access to waitingStudents queue with
-                                                     // synchronized
-                        System.out.println("TA finished helping Student " + currentStudent + ".");
-                        currentStudent = -1; // Reset flag after helping the currentStudent
-                        totalStudentsHelped++; // Increment totalStudentsHelped so that program eventually terminates
-                                               // when all students are helped
-                        waitingStudents.notifyAll(); // Notify all students who call waitingStudents.wait()
-                    }
+                    pause(HELP_MILLIS);
 
-                    // Release TA's semaphore to allow another student to be helped
-                    taSemaphore.release();
+                    finish(next);
+                    long busy = System.nanoTime() - helpStart;
+                    taBusy.add(busy);
+                    tally.busyNanos.add(busy);
 
                 } catch (InterruptedException e) { // if the TA thread is interrupted (E.G. Main terminates threads)
                                                    // then this handles the exception
-                    System.out.println("TA was interrupted. Exiting...");
+                    EventLog.log(EventLog.Event.TA_INTERRUPTED);
+                    if (hallways.length > 1) { // Who did how much, to see how the work was spread
+                        EventLog.log(EventLog.Event.TA_SUMMARY, own.helped, own.stolen);
+                    }
                     Thread.currentThread().interrupt();
                     break;
                 }
             }
         }
+
+        // Call the student at the front of this TA's own hallway, null if it is empty
+        private Student callOwn() {
+            Student next;
+            own.lock(); // TA has exclusive access to its waiting room
+            try {
+                next = own.next(); // Get the next student in line. Retrieves & removes them from the
+                                   // waiting room, null if no one is waiting
+                if (next != null) {
+                    call(own, next);
+                }
+            } finally {
+                own.unlock();
+            }
+            if (next != null) {
+                wake(next);
+            }
+            return next;
+        }
+
+        // Work stealing: take the student who is next in line at the hallway with the most students
+        // waiting. Only one hallway lock is held at a time so TAs stealing from each other can not deadlock
+        private Student steal() {
+            while (true) {
+                Hallway victim = null;
+                for (Hallway hallway : hallways) { // Busiest other hallway, read without locking
+                    if (hallway != own && hallway.waiting > 0
+                            && (victim == null || hallway.waiting > victim.waiting)) {
+                        victim = hallway;
+                    }
+                }
+                if (victim == null) { // Nobody is waiting anywhere
+                    return null;
+                }
+                Student next;
+                victim.lock();
+                try {
+                    next = victim.next();
+                    if (next != null) {
+                        EventLog.log(EventLog.Event.TA_STOLE, next.studentId, victim.ta);
+                        own.stolen++;
+                        call(victim, next);
+                    }
+                } finally {
+                    victim.unlock();
+                }
+                if (next != null) {
+                    wake(next);
+                    return next;
+                }
+                // Another TA got there first or the student gave up, look again
+            }
+        }
+
+        // Tell a student taken out of hallway's waiting room that it is their turn. Caller holds hallway.lock, so a
+        // student that is giving up at the same time either is still in the room or has already left. Only
+        // what the give-up check depends on happens here, the rest is in wake() after the lock is released
+        private void call(Hallway hallway, Student student) {
+            hallway.waiting = hallway.room.size();
+            own.helping = true;
+            EventLog.log(EventLog.Event.TA_HELPING, student.studentId); // Logged before calledBy is set so it
+                                                                        // stays ahead of STUDENT_HELPED
+            student.helper = Thread.currentThread(); // Where the student sends their "arrived" wake up
+            student.calledBy = own.ta; // Volatile write publishes helper too
+        }
+
+        // Second half of calling a student, outside the hallway lock. On one CPU unparking the student can
+        // switch to them right away, and doing that while holding the lock made everyone else at the door
+        // wait for the TA to be scheduled again
+        private void wake(Student student) {
+            student.chair.release(); // if we are here a student is being helped, so release their chair so that
+                                     // another student can take a seat.
+            LockSupport.unpark(student.thread); // Wake only the student who was called
+        }
+
+        // Wait for the student to show up, then let them go. No lock needed: the flags are volatile and
+        // each side unparks exactly the other thread
+        private void finish(Student student) throws InterruptedException {
+            while (!student.arrived) { // Make sure the student actually noticed they were called
+                LockSupport.park(student);
+                if (Thread.interrupted()) { // park does not throw, turn an interrupt into the usual exception
+                    throw new InterruptedException();
+                }
+            }
+            SyncTrace.begin();
+            try {
+                EventLog.log(EventLog.Event.TA_FINISHED, student.studentId);
+                own.helped++;
+                tally.lastHelped.accumulate(System.nanoTime());
+                totalStudentsHelped.incrementAndGet(); // Increment totalStudentsHelped so that program eventually
+                                                       // terminates when all students are helped
+                allHelped.countDown(); // Main wakes up when this was the last one
+                shutdown.finish(1);
+                own.helping = false;
+                student.done = true; // Student can leave
+                LockSupport.unpark(student.thread); // Dedicated "done" signal for this student only
+            } finally {
+                SyncTrace.end(SyncTrace.Step.TA_FINISH, student.studentId);
+            }
+        }
+
+        // Sleep until a student sits down in this TA's hallway or a sleeping TA is needed elsewhere. A replay
+        // does not sleep: the TA's next call waits for its turn in the trace instead
+        private void sleep() throws InterruptedException {
+            if (SyncTrace.replaying()) {
+                return;
+            }
+            own.lock();
+            try {
+                own.sleeping = true; // Written before looking at the other hallways, and students write waiting
+                                     // before looking at sleeping, so either we see their student or they see
+                                     // us sleeping and wake us (see Student.wakeIdleTa)
+                if (own.room.isEmpty() && !anyoneWaiting()) { // If every waiting room is empty then
+                    EventLog.log(EventLog.Event.TA_SLEEPING); // TA is sleeping because there are no students to help
+                    own.await(); // TA sleeps until signalled by a student
+                }
+            } finally {
+                own.sleeping = false;
+                own.unlock();
+            }
+        }
+
+        private boolean anyoneWaiting() {
+            for (Hallway hallway : hallways) {
+                if (hallway.waiting > 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
     }
 
     // Student thread
@@ -101,162 +389,444 @@ public class SleepingTA { // main class to encapsulate all components of the sim
         private final int studentId; // students given an ID
         private int waitTime; // Random wait time assigned to each student. This is the maximum time the
                               // student is willing to wait for the TA before leaving & trying again later.
-
-        public Student(int studentId, int waitTime) { // constructor to initialize student ID and waitTime
+        private final Random random; // Draws this student's work times
+        private final int priorityClass; // WaitingRoom.NORMAL or URGENT (deadline-driven)
+        private long waitedNanos = 0; // Time spent in chairs over all visits, for the FairnessReport
+        private int gaveUpCount = 0;
+
+        // Hand-off state for the current visit. Reset before the student takes seat.lock to queue, then
+        // read & written by the student and the TA that calls them, each unparking the other
+        private Thread thread; // The student's own thread, unparked by the TA
+        private Hallway seat; // Hallway the student is sitting in
+        private Semaphore chair; // Chair semaphore the student took
+        private volatile int calledBy = -1; // TA helping this student (-1 means not called yet)
+        private volatile Thread helper; // Thread of that TA, unparked when the student arrives
+        private volatile boolean arrived = false; // Set by the student once they are with the TA. TA will not finish
+                                                  // before that so a student can not miss being called when help
+                                                  // time is switched off
+        private volatile boolean done = false; // Set by the TA once they finished helping
+
+        public Student(int studentId, int waitTime, Random random, int priorityClass) { // constructor to
+                                                           // initialize student ID, waitTime, work time generator
+                                                           // & priority class
             this.studentId = studentId;
             this.waitTime = waitTime;
+            this.random = random;
+            this.priorityClass = priorityClass;
         }
 
         @Override
         public void run() {
+            thread = Thread.currentThread();
             try {
                 // Wait until the producer has finished creating all students
                 startSignal.await(); // Each student thread waits until the latch value 1 is counted down by the
                                      // producer class
 
                 while (true) { // student thread's behavior is encapsulated in a while loop
-                    synchronized (waitingStudents) { // thread safe access to shared resource waitingStudents queue
-                        if (studentId == currentStudent) { // if the current student is the student being helped then
-                                                           // they wait on waitingStudents
-                            // Student is being helped, skip working logic
-                            waitingStudents.wait(); // Causes the current student thread to wait for
-                                                    // waitingStudents.notifyAll() call by TA
-                        }
-                    }
-                    // If the student is not the current student being helped, then they are working
-                    // on assignments
-                    System.out.println("Student " + studentId + " is working on assignments...");
-                    Thread.sleep((int) (Math.random() * 3000) + 2000); // Simulate working time with random numbers
+                    // Working on assignments
+                    EventLog.log(EventLog.Event.STUDENT_WORKING, studentId);
+                    pause(workTime(random)); // Simulate working time with random numbers
 
                     // Student wants to see the TA
-                    System.out.println("Student " + studentId + " wants to see the TA...");
-                    if (chairs.tryAcquire()) { // Try to get a chair in the hallway: returns true if available, false
-                                               // otherwise
-                        synchronized (waitingStudents) { // Thread safe access to the waitingStudents queue
-                            waitingStudents.add(studentId); // Add student's ID to queue because student found a chair
-                            System.out.println("Student " + studentId + " is waiting in the hallway with patience "
-                                    + waitTime + " ms"); // How long the student will wait in the halllway
-                            waitingStudents.notify(); // Wake up the TA if they're sleeping //Notifies TA after
-                                                      // TA goes to sleep at line 41
+                    EventLog.log(EventLog.Event.STUDENT_WANTS_TA, studentId);
+                    Hallway hallway = null;
+                    boolean sentHome = false;
+                    SyncTrace.begin(); // With --trace/--replay finding a chair & sitting down is one traced step
+                    try {
+                        if (!shutdown.admit(1)) { // Office hours are over, no one new sits down
+                            sentHome = true;
+                        } else {
+                            hallway = takeSeat(); // Try to get a chair in a hallway, null if none are available
+                            if (hallway == null) {
+                                shutdown.finish(1); // Never sat down
+                            }
                         }
-
-                        synchronized (waitingStudents) { // Thread safe access to waitingStudents queue
-                            long startTime = System.currentTimeMillis(); // Records the current system time to calculate
-                                                                         // the waiting duration in milliseconds
-                            long remainingWaitTime = waitTime; // Log the waitTime as remaining time
-                            while (studentId != currentStudent && remainingWaitTime > 0) { // While the student is not
-                                                                                           // being helped, they have a
-                                                                                           // wait time. While the wait
-                                                                                           // time is > 0 they will wait
-                                waitingStudents.wait(remainingWaitTime); // Waits up to remaining wait time
-                                long elapsedTime = System.currentTimeMillis() - startTime; // Grab time that has passed
-                                remainingWaitTime = waitTime - elapsedTime; // subtract time passed from wait time to
-                                                                            // get remaining wait time. This process
-                                                                            // loops until student runs out of patience.
+                        if (hallway != null) {
+                            seat = hallway; // Reset before queuing, taking the lock publishes them to the TA
+                            chair = hallway.chairs;
+                            calledBy = -1;
+                            arrived = false;
+                            done = false;
+                            long arrivedAt = SyncTrace.clock();
+                            hallway.lock(); // Thread safe access to the hallway's waiting room
+                            try {
+                                // Add student to the waiting room because student found a chair. O(log n)
+                                hallway.room.add(studentId, priorityClass, arrivedAt);
+                                hallway.waiting = hallway.room.size();
+                                // How long the student will wait in the halllway
+                                EventLog.log(EventLog.Event.STUDENT_WAITING, studentId, waitTime);
+                                hallway.changed.signal(); // Wake up the TA if they're sleeping. The TA is the
+                                                          // only thread waiting on the condition
+                            } finally {
+                                hallway.unlock();
+                            }
+                        }
+                    } finally {
+                        SyncTrace.end(SyncTrace.Step.STUDENT_SEAT, sentHome ? -1 : hallway == null ? 0 : hallway.ta);
+                    }
+                    if (sentHome) {
+                        EventLog.log(EventLog.Event.STUDENT_SENT_HOME, studentId);
+                        break;
+                    }
+                    if (hallway != null) {
+                        wakeIdleTa(hallway);
+
+                        // Wait in the chair until a TA calls us or we run out of patience. Parking is per
+                        // thread so only the TA calling this student wakes it
+                        tally.visits.increment();
+                        long seated = System.nanoTime();
+                        long deadline = seated + scaledNanos(waitTime);
+                        long remainingWaitTime = deadline - System.nanoTime();
+                        while (calledBy < 0 && remainingWaitTime > 0 // While the student is not being helped,
+                                && !SyncTrace.replaying()) {          // they have a wait time. While the wait
+                                                                      // time is > 0 they will wait. A replay
+                                                                      // waits for the turn of the check below
+                            LockSupport.parkNanos(this, remainingWaitTime); // Waits up to the remaining wait time.
+                                                                            // This process loops until student
+                                                                            // runs out of patience.
+                            if (Thread.interrupted()) {
+                                throw new InterruptedException();
+                            }
+                            remainingWaitTime = deadline - System.nanoTime();
+                        }
+                        long waited = System.nanoTime() - seated;
+                        chairWait.record(waited);
+                        tally.chairWaitNanos.add(waited);
+                        waitedNanos += waited;
+
+                        if (calledBy < 0 || SyncTrace.on()) { // Student was not helped soon enough, leave unless
+                                            // a TA is calling us right now. Traced runs always check, so whether a
+                                            // TA was quicker than the patience is decided in trace order
+                            boolean left = false;
+                            SyncTrace.begin();
+                            hallway.lock(); // Thread safe access to the hallway's waiting room
+                            try {
+                                if (calledBy < 0) { // Still in the room, a TA calls only under this lock
+                                    // Timeout occurred
+                                    hallway.room.remove(studentId); // Remove this student from the waiting room
+                                                                    // because he is not in a chair anymore. O(log n)
+                                    hallway.waiting = hallway.room.size();
+                                    left = true;
+                                }
+                            } finally {
+                                hallway.unlock();
                             }
+                            try { // Out of the room now, no TA can call us: the rest does not need the lock
+                                if (left) {
+                                    EventLog.log(EventLog.Event.STUDENT_GAVE_UP, studentId);
+                                    gaveUp.increment();
+                                    tally.gaveUp.increment();
+                                    gaveUpCount++;
+                                    chair.release(); // release their chair because they left
+                                    shutdown.finish(1);
+                                }
+                            } finally {
+                                SyncTrace.end(SyncTrace.Step.STUDENT_CHECK, left ? 1 : 0);
+                            }
+                        }
 
-                            if (studentId == currentStudent) { // TA grabs student to help them because queue
-                                                               // head has cycled to this student after
-                                                               // waitingStudents.poll() was called by TA
-                                // Student is being helped
-                                System.out.println("Student " + studentId + " is being helped by the TA...");
-                                // Wait until TA finishes helping
-                                waitingStudents.wait(); // Makes student thread wait until TA calls
-                                                        // waitingStudents.notifyAll() command
-                                // Exit the loop after being helped
-                                break;
-                            } else { // Student was not helped soon enough and left
-                                // Timeout occurred
-                                System.out.println(
-                                        "Student " + studentId + " got tired of waiting and will try again later.");
-                                waitingStudents.remove(Integer.valueOf(studentId)); // Remove this student id from the
-                                                                                    // queue because he is not in a
-                                                                                    // chair anymore
-                                chairs.release(); // release their chair because they left
-                                // Go back to working on assignments and try again later
+                        if (calledBy >= 0) { // A TA took this student out of the room, either this
+                                             // hallway's TA or one stealing from it
+                            // Student is being helped
+                            EventLog.log(EventLog.Event.STUDENT_HELPED, studentId);
+                            SyncTrace.begin();
+                            try {
+                                arrived = true; // Let the TA know we are here
+                                LockSupport.unpark(helper);
+                            } finally {
+                                SyncTrace.end(SyncTrace.Step.STUDENT_ARRIVED, calledBy);
+                            }
+                            // Wait until TA finishes helping
+                            while (!done) {
+                                LockSupport.park(this); // Student thread waits until its TA unparks it
+                                if (Thread.interrupted()) {
+                                    throw new InterruptedException();
+                                }
                             }
+                            // Exit the loop after being helped
+                            break;
                         }
+                        // Go back to working on assignments and try again later
 
                     } else { // This is the case where all chairs are full & the student cannot wait
-                        System.out.println(
-                                "Student " + studentId + " found no available chairs and will try again later.");
+                        EventLog.log(EventLog.Event.STUDENT_NO_CHAIR, studentId);
+                        noChair.increment();
+                        tally.noChair.increment();
                         // Go back to working on assignments and try again later
                     }
                 }
             } catch (InterruptedException e) { // This is for graceful termination when main function cleans up all
                                                // threads
-                System.out.println("Student " + studentId + " was interrupted. Exiting...");
+                EventLog.log(EventLog.Event.STUDENT_INTERRUPTED, studentId);
                 Thread.currentThread().interrupt();
             }
         }
+
+        // Sit down at the least busy TA's hallway. With --chairs-per-ta, if that hallway is full try the others.
+        // Returns null if no chair is available
+        private Hallway takeSeat() {
+            int start = studentId % hallways.length; // Students start looking at different doors so ties spread out
+            Hallway best = null;
+            for (int k = 0; k < hallways.length; k++) {
+                Hallway hallway = hallways[(start + k) % hallways.length];
+                if (best == null || hallway.load() < best.load()) {
+                    best = hallway;
+                }
+            }
+            if (best.chairs.tryAcquire()) { // returns true if a chair is available, false otherwise
+                return best;
+            }
+            for (int k = 0; k < hallways.length; k++) {
+                Hallway hallway = hallways[(start + k) % hallways.length];
+                if (hallway.chairs != best.chairs && hallway.chairs.tryAcquire()) { // Global chairs are one
+                                                                                   // semaphore, tried once above
+                    return hallway;
+                }
+            }
+            return null;
+        }
+
+        // If this hallway's TA is busy and another TA is asleep, wake that TA so it can steal us
+        private void wakeIdleTa(Hallway hallway) {
+            if (hallway.sleeping) { // Our own TA was already signalled
+                return;
+            }
+            for (Hallway other : hallways) {
+                if (other != hallway && other.sleeping) {
+                    other.lock();
+                    try {
+                        other.changed.signal();
+                    } finally {
+                        other.unlock();
+                    }
+                    return;
+                }
+            }
+        }
     }
 
     // Producer thread that creates and starts n student threads
     static class Producer implements Runnable { // producer is ran as a thread
         private int n; // Number of students to create
-        private List<Thread> studentThreads; // List of student threads to easily produce & clean up student threads
+        private final long seed; // Seeds patience & work times
+        private List<Actors.Actor> studentThreads; // List of student threads to easily produce & clean up student threads
                                              // later in main function // This list is filled out from main
                                              // passing its student thread list to producer class. This list is filled
                                              // out in the producer constructor
 
-        public Producer(int n, List<Thread> studentThreads) { // producer constructor to initialize n and studentThreads
+        public Producer(int n, List<Actors.Actor> studentThreads, long seed) { // producer constructor to initialize n,
+                                                                         // studentThreads & the seed
             this.n = n;
             this.studentThreads = studentThreads;
+            this.seed = seed;
         }
 
         @Override
         public void run() {
-            Random random = new Random(); // Random number generator
+            Random random = new Random(seed); // Random number generator. Seeded so a run can be repeated
+            Actors.Startup startup = Actors.beginStartup(); // Measure startup time & memory with --actor-report
 
             for (int i = 1; i <= n; i++) { // loops from 1 to n to create & start each student thread
 
                 // Generate a random wait time between 1000ms and 3000ms
-                int waitTime = random.nextInt(2000) + 1000; // 2000 generates values from 0 - 199 because the function
-                                                            // is exclusive. +1000 shifts to 1000 to 2999
-
-                Thread studentThread = new Thread(new Student(i, waitTime), "Student-" + i); // This creates the student
-                                                                                             // thread with the wait
-                                                                                             // time and ID
-                studentThread.start(); // Starts the student Thread immediately. The student threads are told to hold
-                                       // with CountDownLatch so they wait until producer is done. This simulates them
-                                       // starting out of order which is more realistic.
+                int waitTime = patienceTime(random);
+
+                // This creates the student thread (platform, virtual or pool, see --threads) with the wait time and ID.
+                Student student = new Student(i, waitTime, studentRandom(seed, i),
+                        WaitingRoom.priorityClass(seed, i, WaitingRoom.urgentShare));
+                students[i] = student; // Before the thread starts, so a TA can look the student up by id
+                // Starts the student Thread immediately (with --threads=pool once a pool thread is free). The
+                // student threads are told to hold with CountDownLatch so they wait until producer is done.
+                // This simulates them starting out of order which is more realistic.
+                Actors.Actor studentThread = Actors.start(student, "Student-" + i);
                 studentThreads.add(studentThread); // Add student thread to the list
-                System.out.println("Producer created and started Student " + i);
+                EventLog.log(EventLog.Event.STUDENT_CREATED, i);
                 try {
-                    Thread.sleep(500); // Simulate time between creating students
+                    pause(TIME_BETWEEN_STUDENTS_MILLIS); // Simulate time between creating students
                 } catch (InterruptedException e) { // exception for graceful termination
-                    System.out.println("Producer was interrupted.");
+                    EventLog.log(EventLog.Event.STUDENT_PRODUCER_INTERRUPTED);
                     Thread.currentThread().interrupt();
                     break; // Exit if interrupted
                 }
             }
-            System.out.println("Producer has created all " + n + " students."); // Producer is done creating students
-
-            // Release the latch to allow student threads to proceed. They will proceed out
-            // of order but this is okay.
-            startSignal.countDown();
+            EventLog.log(EventLog.Event.STUDENTS_CREATED, n); // Producer is done creating students
+            if (startup != null) {
+                startup.finish(studentThreads.size());
+            }
+            // Main releases the students once this thread is done (see startStudents)
         }
     }
 
     public static void main(String[] args) {
 
-        // Number of students
-        int n = 10; // Reduced for demonstration purposes
+        // Number of students, chairs & TAs, optionally changed with --students=N --chairs=N --tas=M.
+        // --chairs-per-ta=N gives every TA their own N chairs instead of one hallway of N shared by all.
+        // --no-delays skips the simulated sleeps
+        int n = DEFAULT_STUDENTS; // Reduced for demonstration purposes
+        int chairCount = DEFAULT_CHAIRS;
+        int tas = DEFAULT_TAS;
+        boolean chairsPerTa = false;
+        long seed = new Random().nextLong(); // Different students every run unless --seed is given
+        boolean roomReport = false;
+        try {
+            for (String arg : args) {
+                if (arg.startsWith("--students=")) {
+                    n = Integer.parseInt(arg.substring("--students=".length()));
+                } else if (arg.startsWith("--chairs=")) {
+                    chairCount = Integer.parseInt(arg.substring("--chairs=".length()));
+                    chairsPerTa = false;
+                } else if (arg.startsWith("--chairs-per-ta=")) {
+                    chairCount = Integer.parseInt(arg.substring("--chairs-per-ta=".length()));
+                    chairsPerTa = true;
+                } else if (arg.startsWith("--tas=")) {
+                    tas = Integer.parseInt(arg.substring("--tas=".length()));
+                } else if (arg.startsWith("--seed=")) {
+                    seed = Long.parseLong(arg.substring("--seed=".length()));
+                } else if (arg.startsWith("--time-scale=")) {
+                    timeScale = Double.parseDouble(arg.substring("--time-scale=".length()));
+                    if (!(timeScale > 0)) {
+                        throw new IllegalArgumentException("time scale must be positive: " + timeScale);
+                    }
+                } else if (arg.startsWith("--time-limit=")) {
+                    timeLimitMillis = Long.parseLong(arg.substring("--time-limit=".length()));
+                    if (timeLimitMillis < 0) {
+                        throw new IllegalArgumentException("time limit can not be negative: " + timeLimitMillis);
+                    }
+                } else if (arg.equals("--no-delays")) {
+                    simulateDelays = false;
+                } else if (arg.equals("--room-report")) {
+                    roomReport = true;
+                } else if (arg.equals("--lock-report")) {
+                    lockReport = true;
+                } else if (!EventLog.configure(arg) && !Actors.configure(arg) && !Metrics.configure(arg)
+                        && !WaitingRoom.configure(arg) && !SyncTrace.configure(arg)
+                        && !Shutdown.configure(arg)) { // --log, --threads, --metrics, --room, --trace & --drain
+
+                    System.out.println("Usage: java SleepingTA [--students=N] [--tas=M]"
+                            + " [--chairs=N | --chairs-per-ta=N] [--seed=S] [--time-scale=X] [--no-delays]"
+                            + " [--room=fifo|priority|aging] [--urgent=X] [--aging=ms] [--room-report] [--lock-report]"
+                            + " [--trace=<file> | --replay=<file>] [--time-limit=ms] [--drain=ms]"
+                            + " [--log=stdout|<file>] [--log-level=off|info|verbose] [--log-buffer=N]"
+                            + " [--threads=platform|virtual|pool[=N]] [--actor-report] [--metrics[=ms]] [--metrics-csv=<file>]");
+                    System.exit(1);
+                }
+            }
+            if (Actors.mode() == Actors.Mode.POOL && SyncTrace.configured()) { // Steps are traced per thread
+                throw new IllegalArgumentException("--trace and --replay need a thread per actor, not --threads=pool");
+            }
+            Actors.requirePool(tas + 1, "TAs & student producer"); // The students share what is left
+            seed = SyncTrace.start("SleepingTA", args, seed); // A replay uses the recorded seed
+        } catch (IllegalArgumentException e) { // Bad number, log level, log file or trace file
+            System.out.println("Invalid option value: " + e.getMessage());
+            System.exit(1);
+        }
+        if (n <= 0 || chairCount <= 0 || tas <= 0) {
+            System.out.println("Students, chairs and TAs must be positive integers.");
+            System.exit(1);
+        }
+
+        Metrics.gauge("students.helped", totalStudentsHelped::get);
+        Metrics.gauge("hallway.waiting", SleepingTA::studentsWaiting);
+        Metrics.gauge("ta.utilization_pct", SleepingTA::taUtilization);
+        Metrics.start("SleepingTA"); // Periodic snapshots & JMX if --metrics or --metrics-csv was given
 
-        // Create and start the TA thread
-        Thread taThread = new Thread(new TA(), "TA");
-        taThread.start();
+        TaStatistics stats = runSimulation(n, tas, chairCount, chairsPerTa, seed);
+        SyncTrace.close(); // Finish a --trace recording, or say how far a --replay got
+
+        Metrics.stop(); // Final snapshot
+        if (lockReport) { // Contention & hold times of the hallway locks
+            printLockReport(stats);
+        }
+        if (roomReport) { // How the waiting room policy treated each priority class
+            System.out.println(stats);
+            stats.fairness.print("Waiting room " + WaitingRoom.policy.name().toLowerCase());
+        }
+    }
+
+    // One line about the hallway locks of the last run
+    private static void printLockReport(TaStatistics stats) {
+        long acquisitions = Math.max(1, tally.lockAcquisitions.sum());
+        long contended = tally.lockContended.sum();
+        System.out.printf("Hallway locks: %d acquisitions, %.2f%% contended (mean wait %.1f us), mean hold %.2f us,"
+                + " max hold %.1f us, %.1f us held per student helped%n", tally.lockAcquisitions.sum(),
+                contended * 100.0 / acquisitions, contended == 0 ? 0 : tally.lockWaitNanos.sum() / 1e3 / contended,
+                tally.lockHoldNanos.sum() / 1e3 / acquisitions, tally.lockMaxHold.get() / 1e3,
+                stats.helped == 0 ? 0 : tally.lockHoldNanos.sum() / 1e3 / stats.helped);
+    }
+
+    // Students sitting in a chair right now, over all hallways
+    private static long studentsWaiting() {
+        Hallway[] current = hallways;
+        long waiting = 0;
+        for (int i = 0; current != null && i < current.length; i++) {
+            waiting += current[i].waiting;
+        }
+        return waiting;
+    }
+
+    // Percentage of the time since metrics started that the TAs spent helping students
+    private static long taUtilization() {
+        Hallway[] current = hallways;
+        return current == null ? 0 : taBusy.sum() * 100 / (Metrics.elapsedNanos() * current.length);
+    }
+
+    // Run one full simulation with a single TA and a hallway of chairCount chairs
+    static void runSimulation(int n, int chairCount) {
+        runSimulation(n, 1, chairCount, false);
+    }
+
+    // Same with a random seed
+    static TaStatistics runSimulation(int n, int tas, int chairCount, boolean chairsPerTa) {
+        return runSimulation(n, tas, chairCount, chairsPerTa, new Random().nextLong());
+    }
+
+    // Run one full simulation: n students are created and the method returns once every one of them has
+    // been helped & all threads have exited. There are tas TAs, each with their own hallway. With chairsPerTa
+    // every hallway has chairCount chairs, otherwise chairCount chairs are shared by all hallways. The seed
+    // fixes every student's patience & work times.
+    // Shared state is reset first so this can be called repeatedly.
+    static TaStatistics runSimulation(int n, int tas, int chairCount, boolean chairsPerTa, long seed) {
+        setUpSimulation(n, tas, chairCount, chairsPerTa, seed);
+        startStudents();
+        awaitStudents();
+        return tearDownSimulation();
+    }
+
+    // The three parts of runSimulation, separate so a benchmark can time only the part in between that has
+    // the hand-offs: set up starts every thread and returns with the students waiting on startSignal
+    static void setUpSimulation(int n, int tas, int chairCount, boolean chairsPerTa, long seed) {
+        Semaphore sharedChairs = new Semaphore(chairCount);
+        hallways = new Hallway[tas];
+        long aging = scaledNanos(WaitingRoom.agingMillis); // Arrival times are System.nanoTime()
+        for (int i = 0; i < tas; i++) {
+            hallways[i] = new Hallway(i + 1, chairsPerTa ? new Semaphore(chairCount) : sharedChairs,
+                    new WaitingRoom(WaitingRoom.policy, aging, n));
+        }
+        students = new Student[n + 1];
+        measureLocks = lockReport || Metrics.enabled();
+        startSignal = new CountDownLatch(1);
+        allHelped = new CountDownLatch(n);
+        shutdown = new Shutdown();
+        totalStudentsHelped.set(0);
+        tally = new Tally();
+
+        // Create and start the TA threads. A single TA keeps the original thread name
+        taThreads = new ArrayList<>();
+        for (Hallway hallway : hallways) {
+            taThreads.add(Actors.start(new TA(hallway), tas == 1 ? "TA" : "TA-" + hallway.ta));
+        }
         // initailizes a list to keep track of student threads created by producer
         // thread for easy thread termination later
-        List<Thread> studentThreads = new ArrayList<>();
+        studentThreads = new ArrayList<>();
 
         // Create and start the producer thread
-        Producer producer = new Producer(n, studentThreads); // Creates a producer object
-        Thread producerThread = new Thread(producer, "Producer"); // Wraps producer object in a new thread // The
-                                                                  // producer class generates a run method, but is not
-                                                                  // ran in a separate thread without creating a
-                                                                  // producer object & wrapping it in a thread here
-        producerThread.start(); // Start the producer thread
+        Producer producer = new Producer(n, studentThreads, seed); // Creates a producer object
+        Actors.Actor producerThread = Actors.start(producer, "Producer"); // Wraps producer object in a new thread &
+                                                                          // starts it. The producer class generates a
+                                                                          // run method, but is not ran in a separate
+                                                                          // thread without creating a producer object
+                                                                          // & wrapping it in a thread here
 
         try { // Join synces producer thread & main thread, so main waits for producer to be
               // finished before continuing
@@ -265,32 +835,95 @@ public class SleepingTA { // main class to encapsulate all components of the sim
             Thread.currentThread().interrupt();
         }
 
-        System.out.println("All Student threads have been created.");
+        EventLog.log(EventLog.Event.MAIN_STUDENTS_CREATED);
+    }
+
+    // Release the latch to allow student threads to proceed. They will proceed out
+    // of order but this is okay.
+    static void startStudents() {
+        tally.started = System.nanoTime();
+        startSignal.countDown();
+    }
+
+    // Returns once every student has been helped, or the time limit is up and the chairs are drained
+    static void awaitStudents() {
+        // Wait until all students have been helped. The TA helping the last one counts the latch down to 0, so
+        // main wakes up right then. A replay of a run that hit its time limit waits for the recorded shutdown
+        boolean allDone = false;
+        try {
+            if (SyncTrace.replaying() && SyncTrace.recorded(SyncTrace.Step.SHUTDOWN)) {
+                allDone = false; // The shutdown step below waits for its turn in the trace
+            } else if (timeLimitMillis > 0) {
+                allDone = allHelped.await(timeLimitMillis, TimeUnit.MILLISECONDS);
+            } else {
+                allHelped.await();
+                allDone = true;
+            }
+        } catch (InterruptedException e) { // If main thread is interrupted while waiting
+            Thread.currentThread().interrupt(); // main handles the exception
+        }
 
-        // Wait until all students have been helped
-        while (totalStudentsHelped < n) { // Main will wait until all students have been helped by the TA
-            try { // Main sleeps for 1 second between checks to avoid busy waiting
-                  // This is not busy waiting because main yields control for
-                  // 1 second between checks
-                Thread.sleep(1000); // Check every second
-            } catch (InterruptedException e) { // If main thread is interrupted during sleep
-                Thread.currentThread().interrupt(); // main handles the exception
-                break; // main exits the while loop
+        if (!allDone) { // Time is up: seat no one new, give the TAs --drain ms to help the students in a chair
+            SyncTrace.begin();
+            try {
+                shutdown.stopAdmitting();
+                EventLog.log(EventLog.Event.MAIN_SHUTTING_DOWN, Shutdown.drainMillis);
+            } finally {
+                SyncTrace.end(SyncTrace.Step.SHUTDOWN, 0);
             }
+            try {
+                shutdown.awaitDrained();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            shutdown.report("students");
         }
+    }
+
+    // Stop every thread of the run and collect its statistics
+    static TaStatistics tearDownSimulation() {
+        SyncTrace.awaitReplay(); // A replay also redoes the steps the TAs took before they were stopped
 
         // Interrupt all threads for graceful termination
-        System.out.println("Students helped: " + totalStudentsHelped); // Have helped all students so it is time to
-                                                                       // interrupt TA & student threads
-        System.out.println("Main thread interrupting all threads...");
-        // Interrupt TA thread
-        taThread.interrupt();
+        EventLog.log(EventLog.Event.MAIN_STUDENTS_HELPED, totalStudentsHelped.get()); // Have helped all students so it
+                                                                       // is time to interrupt TA & student threads
+        EventLog.log(EventLog.Event.MAIN_INTERRUPTING);
+        // Interrupt TA threads
+        for (Actors.Actor taThread : taThreads) {
+            taThread.interrupt();
+        }
         // Interrupt all student threads for graceful termination
-        System.out.println("Main thread interrupting all student threads...");
-        for (Thread studentThread : studentThreads) {
+        EventLog.log(EventLog.Event.MAIN_INTERRUPTING_STUDENTS);
+        for (Actors.Actor studentThread : studentThreads) {
             studentThread.interrupt();
         }
 
+        // Wait for every thread to exit so the next run starts from a clean state
+        try {
+            for (Actors.Actor taThread : taThreads) {
+                taThread.join();
+            }
+            for (Actors.Actor studentThread : studentThreads) {
+                studentThread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        int n = students.length - 1;
+        int tas = hallways.length;
+        // Wall-clock nanoseconds back to simulated milliseconds
+        double nanosPerMilli = simulateDelays ? 1_000_000 * timeScale : 1_000_000;
+        FairnessReport fairness = new FairnessReport(n);
+        for (int id = 1; id <= n; id++) {
+            Student student = students[id];
+            if (student != null) { // null if the producer was interrupted before creating them
+                fairness.student(id, student.priorityClass, student.waitedNanos / nanosPerMilli, student.gaveUpCount);
+            }
+        }
+        return new TaStatistics(n, tas, totalStudentsHelped.get(), tally.visits.sum(), tally.gaveUp.sum(),
+                tally.noChair.sum(), tally.chairWaitNanos.sum() / nanosPerMilli, tally.busyNanos.sum() / nanosPerMilli,
+                Math.max(0, tally.lastHelped.get() - tally.started) / nanosPerMilli, fairness);
     }
 
 }
@@ -0,0 +1,522 @@
+import java.util.Arrays; // Growing the event heap & hallway queues
+import java.util.Random; // Same seeded draws as the threaded simulation
+
+// Discrete-event version of SleepingTA. Instead of one thread per student and real sleeps, a single thread
+// keeps a virtual clock and a priority queue of future events (a student finishing work, a student running
+// out of patience, a TA finishing with a student). Each step jumps the clock to the earliest event and
+// applies the same rules as the threaded TA & Student classes:
+//   - a student works for SleepingTA.workTime, then sits at the least busy TA's hallway if a chair is free
+//     (the other hallways are tried with --chairs-per-ta), otherwise goes back to work
+//   - a seated student leaves after SleepingTA.patienceTime unless a TA called them first
+//   - a free TA calls the next student in their own hallway, or steals the next student of the busiest
+//     other hallway, and helps for SleepingTA.HELP_MILLIS. A helped student is done. Who is next depends
+//     on the waiting room policy (--room, --urgent & --aging, see WaitingRoom)
+// Ties are broken in the order the events were scheduled, so a seed always gives exactly the same run.
+// LoadGenerator runs it with an open-loop Workload instead: students arrive at given times with their own
+// help times & patience, and go home unhelped after a limited number of tries.
+// A simulated day of office hours takes milliseconds and the threaded classes stay as the reference:
+//   java SleepingTASimulator [--students=N] [--tas=M] [--chairs=N | --chairs-per-ta=N] [--seed=S]
+//                            [--room=fifo|priority|aging] [--urgent=X] [--aging=ms] [--compare-rooms]
+//                            [--check[=time scale]] [--tolerance=X]
+// --check also runs the threaded simulation with the same students & seed, --time-scale times real time
+// (default 0.02, 50 times faster), and compares the statistics of both runs. --compare-rooms runs the same
+// students through every waiting room policy and prints their latency & fairness reports.
+public class SleepingTASimulator {
+
+    // Event types
+    private static final int WANTS_TA = 0; // A student finished working and looks for a chair
+    private static final int PATIENCE_OUT = 1; // A seated student's patience ran out
+    private static final int HELP_DONE = 2; // A TA finished helping a student
+
+    // Student states
+    private static final int WORKING = 0;
+    private static final int WAITING = 1;
+    private static final int BEING_HELPED = 2;
+    private static final int DONE = 3;
+    private static final int WENT_HOME = 4; // Out of tries without being helped (Workload runs)
+
+    private final int n;
+    private final int tas;
+    private final boolean chairsPerTa;
+
+    private final EventQueue events = new EventQueue();
+    private long now = 0; // Virtual clock in milliseconds
+    private long processed = 0; // Events handled so far
+
+    // Students, indexed by id 1..n
+    private final Random[] random; // Work time generators
+    private final int[] patience;
+    private final int[] state;
+    private final int[] visit; // Number of the current visit, so a stale patience timer can be ignored
+    private final int[] seat; // Hallway the student is sitting in
+    private final long[] seatedAt;
+    private final int[] priority; // WaitingRoom.NORMAL or URGENT
+    private final long[] waited; // Chair time over all visits
+    private final int[] gaveUps;
+    private final long[] arrival; // When the student first looks for a chair
+    private final int[] help; // Time a TA spends with the student
+    private final int[] triesLeft; // Visits left before going home unhelped. Integer.MAX_VALUE = keeps trying
+    private Workload.Distribution work; // Time between tries, null for SleepingTA.workTime
+
+    // Hallways, indexed by TA 0..tas-1
+    private final WaitingRoom[] queues;
+    private final int[] waiting; // queues[h].size()
+    private final boolean[] helping;
+    private final int[] freeChairs; // One count per hallway with chairsPerTa, otherwise only [0] is used
+    private int totalFree; // Sum of freeChairs, so a full building is turned away without scanning hallways
+
+    // Totals
+    private long helped;
+    private long visits;
+    private long gaveUp;
+    private long noChair;
+    private long chairWait;
+    private long busy;
+    private long lastHelped;
+    private long wentHome; // Students who ran out of tries
+    private long turnedAway; // Of those, the ones whose last try found no chair
+
+    // Simulation with the waiting room settings from the command line
+    SleepingTASimulator(int n, int tas, int chairCount, boolean chairsPerTa, long seed) {
+        this(n, tas, chairCount, chairsPerTa, seed, WaitingRoom.policy);
+    }
+
+    SleepingTASimulator(int n, int tas, int chairCount, boolean chairsPerTa, long seed, WaitingRoom.Policy room) {
+        this(n, tas, chairCount, chairsPerTa, room);
+        Random producer = new Random(seed); // Same draws, in the same order, as SleepingTA.Producer
+        for (int id = 1; id <= n; id++) {
+            patience[id] = SleepingTA.patienceTime(producer);
+            random[id] = SleepingTA.studentRandom(seed, id);
+            priority[id] = WaitingRoom.priorityClass(seed, id, WaitingRoom.urgentShare);
+            arrival[id] = SleepingTA.workTime(random[id]); // Everyone starts working when the producer lets them go
+            help[id] = SleepingTA.HELP_MILLIS;
+            triesLeft[id] = Integer.MAX_VALUE;
+        }
+    }
+
+    // Simulation of an open-loop workload (LoadGenerator) with the waiting room settings from the command line
+    SleepingTASimulator(Workload load, int tas, int chairCount, boolean chairsPerTa, long seed) {
+        this(load.n, tas, chairCount, chairsPerTa, WaitingRoom.policy);
+        work = load.work;
+        for (int id = 1; id <= n; id++) {
+            patience[id] = load.patienceMillis[id];
+            random[id] = SleepingTA.studentRandom(seed, id);
+            priority[id] = WaitingRoom.priorityClass(seed, id, WaitingRoom.urgentShare);
+            arrival[id] = load.arrival[id];
+            help[id] = load.help[id];
+            triesLeft[id] = load.tries;
+        }
+    }
+
+    // Arrays & hallways, the students are filled in by the constructors above
+    private SleepingTASimulator(int n, int tas, int chairCount, boolean chairsPerTa, WaitingRoom.Policy room) {
+        this.n = n;
+        this.tas = tas;
+        this.chairsPerTa = chairsPerTa;
+        random = new Random[n + 1];
+        patience = new int[n + 1];
+        state = new int[n + 1];
+        visit = new int[n + 1];
+        seat = new int[n + 1];
+        seatedAt = new long[n + 1];
+        priority = new int[n + 1];
+        waited = new long[n + 1];
+        gaveUps = new int[n + 1];
+        arrival = new long[n + 1];
+        help = new int[n + 1];
+        triesLeft = new int[n + 1];
+        queues = new WaitingRoom[tas];
+        for (int h = 0; h < tas; h++) {
+            queues[h] = new WaitingRoom(room, WaitingRoom.agingMillis, n);
+        }
+        waiting = new int[tas];
+        helping = new boolean[tas];
+        freeChairs = new int[chairsPerTa ? tas : 1];
+        Arrays.fill(freeChairs, chairCount);
+        totalFree = chairCount * freeChairs.length;
+    }
+
+    // Run until every student has been helped (or went home)
+    TaStatistics run() {
+        for (int id = 1; id <= n; id++) {
+            events.add(arrival[id], WANTS_TA, id, 0);
+        }
+        while (helped + wentHome < n && !events.isEmpty()) {
+            now = events.time();
+            int type = events.type();
+            int actor = events.actor();
+            int detail = events.detail();
+            events.remove();
+            processed++;
+            if (type == WANTS_TA) {
+                wantsTa(actor);
+            } else if (type == PATIENCE_OUT) {
+                patienceOut(actor, detail);
+            } else {
+                helpDone(actor, detail);
+            }
+        }
+        FairnessReport fairness = new FairnessReport(n);
+        for (int id = 1; id <= n; id++) {
+            fairness.student(id, priority[id], waited[id], gaveUps[id]);
+        }
+        return new TaStatistics(n, tas, helped, visits, gaveUp, noChair, chairWait, busy, lastHelped, fairness);
+    }
+
+    long eventsProcessed() {
+        return processed;
+    }
+
+    long wentHome() {
+        return wentHome;
+    }
+
+    long turnedAway() {
+        return turnedAway;
+    }
+
+    // Simulated time the run ended at, in ms
+    long endTime() {
+        return now;
+    }
+
+    // Total chair time of every helped student, in ms
+    long[] helpedWaits() {
+        long[] waits = new long[(int) helped];
+        int count = 0;
+        for (int id = 1; id <= n; id++) {
+            if (state[id] == DONE) {
+                waits[count++] = waited[id];
+            }
+        }
+        return waits;
+    }
+
+    private void wantsTa(int id) {
+        int h = takeSeat(id);
+        if (h < 0) { // All chairs are full, back to work
+            noChair++;
+            if (--triesLeft[id] == 0) {
+                turnedAway++;
+                goHome(id);
+            } else {
+                events.add(now + workTime(id), WANTS_TA, id, 0);
+            }
+            return;
+        }
+        visits++;
+        visit[id]++;
+        state[id] = WAITING;
+        seat[id] = h;
+        seatedAt[id] = now;
+        queues[h].add(id, priority[id], now);
+        waiting[h]++;
+        events.add(now + patience[id], PATIENCE_OUT, id, visit[id]);
+        if (!helping[h]) { // This hallway's TA is asleep and wakes up
+            callNext(h);
+        } else {
+            for (int ta = 0; ta < tas; ta++) { // Otherwise the first sleeping TA wakes up & steals
+                if (!helping[ta]) {
+                    callNext(ta);
+                    break;
+                }
+            }
+        }
+    }
+
+    private void patienceOut(int id, int visitNumber) {
+        if (state[id] != WAITING || visit[id] != visitNumber) { // Already called, timer is stale
+            return;
+        }
+        gaveUp++;
+        gaveUps[id]++;
+        chairWait += patience[id];
+        waited[id] += patience[id];
+        queues[seat[id]].remove(id); // O(log n), the student leaves their chair
+        waiting[seat[id]]--;
+        freeChairs[pool(seat[id])]++;
+        totalFree++;
+        state[id] = WORKING;
+        if (--triesLeft[id] == 0) {
+            goHome(id);
+        } else {
+            events.add(now + workTime(id), WANTS_TA, id, 0);
+        }
+    }
+
+    private void goHome(int id) {
+        wentHome++;
+        state[id] = WENT_HOME;
+    }
+
+    private int workTime(int id) {
+        return work == null ? SleepingTA.workTime(random[id]) : work.draw(random[id]);
+    }
+
+    private void helpDone(int ta, int id) {
+        helped++;
+        busy += help[id];
+        lastHelped = now;
+        state[id] = DONE;
+        helping[ta] = false;
+        callNext(ta);
+    }
+
+    // A free TA calls the next student from their own hallway, or steals one, or goes to sleep
+    private void callNext(int ta) {
+        int from = ta;
+        int id = queues[ta].poll();
+        if (id < 0) { // Own hallway empty, take the next student of the busiest other hallway
+            from = -1;
+            for (int h = 0; h < tas; h++) {
+                if (h != ta && waiting[h] > 0 && (from < 0 || waiting[h] > waiting[from])) {
+                    from = h;
+                }
+            }
+            if (from < 0) { // Nobody is waiting anywhere, TA sleeps
+                return;
+            }
+            id = queues[from].poll();
+        }
+        waiting[from]--;
+        freeChairs[pool(from)]++;
+        totalFree++;
+        chairWait += now - seatedAt[id];
+        waited[id] += now - seatedAt[id];
+        state[id] = BEING_HELPED;
+        helping[ta] = true;
+        events.add(now + help[id], HELP_DONE, ta, id);
+    }
+
+    // Same choice as SleepingTA.Student.takeSeat. Returns the hallway, or -1 if no chair is free
+    private int takeSeat(int id) {
+        if (totalFree == 0) { // Every tryAcquire would fail
+            return -1;
+        }
+        totalFree--; // One of the two loops below takes a chair
+        int start = id % tas;
+        int best = -1;
+        for (int k = 0; k < tas; k++) {
+            int h = (start + k) % tas;
+            if (best < 0 || load(h) < load(best)) {
+                best = h;
+            }
+        }
+        if (freeChairs[pool(best)] > 0) {
+            freeChairs[pool(best)]--;
+            return best;
+        }
+        for (int k = 0; k < tas; k++) {
+            int h = (start + k) % tas;
+            if (pool(h) != pool(best) && freeChairs[pool(h)] > 0) {
+                freeChairs[pool(h)]--;
+                return h;
+            }
+        }
+        return -1;
+    }
+
+    private int load(int h) {
+        return waiting[h] + (helping[h] ? 1 : 0);
+    }
+
+    private int pool(int h) {
+        return chairsPerTa ? h : 0;
+    }
+
+    // Binary min-heap of events ordered by (time, order scheduled), kept in parallel primitive arrays so
+    // scheduling an event does not allocate
+    private static final class EventQueue {
+        private long[] times = new long[1024];
+        private long[] orders = new long[1024];
+        private int[] types = new int[1024];
+        private int[] actors = new int[1024];
+        private int[] details = new int[1024];
+        private int size = 0;
+        private long scheduled = 0;
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        // Fields of the earliest event
+        long time() {
+            return times[0];
+        }
+
+        int type() {
+            return types[0];
+        }
+
+        int actor() {
+            return actors[0];
+        }
+
+        int detail() {
+            return details[0];
+        }
+
+        void add(long time, int type, int actor, int detail) {
+            if (size == times.length) {
+                int capacity = size * 2;
+                times = Arrays.copyOf(times, capacity);
+                orders = Arrays.copyOf(orders, capacity);
+                types = Arrays.copyOf(types, capacity);
+                actors = Arrays.copyOf(actors, capacity);
+                details = Arrays.copyOf(details, capacity);
+            }
+            long order = scheduled++;
+            int i = size++;
+            while (i > 0) { // Sift up
+                int parent = (i - 1) >>> 1;
+                if (!before(time, order, times[parent], orders[parent])) {
+                    break;
+                }
+                move(parent, i);
+                i = parent;
+            }
+            set(i, time, order, type, actor, detail);
+        }
+
+        // Drop the earliest event
+        void remove() {
+            int last = --size;
+            if (last == 0) {
+                return;
+            }
+            long time = times[last];
+            long order = orders[last];
+            int type = types[last];
+            int actor = actors[last];
+            int detail = details[last];
+            int i = 0;
+            while (true) { // Sift the last event down from the root
+                int child = 2 * i + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && before(times[child + 1], orders[child + 1], times[child], orders[child])) {
+                    child++;
+                }
+                if (!before(times[child], orders[child], time, order)) {
+                    break;
+                }
+                move(child, i);
+                i = child;
+            }
+            set(i, time, order, type, actor, detail);
+        }
+
+        private static boolean before(long time, long order, long otherTime, long otherOrder) {
+            return time < otherTime || (time == otherTime && order < otherOrder);
+        }
+
+        private void move(int from, int to) {
+            set(to, times[from], orders[from], types[from], actors[from], details[from]);
+        }
+
+        private void set(int i, long time, long order, int type, int actor, int detail) {
+            times[i] = time;
+            orders[i] = order;
+            types[i] = type;
+            actors[i] = actor;
+            details[i] = detail;
+        }
+    }
+
+    // Run the same students through every waiting room policy and print what each one did to them. Without
+    // --urgent a quarter of the students are urgent, otherwise every policy would be plain FIFO
+    private static void compareRooms(int n, int tas, int chairCount, boolean chairsPerTa, long seed) {
+        if (WaitingRoom.urgentShare == 0) {
+            WaitingRoom.urgentShare = 0.25;
+        }
+        System.out.printf("Seed %d, %.0f%% urgent students, aging %d ms%n", seed, WaitingRoom.urgentShare * 100,
+                WaitingRoom.agingMillis);
+        for (WaitingRoom.Policy room : WaitingRoom.Policy.values()) {
+            TaStatistics stats = new SleepingTASimulator(n, tas, chairCount, chairsPerTa, seed, room).run();
+            stats.fairness.print(room.name().toLowerCase() + ": helped " + stats.helped + " in "
+                    + Math.round(stats.makespanMillis) + " ms, " + stats.gaveUp + " give-ups");
+        }
+    }
+
+    public static void main(String[] args) {
+        int n = 10;
+        int chairCount = 3;
+        int tas = 1;
+        boolean chairsPerTa = false;
+        long seed = new Random().nextLong();
+        double checkScale = 0; // 0 means no --check
+        double tolerance = 0.2;
+        boolean compareRooms = false;
+        try {
+            for (String arg : args) {
+                if (arg.startsWith("--students=")) {
+                    n = Integer.parseInt(arg.substring("--students=".length()));
+                } else if (arg.startsWith("--chairs=")) {
+                    chairCount = Integer.parseInt(arg.substring("--chairs=".length()));
+                    chairsPerTa = false;
+                } else if (arg.startsWith("--chairs-per-ta=")) {
+                    chairCount = Integer.parseInt(arg.substring("--chairs-per-ta=".length()));
+                    chairsPerTa = true;
+                } else if (arg.startsWith("--tas=")) {
+                    tas = Integer.parseInt(arg.substring("--tas=".length()));
+                } else if (arg.startsWith("--seed=")) {
+                    seed = Long.parseLong(arg.substring("--seed=".length()));
+                } else if (arg.equals("--check")) {
+                    checkScale = 0.02;
+                } else if (arg.startsWith("--check=")) {
+                    checkScale = Double.parseDouble(arg.substring("--check=".length()));
+                } else if (arg.startsWith("--tolerance=")) {
+                    tolerance = Double.parseDouble(arg.substring("--tolerance=".length()));
+                } else if (arg.equals("--compare-rooms")) {
+                    compareRooms = true;
+                } else if (!Actors.configure(arg) && !WaitingRoom.configure(arg)) { // --threads for the threaded
+                                                                                    // run of --check, --room options
+                    System.out.println("Usage: java SleepingTASimulator [--students=N] [--tas=M]"
+                            + " [--chairs=N | --chairs-per-ta=N] [--seed=S] [--room=fifo|priority|aging] [--urgent=X]"
+                            + " [--aging=ms] [--compare-rooms] [--check[=time scale]] [--tolerance=X]"
+                            + " [--threads=platform|virtual|pool[=N]]");
+                    System.exit(1);
+                }
+            }
+            if (checkScale > 0) {
+                Actors.requirePool(tas + 1, "TAs & student producer"); // Of the threaded run
+            }
+        } catch (IllegalArgumentException e) {
+            System.out.println("Invalid option value: " + e.getMessage());
+            System.exit(1);
+        }
+        if (n <= 0 || chairCount <= 0 || tas <= 0 || checkScale < 0) {
+            System.out.println("Students, chairs, TAs and the time scale must be positive.");
+            System.exit(1);
+        }
+
+        if (compareRooms) {
+            compareRooms(n, tas, chairCount, chairsPerTa, seed);
+            return;
+        }
+
+        SleepingTASimulator simulator = new SleepingTASimulator(n, tas, chairCount, chairsPerTa, seed);
+        long start = System.nanoTime();
+        TaStatistics simulated = simulator.run();
+        long elapsed = Math.max(1, System.nanoTime() - start);
+        System.out.println("Seed " + seed);
+        System.out.println("Event-driven: " + simulated);
+        System.out.printf("%d events in %.1f ms (%.2f million events per second)%n", simulator.eventsProcessed(),
+                elapsed / 1e6, simulator.eventsProcessed() * 1e3 / elapsed);
+        simulated.fairness.print("Waiting room " + WaitingRoom.policy.name().toLowerCase());
+
+        if (checkScale > 0) { // Same students through the threaded reference at checkScale times real time
+            EventLog.setLevel(EventLog.Level.OFF);
+            SleepingTA.timeScale = checkScale;
+            TaStatistics threaded = SleepingTA.runSimulation(n, tas, chairCount, chairsPerTa, seed);
+            System.out.println("Threaded:     " + threaded);
+            threaded.fairness.print("Threaded waiting room " + WaitingRoom.policy.name().toLowerCase());
+            boolean pass = TaStatistics.compare("event-driven", simulated, "threaded", threaded, tolerance);
+            System.out.println(pass ? "Check passed" : "Check FAILED");
+            if (!pass) {
+                System.exit(1);
+            }
+        }
+    }
+}
@@ -0,0 +1,680 @@
+import java.io.EOFException; // The other end closed the connection
+import java.io.IOException;
+import java.net.SocketException; // Connecting to a socket file nobody serves
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress; // Local socket file, no network involved
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock; // Only one process at a time decides whether to serve or connect
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector; // Waiting for a reply without the channel being closed by an interrupt
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList; // Open connections, to close them all at the end
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Buffer shared between processes over a Unix-domain socket, the --engine=socket BufferEngine. It is the
+// fallback for when the mapped ring file can not be shared (another host's file system, a ring that must
+// not outlive the run) and needs nothing but a socket file, no network. One process holds the buffer, an
+// in-memory lock-free ring (Host), and serves it; producer & consumer processes on the same machine
+// connect to it (SocketBuffer) and insert & remove through it.
+//   --socket=<path>   socket file (default buffer.sock). The first process started on it serves the
+//                     buffer, the ones started later connect to it
+//
+// Every thread gets its own connection, so a producer waiting for room does not hold up a consumer of the
+// same process. A request is answered right away, before the next one is sent, numbers are ints:
+//   hello   MAGIC VERSION           -> capacity
+//   insert  INSERT count items...   -> count if the whole batch went in with one claim, 0 if it did not fit
+//   take    TAKE max                -> n items..., the 0 to max items that were ready
+//   size    SIZE                    -> items queued
+// The server never waits for a client: a producer waiting for room & a consumer waiting for items wait
+// here between requests with their wait strategy, like they would on the ring, and that is where an
+// interrupt stops them. A request itself can not be cut short by an interrupt (see Connection), so the
+// items a take removed from the ring always reach the consumer, and a producer always learns whether its
+// batch went in.
+final class SocketBuffer implements BufferEngine {
+
+    // Setting from the command line
+    private static Path file = Paths.get("buffer.sock");
+
+    private static final int MAGIC = 0x4f53534b; // "OSSK"
+    private static final int VERSION = 2;
+    private static final int INSERT = 1;
+    private static final int TAKE = 3;
+    private static final int SIZE = 4;
+    private static final long ANSWER_MILLIS = 10_000; // A client gives up on a serving process this slow
+
+    // Handle --socket=<path>. Returns false if the argument is not ours.
+    static boolean configure(String arg) {
+        if (arg.startsWith("--socket=")) {
+            file = Paths.get(arg.substring("--socket=".length()));
+            return true;
+        }
+        return false;
+    }
+
+    // Serve the buffer on the socket given on the command line (plus suffix, for the other buffers of a
+    // pipeline), or connect to the process already serving it. A socket file left behind by a process that
+    // died is replaced. Problems come back as IllegalArgumentException like any other bad option value.
+    static BufferEngine open(int capacity, String suffix) {
+        Path target = Paths.get(file + suffix);
+        Path guardFile = Paths.get(target + ".lock");
+        try (FileChannel guard = FileChannel.open(guardFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            FileLock decide = guard.lock(); // Two processes starting at once must not both serve
+            try {
+                if (Files.exists(target) && !isSocket(target)) {
+                    throw new IOException("not a socket file");
+                }
+                try {
+                    SocketBuffer client = new SocketBuffer(target);
+                    System.out.println("Connected to the buffer served on " + target + " (" + client.capacity()
+                            + " slots)");
+                    return client;
+                } catch (SocketException e) { // Nobody is listening: no socket file, or a stale one
+                    Files.deleteIfExists(target);
+                    Host host = new Host(target, capacity);
+                    System.out.println("Serving the buffer on " + target + " to other processes");
+                    return host;
+                }
+            } finally {
+                decide.release();
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Can not use socket " + target + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static boolean isSocket(Path path) throws IOException {
+        int mode = (Integer) Files.getAttribute(path, "unix:mode");
+        return (mode & 0170000) == 0140000; // S_IFSOCK
+    }
+
+    // One connection: ints buffered both ways so a whole batch goes out in one write. An interrupt closes
+    // a blocking channel under the thread blocked in it, which would throw away a reply that is already on
+    // its way. So the channel is non-blocking and the thread waits for it on a selector: an interrupt only
+    // wakes the selector up, the wait goes on and done() puts the interrupt back once the request is over
+    private static final class Connection {
+        private final SocketChannel channel;
+        private final Selector selector;
+        private final long timeoutMillis; // Longest wait for the other end, 0 = no limit
+        private final ByteBuffer out = ByteBuffer.allocate(1 << 16);
+        private final ByteBuffer in = ByteBuffer.allocate(1 << 16);
+        private boolean interrupted = false; // Interrupt that came during the request, see done()
+
+        Connection(SocketChannel channel, long timeoutMillis) throws IOException {
+            this.channel = channel;
+            this.timeoutMillis = timeoutMillis;
+            try {
+                channel.configureBlocking(false);
+                selector = Selector.open();
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+            in.flip(); // Nothing read yet
+        }
+
+        void putInt(int value) throws IOException {
+            if (out.remaining() < 4) {
+                flush();
+            }
+            out.putInt(value);
+        }
+
+        void flush() throws IOException {
+            out.flip();
+            while (out.hasRemaining()) {
+                if (channel.write(out) == 0) { // Socket buffer full
+                    await(SelectionKey.OP_WRITE);
+                }
+            }
+            out.clear();
+        }
+
+        int getInt() throws IOException {
+            while (in.remaining() < 4) {
+                in.compact();
+                int read = channel.read(in);
+                in.flip();
+                if (read < 0) {
+                    throw new EOFException("connection closed");
+                }
+                if (read == 0) { // Nothing there yet
+                    await(SelectionKey.OP_READ);
+                }
+            }
+            return in.getInt();
+        }
+
+        // Wait until the channel is ready for op. Only closing the connection (or the timeout) ends the
+        // wait early, an interrupt is remembered and waited through
+        private void await(int op) throws IOException {
+            long start = System.nanoTime();
+            try {
+                channel.register(selector, op);
+                while (true) {
+                    if (Thread.interrupted()) { // select() would return at once while it is set
+                        interrupted = true;
+                    }
+                    if (!channel.isOpen()) {
+                        throw new ClosedChannelException();
+                    }
+                    long left = timeoutMillis - (System.nanoTime() - start) / 1_000_000;
+                    if (timeoutMillis > 0 && left <= 0) {
+                        throw new IOException("no answer in " + timeoutMillis + " ms");
+                    }
+                    if (selector.select(timeoutMillis > 0 ? left : 0) > 0) {
+                        selector.selectedKeys().clear();
+                        return;
+                    }
+                }
+            } catch (ClosedSelectorException e) { // close() from another thread
+                throw new ClosedChannelException();
+            }
+        }
+
+        // End of a request: hand back an interrupt that came while waiting for the other end
+        void done() {
+            if (interrupted) {
+                interrupted = false;
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        void close() {
+            try {
+                channel.close();
+                selector.close(); // Wakes a thread waiting in await
+            } catch (IOException e) {
+                // Closing anyway
+            }
+        }
+    }
+
+    private final Path path;
+    private final int size; // Capacity of the served buffer
+    private final ThreadLocal<Connection> local = new ThreadLocal<>(); // This thread's connection
+    private final List<Connection> connections = new CopyOnWriteArrayList<>();
+    private final AtomicBoolean lost = new AtomicBoolean(); // The serving process went away, said once
+    private volatile boolean closed = false;
+
+    // How producers wait for room & consumers for items, between requests
+    private WaitStrategy producerWait = new WaitStrategy.SpinPark();
+    private WaitStrategy consumerWait = new WaitStrategy.SpinPark();
+
+    // Time a batch took to get in (round trip included) / waiting for items, see Metrics
+    private final Metrics.Histogram blockedEmpty = Metrics.histogram("buffer.blocked_empty");
+    private final Metrics.Histogram blockedFull = Metrics.histogram("buffer.blocked_full");
+
+    // Connect to the buffer served on path. SocketException if nobody serves it
+    private SocketBuffer(Path path) throws IOException {
+        this.path = path;
+        Connection first = connect(path);
+        size = hello(first);
+        local.set(first); // The opening thread keeps it
+        connections.add(first);
+    }
+
+    private static Connection connect(Path path) throws IOException {
+        return new Connection(SocketChannel.open(UnixDomainSocketAddress.of(path)), ANSWER_MILLIS);
+    }
+
+    private static int hello(Connection c) throws IOException {
+        int capacity;
+        try {
+            c.putInt(MAGIC);
+            c.putInt(VERSION);
+            c.flush();
+            capacity = c.getInt();
+        } finally {
+            c.done();
+        }
+        if (capacity <= 0) {
+            c.close();
+            throw new IOException("the serving process speaks another protocol version");
+        }
+        return capacity;
+    }
+
+    // This thread's connection, opened on first use
+    private Connection connection() throws IOException {
+        Connection c = local.get();
+        if (c == null) {
+            c = connect(path);
+            hello(c);
+            local.set(c);
+            connections.add(c);
+        }
+        return c;
+    }
+
+    // A request failed. Drop the connection, and say once that the buffer is gone
+    private void failed(IOException e) {
+        Connection c = local.get();
+        if (c != null) {
+            c.close();
+            connections.remove(c);
+            local.remove();
+        }
+        if (!closed && lost.compareAndSet(false, true)) {
+            System.out.println("Lost the buffer served on " + path + ": "
+                    + (e.getMessage() != null ? e.getMessage() : e.toString()));
+        }
+    }
+
+    // Failed insert or take: the thread stops the same way it does when main interrupts it
+    private InterruptedException stop(IOException e) {
+        failed(e);
+        Thread.currentThread().interrupt();
+        return new InterruptedException("buffer connection closed");
+    }
+
+    @Override
+    public void insert_item(int item) throws InterruptedException {
+        insert_items(new int[] { item }, 1);
+    }
+
+    @Override
+    public int remove_item() throws InterruptedException {
+        int[] one = new int[1];
+        remove_items(one, 1);
+        return one[0];
+    }
+
+    @Override
+    public void insert_items(int[] items, int count) throws InterruptedException {
+        if (count <= 0) {
+            return;
+        }
+        if (count > size) {
+            throw new IllegalArgumentException("batch of " + count + " does not fit in " + size + " slots");
+        }
+        WaitStrategy.checkInterrupt();
+        long start = Metrics.now();
+        int tries = 0;
+        try {
+            while (!tryInsert(items, count)) { // No room for the whole batch yet, wait & ask again
+                tries = producerWait.idle(tries);
+            }
+        } catch (IOException e) {
+            throw stop(e);
+        }
+        producerWait.done(tries);
+        blockedEmpty.recordSince(start);
+        for (int i = 0; i < count; i++) {
+            EventLog.log(EventLog.Event.PRODUCED, items[i]);
+        }
+    }
+
+    @Override
+    public int remove_items(int[] dst, int max) throws InterruptedException {
+        if (max <= 0) {
+            return 0;
+        }
+        long start = Metrics.now();
+        int tries = 0;
+        int count;
+        while ((count = try_remove_items(dst, max)) == 0) { // Nothing ready, wait & ask again
+            tries = consumerWait.idle(tries); // Also notices the interrupt a failed take leaves behind
+        }
+        consumerWait.done(tries);
+        blockedFull.recordSince(start);
+        return count;
+    }
+
+    // One insert request: the whole batch went in, or nothing did
+    private boolean tryInsert(int[] items, int count) throws IOException {
+        Connection c = connection();
+        try {
+            c.putInt(INSERT);
+            c.putInt(count);
+            for (int i = 0; i < count; i++) {
+                c.putInt(items[i]);
+            }
+            c.flush();
+            return c.getInt() == count;
+        } finally {
+            c.done();
+        }
+    }
+
+    @Override
+    public boolean try_insert_item(int item) {
+        try {
+            if (!tryInsert(new int[] { item }, 1)) {
+                return false;
+            }
+        } catch (IOException e) {
+            stop(e);
+            return false;
+        }
+        EventLog.log(EventLog.Event.PRODUCED, item);
+        return true;
+    }
+
+    @Override
+    public boolean try_insert_items(int[] items, int count) {
+        if (count <= 0) {
+            return true;
+        }
+        if (count > size) {
+            throw new IllegalArgumentException("batch of " + count + " does not fit in " + size + " slots");
+        }
+        try {
+            if (!tryInsert(items, count)) {
+                return false;
+            }
+        } catch (IOException e) {
+            stop(e);
+            return false;
+        }
+        for (int i = 0; i < count; i++) {
+            EventLog.log(EventLog.Event.PRODUCED, items[i]);
+        }
+        return true;
+    }
+
+    @Override
+    public int try_remove_items(int[] dst, int max) {
+        if (max <= 0) {
+            return 0;
+        }
+        int count;
+        try {
+            Connection c = connection();
+            try {
+                c.putInt(TAKE);
+                c.putInt(Math.min(max, size));
+                c.flush();
+                count = c.getInt();
+                for (int i = 0; i < count; i++) {
+                    dst[i] = c.getInt();
+                }
+            } finally {
+                c.done();
+            }
+        } catch (IOException e) {
+            stop(e);
+            return 0;
+        }
+        for (int i = 0; i < count; i++) {
+            EventLog.log(EventLog.Event.CONSUMED, dst[i]);
+        }
+        return count;
+    }
+
+    @Override
+    public int capacity() {
+        return size;
+    }
+
+    // Asks the serving process. 0 if it is gone
+    @Override
+    public int size() {
+        if (closed) { // The final metrics snapshot comes after close()
+            return 0;
+        }
+        try {
+            Connection c = connection();
+            try {
+                c.putInt(SIZE);
+                c.flush();
+                return c.getInt();
+            } finally {
+                c.done();
+            }
+        } catch (IOException e) {
+            failed(e);
+            return 0;
+        }
+    }
+
+    @Override
+    public void useWaitStrategies(WaitStrategy producers, WaitStrategy consumers) {
+        producerWait = producers;
+        consumerWait = consumers;
+    }
+
+    @Override
+    public WaitStrategy producerWait() {
+        return producerWait;
+    }
+
+    @Override
+    public WaitStrategy consumerWait() {
+        return consumerWait;
+    }
+
+    @Override
+    public boolean serializesTurns() {
+        return false;
+    }
+
+    @Override
+    public String name() {
+        return "socket";
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        for (Connection c : connections) {
+            c.close();
+        }
+        connections.clear();
+    }
+
+    // The process holding the buffer: its own producers & consumers use the ring directly, other
+    // processes' requests are served by one thread per connection (named Remote-N in the log)
+    static final class Host implements BufferEngine {
+        private final LockFreeRingBuffer ring;
+        private final Path path;
+        private final ServerSocketChannel server;
+        private final List<Connection> clients = new CopyOnWriteArrayList<>();
+        private final List<Thread> handlers = new CopyOnWriteArrayList<>();
+        private final AtomicInteger connected = new AtomicInteger(); // Connections so far, numbers the threads
+        private volatile boolean closed = false;
+
+        Host(Path path, int capacity) throws IOException {
+            this.path = path;
+            ring = new LockFreeRingBuffer(capacity);
+            server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+            try {
+                server.bind(UnixDomainSocketAddress.of(path));
+            } catch (IOException e) {
+                server.close();
+                throw e;
+            }
+            Thread acceptor = new Thread(this::accept, "SocketBuffer-acceptor");
+            acceptor.setDaemon(true); // Never keeps the program alive
+            acceptor.start();
+        }
+
+        private void accept() {
+            while (!closed) {
+                try {
+                    Connection c = new Connection(server.accept(), 0);
+                    clients.add(c);
+                    Thread handler = new Thread(() -> serve(c), "Remote-" + connected.incrementAndGet());
+                    handler.setDaemon(true);
+                    handlers.add(handler);
+                    handler.start();
+                } catch (IOException e) { // Closed by close(), or the socket file went away
+                    if (!closed) {
+                        System.out.println("Stopped serving the buffer on " + path + ": " + e.getMessage());
+                    }
+                    return;
+                }
+            }
+        }
+
+        // Answer one connection's requests until it closes
+        private void serve(Connection c) {
+            int[] batch = new int[Math.min(ring.capacity(), 1024)];
+            try {
+                if (c.getInt() != MAGIC || c.getInt() != VERSION) {
+                    c.putInt(-1);
+                    c.flush();
+                    return;
+                }
+                c.putInt(ring.capacity());
+                c.flush();
+                while (true) {
+                    int op = c.getInt();
+                    if (op == INSERT || op == TAKE) {
+                        int count = c.getInt();
+                        if (count < 0 || count > ring.capacity()) {
+                            return; // Not one of ours, hang up
+                        }
+                        if (count > batch.length) {
+                            batch = new int[count];
+                        }
+                        if (op == INSERT) {
+                            for (int i = 0; i < count; i++) {
+                                batch[i] = c.getInt();
+                            }
+                            c.putInt(ring.try_insert_items(batch, count) ? count : 0);
+                            c.flush();
+                        } else {
+                            int taken = ring.try_remove_items(batch, count);
+                            try {
+                                c.putInt(taken);
+                                for (int i = 0; i < taken; i++) {
+                                    c.putInt(batch[i]);
+                                }
+                                c.flush();
+                            } catch (IOException e) { // Consumer gone before it got them, keep the items
+                                putBack(batch, taken);
+                                throw e;
+                            }
+                        }
+                    } else if (op == SIZE) {
+                        c.putInt(ring.size());
+                        c.flush();
+                    } else {
+                        return;
+                    }
+                }
+            } catch (IOException e) {
+                // Client went away, normal at the end of its run, or close()
+            } finally {
+                c.close();
+                clients.remove(c);
+            }
+        }
+
+        // Items taken for a reply that could not be sent go back in at the tail, out of order but not lost
+        // unless producers filled the freed slots in the meantime
+        private void putBack(int[] items, int count) {
+            int lostItems = 0;
+            for (int i = 0; i < count; i++) {
+                if (!ring.try_insert_item(items[i])) {
+                    lostItems++;
+                }
+            }
+            if (lostItems > 0) {
+                System.out.println("Lost " + lostItems + " items taken for a consumer that went away");
+            }
+        }
+
+        @Override
+        public void insert_item(int item) throws InterruptedException {
+            ring.insert_item(item);
+        }
+
+        @Override
+        public int remove_item() throws InterruptedException {
+            return ring.remove_item();
+        }
+
+        @Override
+        public void insert_items(int[] items, int count) throws InterruptedException {
+            ring.insert_items(items, count);
+        }
+
+        @Override
+        public int remove_items(int[] dst, int max) throws InterruptedException {
+            return ring.remove_items(dst, max);
+        }
+
+        @Override
+        public boolean try_insert_item(int item) {
+            return ring.try_insert_item(item);
+        }
+
+        @Override
+        public boolean try_insert_items(int[] items, int count) {
+            return ring.try_insert_items(items, count);
+        }
+
+        @Override
+        public int try_remove_items(int[] dst, int max) {
+            return ring.try_remove_items(dst, max);
+        }
+
+        @Override
+        public int capacity() {
+            return ring.capacity();
+        }
+
+        @Override
+        public int size() {
+            return ring.size();
+        }
+
+        @Override
+        public void useWaitStrategies(WaitStrategy producers, WaitStrategy consumers) {
+            ring.useWaitStrategies(producers, consumers);
+        }
+
+        @Override
+        public WaitStrategy producerWait() {
+            return ring.producerWait();
+        }
+
+        @Override
+        public WaitStrategy consumerWait() {
+            return ring.consumerWait();
+        }
+
+        @Override
+        public boolean serializesTurns() {
+            return false;
+        }
+
+        @Override
+        public String name() {
+            return "socket";
+        }
+
+        // Stop serving: connected processes see the connection close, items still queued go with us
+        @Override
+        public void close() {
+            closed = true;
+            try {
+                server.close();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+            for (Connection c : clients) {
+                c.close();
+            }
+            for (Thread handler : handlers) {
+                handler.interrupt();
+            }
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                System.out.println("Could not remove socket file " + path + ": " + e.getMessage());
+            }
+        }
+    }
+}
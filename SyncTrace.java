@@ -0,0 +1,658 @@
+import java.io.DataInputStream; // Reading a trace back
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream; // --trace=<file>
+import java.io.IOException;
+import java.io.BufferedInputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList; // Thread names of a trace
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue; // Merging the threads' recordings by stamp
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong; // Record: the stamp that orders the steps
+import java.util.concurrent.atomic.AtomicReferenceArray; // Record: who waits for which stamp
+import java.util.concurrent.locks.LockSupport; // Replay: threads park until it is their turn
+
+// Record & replay of the order in which the simulation threads change shared state (--trace / --replay).
+// Every place where a thread changes state other threads can see is a traced step: a buffer enqueue or
+// dequeue (TracedBuffer), a student taking a chair, giving up or arriving at a TA, a TA calling the next
+// student or finishing with one, main starting the shutdown. A step is bracketed by begin() & end():
+//   record  begin() stamps the step from one shared counter (a single getAndIncrement) and waits until
+//           the step before it ended, end() appends (stamp, step, value) to a buffer of the thread's own.
+//           close() merges the buffers by stamp. The order of the trace is then exactly the order the
+//           steps changed the state in, and only the step itself runs one at a time: no shared buffer,
+//           no file writes
+//   replay  begin() parks the thread until the trace says it is that thread's turn, end() checks the
+//           value is the recorded one and hands the turn to the thread of the next step
+// Everything else (sleeps, patience timeouts, spinning on a full buffer, which TA a signal wakes) only
+// decides when a thread gets to its next step, so it needs no tracing: with the same seed and the same
+// order of steps a replay makes the same decisions. The few places that use the wall clock for a
+// decision (arrival times of the aging waiting room) read it through clock(), which is recorded too.
+//
+// The trace is a small header (seed, simulation, options) followed by one varint record per step:
+// (thread << 4 | step) and the value zigzag encoded, 2 - 4 bytes for most steps. While recording a step
+// costs the getAndIncrement, a volatile write handing the turn on & a few byte stores into its thread's
+// buffer. Steps are short & never wait inside (TracedBuffer waits between attempts), so neither does begin().
+// A replay that reaches a step the trace does not have (different options, a recovered mapped ring, a
+// bug) prints where it diverged and lets the threads run free from there. A replay also runs free after the
+// SHUTDOWN step: the drain that follows ends with main interrupting threads, which no trace can order.
+public final class SyncTrace {
+
+    // Kinds of traced steps. NAME & CLOCK are bookkeeping: the name of a new thread, a clock reading
+    public enum Step {
+        NAME, CLOCK, ENQUEUE, DEQUEUE, STUDENT_SEAT, STUDENT_CHECK, STUDENT_ARRIVED, TA_CALL, TA_FINISH, SHUTDOWN
+    }
+
+    private enum Mode { OFF, RECORD, REPLAY }
+
+    private static final int MAGIC = 0x4f535452; // "OSTR"
+    private static final int VERSION = 1;
+    private static final long STALL_NANOS = TimeUnit.SECONDS.toNanos(10); // Replay gives up on a missing turn
+
+    // Settings from the command line
+    private static String recordFile;
+    private static String replayFile;
+
+    private static Mode mode = Mode.OFF; // Set before any simulation thread starts
+
+    // Record: steps go to the recording of their thread, the file is written by start() & close() only
+    private static final AtomicLong stamps = new AtomicLong(); // Next stamp, the order of the trace
+    private static volatile long ended = 0; // Steps before this stamp have ended, its step may begin
+    private static final int WAITING = 64; // Parked threads by stamp % WAITING, see awaitEnded
+    private static final AtomicReferenceArray<Thread> waiting = new AtomicReferenceArray<>(WAITING);
+    private static final Queue<Recording> recordings = new ConcurrentLinkedQueue<>(); // Of every thread so far
+    private static final ThreadLocal<Recording> recording = ThreadLocal.withInitial(() -> {
+        Recording own = new Recording(Thread.currentThread().getName());
+        recordings.add(own);
+        return own;
+    });
+    private static OutputStream out;
+    private static final byte[] buffer = new byte[1 << 16];
+    private static int buffered = 0;
+    private static long written = 0; // Bytes flushed to the file
+    private static long steps = 0;
+
+    // Replay: the whole trace, step i done by thread threads[i]
+    private static String[] names;
+    private static int[] threads;
+    private static byte[] kinds;
+    private static long[] values;
+    private static Thread[] parked; // Thread of every trace thread index once it reached a step
+    private static volatile int turn = 0; // Next step to replay
+    private static volatile boolean free = false; // Replay finished or diverged, nothing is enforced any more
+    private static int shutdownStep = -1; // Replay reached the recorded SHUTDOWN step, the rest runs free
+
+    // Trace index of the current thread, -1 until known (or not in the trace)
+    private static final ThreadLocal<int[]> local = ThreadLocal.withInitial(() -> new int[] { -1 });
+
+    private SyncTrace() {
+    }
+
+    // Handle --trace=<file> & --replay=<file>. Returns false if the argument is not ours.
+    public static boolean configure(String arg) {
+        if (arg.startsWith("--trace=")) {
+            recordFile = arg.substring("--trace=".length());
+        } else if (arg.startsWith("--replay=")) {
+            replayFile = arg.substring("--replay=".length());
+        } else {
+            return false;
+        }
+        if (recordFile != null && replayFile != null) {
+            throw new IllegalArgumentException("--trace and --replay can not be used together");
+        }
+        return true;
+    }
+
+    // Start recording or replaying for one run of simulation, called before its threads start. Returns the
+    // seed to use: the given one, or the recorded one when replaying. Problems with the trace file come back
+    // as IllegalArgumentException like any other bad option value.
+    static long start(String simulation, String[] args, long seed) {
+        String options = options(args);
+        try {
+            if (recordFile != null) {
+                out = new FileOutputStream(recordFile);
+                putInt(MAGIC);
+                putInt(VERSION);
+                putLong(seed);
+                putString(simulation);
+                putString(options);
+                mode = Mode.RECORD;
+                System.out.println("Recording sync trace to " + recordFile + " (seed " + seed + ")");
+                return seed;
+            }
+            if (replayFile != null) {
+                long recorded = load(simulation, options);
+                mode = Mode.REPLAY;
+                System.out.println("Replaying " + kinds.length + " steps from " + replayFile + " (seed " + recorded
+                        + ")");
+                return recorded;
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Can not use trace file " + (recordFile != null ? recordFile
+                    : replayFile) + ": " + e.getMessage(), e);
+        }
+        return seed;
+    }
+
+    // True if --trace or --replay was given, before start()
+    static boolean configured() {
+        return recordFile != null || replayFile != null;
+    }
+
+    // True while recording or replaying
+    static boolean on() {
+        return mode != Mode.OFF;
+    }
+
+    // True while replaying and the trace still decides who goes next. Waits that only decide when a thread
+    // gets to its next step (patience, a sleeping TA) are skipped then: begin() does the waiting
+    static boolean replaying() {
+        return mode == Mode.REPLAY && !free;
+    }
+
+    // Start a traced step. Must be followed by end() or skip(), in a finally block
+    static void begin() {
+        if (mode == Mode.RECORD) {
+            Recording own = recording.get();
+            own.stamp = stamps.getAndIncrement();
+            awaitEnded(own.stamp);
+        } else if (mode == Mode.REPLAY) {
+            awaitTurn();
+        }
+    }
+
+    // Finish a traced step that changed the state, value says how (item count, student id, ...)
+    static void end(Step step, long value) {
+        if (mode == Mode.RECORD) {
+            Recording own = recording.get();
+            own.add(step, value);
+            endStep(own.stamp);
+        } else if (mode == Mode.REPLAY) {
+            replayed(step, value);
+        }
+    }
+
+    // Finish a step that changed nothing (buffer full/empty, retried later). Not recorded, so a replay
+    // never gets here: the recorded attempt that did change something is the one that gets the turn
+    static void skip(Step step) {
+        if (mode == Mode.RECORD) {
+            endStep(recording.get().stamp);
+        } else if (mode == Mode.REPLAY) {
+            replayed(step, Long.MIN_VALUE); // Diverged: the recorded step changed something
+        }
+    }
+
+    // System.nanoTime() for a decision inside a traced step. Replays return the recorded reading
+    static long clock() {
+        long now = System.nanoTime();
+        if (mode == Mode.RECORD) { // Same stamp as the step it is in, so it stays right in front of it
+            recording.get().add(Step.CLOCK, now);
+        } else if (mode == Mode.REPLAY && !free) {
+            int i = turn;
+            if (i < kinds.length && kinds[i] == Step.CLOCK.ordinal() && threads[i] == local.get()[0]) {
+                turn = i + 1; // Still our turn, the step itself follows
+                return values[i];
+            }
+            diverge(i, Step.CLOCK, now);
+        }
+        return now;
+    }
+
+    // True if the trace being replayed has a step of this kind
+    static boolean recorded(Step step) {
+        if (mode != Mode.REPLAY) {
+            return false;
+        }
+        for (byte kind : kinds) {
+            if (kind == step.ordinal()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Replay: wait until the trace has been replayed to the end (or diverged). Called by main instead of
+    // its own timing so the run stops where the recorded one did
+    static void awaitReplay() {
+        int last = -1;
+        long since = System.nanoTime();
+        while (replaying()) {
+            int now = turn;
+            if (now != last) {
+                last = now;
+                since = System.nanoTime();
+            } else if (System.nanoTime() - since > STALL_NANOS) {
+                stall(now);
+                break;
+            }
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    // Merge, flush & close a recording, or report how far a replay got
+    static void close() {
+        if (mode == Mode.RECORD) {
+            long stamp = stamps.getAndIncrement(); // Like a step, so every step before it has ended
+            awaitEnded(stamp);
+            mode = Mode.OFF;
+            endStep(stamp);
+            merge();
+            try {
+                flushBuffer();
+                out.close();
+                System.out.printf("Sync trace: %d steps, %d bytes (%.1f bytes/step) in %s%n", steps, written,
+                        steps == 0 ? 0.0 : (double) written / steps, recordFile);
+            } catch (IOException e) {
+                System.out.println("Could not finish sync trace " + recordFile + ": " + e.getMessage());
+            }
+        } else if (mode == Mode.REPLAY) {
+            int done = Math.min(turn, kinds.length);
+            System.out.println("Replayed " + done + " of " + kinds.length + " steps"
+                    + (done == kinds.length ? ", same interleaving as the recorded run"
+                    : done == shutdownStep + 1 ? ", same interleaving up to the shutdown" : ""));
+        }
+        mode = Mode.OFF;
+    }
+
+    // Record: wait until every step stamped before stamp has ended. Steps are short, so spin a little,
+    // then park where the step before ours looks when it ends. Two threads parked at the same place (more
+    // than WAITING steps waiting) are found by the timeout
+    private static void awaitEnded(long stamp) {
+        for (int tries = 0; tries < 50; tries++) {
+            if (ended == stamp) {
+                return;
+            }
+            Thread.onSpinWait();
+        }
+        int at = (int) (stamp % WAITING);
+        Thread self = Thread.currentThread();
+        while (ended != stamp) {
+            waiting.set(at, self);
+            if (ended != stamp) { // endStep() writes ended before it looks at waiting
+                LockSupport.parkNanos(SyncTrace.class, 1_000_000);
+            }
+        }
+        waiting.compareAndSet(at, self, null);
+    }
+
+    // Record: the step with this stamp ended, let the next one begin
+    private static void endStep(long stamp) {
+        ended = stamp + 1;
+        Thread next = waiting.get((int) ((stamp + 1) % WAITING));
+        if (next != null) {
+            LockSupport.unpark(next);
+        }
+    }
+
+    // Record: the steps of one thread, each (stamp - previous stamp, step, zigzag value) as varints. Only
+    // its thread writes, close() reads it once every step has ended
+    private static final class Recording {
+        final String name;
+        byte[] bytes = new byte[256];
+        int length = 0;
+        long stamp; // Of the step this thread is in, or was in last
+        private long lastStamp = 0;
+
+        Recording(String name) {
+            this.name = name;
+        }
+
+        void add(Step step, long value) {
+            if (bytes.length - length < 21) { // Room for 2 longest varints & the step
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            }
+            int at = put(length, stamp - lastStamp);
+            bytes[at++] = (byte) step.ordinal();
+            length = put(at, value << 1 ^ value >> 63); // Zigzag, small negative numbers stay short
+            lastStamp = stamp;
+        }
+
+        private int put(int at, long value) {
+            while ((value & ~0x7fL) != 0) {
+                bytes[at++] = (byte) (value & 0x7f | 0x80);
+                value >>>= 7;
+            }
+            bytes[at++] = (byte) value;
+            return at;
+        }
+    }
+
+    // Record: reads one Recording back, the next step is (stamp, step, value)
+    private static final class Cursor {
+        private final Recording recording;
+        private final byte[] bytes;
+        private final int length;
+        private int at = 0;
+        int thread = -1; // Trace index, given when its first step is written
+        long stamp = 0;
+        int step;
+        long value;
+
+        Cursor(Recording recording) {
+            this.recording = recording;
+            length = recording.length;
+            bytes = recording.bytes;
+        }
+
+        // Move to the next step, false at the end
+        boolean next() {
+            if (at >= length) {
+                return false;
+            }
+            stamp += get();
+            step = bytes[at++];
+            long raw = get();
+            value = raw >>> 1 ^ -(raw & 1);
+            return true;
+        }
+
+        private long get() {
+            long value = 0;
+            for (int shift = 0;; shift += 7) {
+                int b = bytes[at++];
+                value |= (long) (b & 0x7f) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+        }
+    }
+
+    // Record: write the steps of all threads to the trace in stamp order. Threads get their trace index
+    // (and a NAME record) when their first step is written; threads with the same name share one
+    private static void merge() {
+        PriorityQueue<Cursor> next = new PriorityQueue<>((a, b) -> Long.compare(a.stamp, b.stamp));
+        for (Recording own : recordings) {
+            Cursor cursor = new Cursor(own);
+            if (cursor.next()) {
+                next.add(cursor);
+            }
+        }
+        Map<String, Integer> threadIndex = new HashMap<>();
+        long lastClock = 0;
+        while (!next.isEmpty()) {
+            Cursor cursor = next.poll();
+            if (cursor.thread < 0) { // First step of this thread: give it a number & write its name
+                String name = cursor.recording.name;
+                Integer known = threadIndex.get(name);
+                if (known == null) {
+                    known = threadIndex.size();
+                    threadIndex.put(name, known);
+                    putVarint((long) known << 4 | Step.NAME.ordinal());
+                    putString(name);
+                }
+                cursor.thread = known;
+            }
+            long value = cursor.value;
+            if (cursor.step == Step.CLOCK.ordinal()) { // The trace has clock readings as differences
+                value = cursor.value - lastClock;
+                lastClock = cursor.value;
+            }
+            putVarint((long) cursor.thread << 4 | cursor.step);
+            putVarint(value << 1 ^ value >> 63);
+            steps++;
+            if (cursor.next()) {
+                next.add(cursor);
+            }
+        }
+    }
+
+    // Replay: park until step turn is ours
+    private static void awaitTurn() {
+        int[] index = local.get();
+        if (index[0] < 0) {
+            index[0] = Arrays.asList(names).indexOf(Thread.currentThread().getName());
+            if (index[0] >= 0) {
+                parked[index[0]] = Thread.currentThread(); // Before reading turn, end() reads it after writing
+            }
+        }
+        int last = -1;
+        long since = System.nanoTime();
+        while (!free) {
+            int i = turn;
+            if (i >= kinds.length) {
+                finished();
+                return;
+            }
+            if (threads[i] == index[0]) {
+                return;
+            }
+            if (index[0] < 0) { // A thread the recorded run never traced
+                diverge(i, null, 0);
+                return;
+            }
+            if (i != last) {
+                last = i;
+                since = System.nanoTime();
+            } else if (System.nanoTime() - since > STALL_NANOS) {
+                stall(i);
+                return;
+            }
+            LockSupport.parkNanos(SyncTrace.class, 1_000_000);
+            if (Thread.currentThread().isInterrupted()) { // Shutting down: stop enforcing, keep the interrupt
+                free = true;
+                return;
+            }
+        }
+    }
+
+    // Replay: check the step we just did against the trace and pass the turn on
+    private static void replayed(Step step, long value) {
+        if (free) {
+            return;
+        }
+        int i = turn;
+        if (i >= kinds.length) {
+            finished();
+            return;
+        }
+        if (kinds[i] != step.ordinal() || values[i] != value || threads[i] != local.get()[0]) {
+            diverge(i, step, value);
+            return;
+        }
+        turn = i + 1;
+        if (step == Step.SHUTDOWN) { // Main is about to stop & interrupt threads, nothing after it is enforced
+            shutdownStep = i;
+            finished();
+        } else if (i + 1 == kinds.length) {
+            finished();
+        } else {
+            Thread next = parked[threads[i + 1]];
+            if (next != null) {
+                LockSupport.unpark(next);
+            }
+        }
+    }
+
+    private static void finished() {
+        free = true;
+        for (Thread thread : parked) {
+            if (thread != null) {
+                LockSupport.unpark(thread);
+            }
+        }
+    }
+
+    private static synchronized void diverge(int i, Step step, long value) {
+        if (free) {
+            return;
+        }
+        String expected = i < kinds.length
+                ? names[threads[i]] + " " + Step.values()[kinds[i]] + " " + values[i]
+                : "end of trace";
+        String got = Thread.currentThread().getName() + (step == null ? " (not in the trace)"
+                : " " + step + (value == Long.MIN_VALUE ? " with no effect" : " " + value));
+        System.out.println("Replay diverged at step " + i + ": " + got + ", trace has " + expected);
+        finished();
+    }
+
+    private static synchronized void stall(int i) {
+        if (free) {
+            return;
+        }
+        System.out.println("Replay stalled at step " + i + ": " + names[threads[i]] + " never got to "
+                + Step.values()[kinds[i]] + " " + values[i]);
+        finished();
+    }
+
+    // Options that change what the simulation does, to check a replay uses the same ones
+    private static String options(String[] args) {
+        StringBuilder kept = new StringBuilder();
+        for (String arg : args) {
+            if (!arg.startsWith("--trace=") && !arg.startsWith("--replay=") && !arg.startsWith("--seed=")
+                    && !arg.startsWith("--log") && !arg.startsWith("--metrics")) {
+                kept.append(kept.length() == 0 ? "" : " ").append(arg);
+            }
+        }
+        return kept.toString();
+    }
+
+    // Read a whole trace into memory. Returns its seed
+    private static long load(String simulation, String options) throws IOException {
+        List<String> threadNames = new ArrayList<>();
+        int count = 0;
+        int[] stepThreads = new int[1024];
+        byte[] stepKinds = new byte[1024];
+        long[] stepValues = new long[1024];
+        long seed;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(replayFile),
+                1 << 16))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("not a sync trace");
+            }
+            seed = in.readLong();
+            String recordedSimulation = readString(in);
+            String recordedOptions = readString(in);
+            if (!recordedSimulation.equals(simulation)) {
+                throw new IOException("recorded by " + recordedSimulation);
+            }
+            if (!recordedOptions.equals(options)) {
+                System.out.println("Warning: trace was recorded with options \"" + recordedOptions + "\"");
+            }
+            long clock = 0;
+            while (true) {
+                long head;
+                try {
+                    head = readVarint(in);
+                } catch (EOFException e) {
+                    break;
+                }
+                int thread = (int) (head >>> 4);
+                int kind = (int) (head & 15);
+                if (kind == Step.NAME.ordinal()) {
+                    threadNames.add(readString(in));
+                    continue;
+                }
+                if (kind >= Step.values().length || thread >= threadNames.size()) {
+                    throw new IOException("corrupt record after step " + count);
+                }
+                long raw = readVarint(in);
+                long value = raw >>> 1 ^ -(raw & 1);
+                if (kind == Step.CLOCK.ordinal()) {
+                    clock += value;
+                    value = clock;
+                }
+                if (count == stepKinds.length) {
+                    stepThreads = Arrays.copyOf(stepThreads, count * 2);
+                    stepKinds = Arrays.copyOf(stepKinds, count * 2);
+                    stepValues = Arrays.copyOf(stepValues, count * 2);
+                }
+                stepThreads[count] = thread;
+                stepKinds[count] = (byte) kind;
+                stepValues[count] = value;
+                count++;
+            }
+        } catch (EOFException e) {
+            throw new IOException("trace is cut short");
+        }
+        names = threadNames.toArray(new String[0]);
+        threads = Arrays.copyOf(stepThreads, count);
+        kinds = Arrays.copyOf(stepKinds, count);
+        values = Arrays.copyOf(stepValues, count);
+        parked = new Thread[names.length];
+        turn = 0;
+        shutdownStep = -1;
+        free = count == 0;
+        return seed;
+    }
+
+    private static long readVarint(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7f) << shift;
+            if (b < 0x80) {
+                return value;
+            }
+        }
+        throw new IOException("bad varint");
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[(int) readVarint(in)];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Writing into the file buffer, by start() for the header & by close() for the merged steps
+    private static void putVarint(long value) {
+        if (buffered > buffer.length - 10) {
+            flushBuffer();
+        }
+        while ((value & ~0x7fL) != 0) {
+            buffer[buffered++] = (byte) (value & 0x7f | 0x80);
+            value >>>= 7;
+        }
+        buffer[buffered++] = (byte) value;
+    }
+
+    private static void putInt(int value) {
+        if (buffered > buffer.length - 4) {
+            flushBuffer();
+        }
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            buffer[buffered++] = (byte) (value >>> shift);
+        }
+    }
+
+    private static void putLong(long value) {
+        if (buffered > buffer.length - 8) {
+            flushBuffer();
+        }
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            buffer[buffered++] = (byte) (value >>> shift);
+        }
+    }
+
+    private static void putString(String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        putVarint(bytes.length);
+        for (byte b : bytes) {
+            if (buffered == buffer.length) {
+                flushBuffer();
+            }
+            buffer[buffered++] = b;
+        }
+    }
+
+    private static void flushBuffer() {
+        try {
+            out.write(buffer, 0, buffered);
+            written += buffered;
+        } catch (IOException e) { // Keep the simulation going, the trace is lost
+            System.out.println("Could not write sync trace " + recordFile + ": " + e.getMessage());
+        }
+        buffered = 0;
+    }
+}
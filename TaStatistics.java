@@ -0,0 +1,79 @@
+// What happened in one SleepingTA run. Times are in simulated milliseconds (the threaded run divides its
+// wall-clock times by --time-scale) so a threaded run and an event-driven run (SleepingTASimulator) of the
+// same students can be put side by side.
+public final class TaStatistics {
+
+    final int students; // Students in the run
+    final int tas; // TAs in the run
+    final long helped; // Students helped, equal to students for a finished run
+    final long visits; // Times a student sat down in a chair
+    final long gaveUp; // Visits that ended with the student running out of patience
+    final long noChair; // Times a student found every chair taken
+    final double chairWaitMillis; // Time spent in chairs, summed over all visits
+    final double busyMillis; // Time TAs spent helping, summed over all TAs
+    final double makespanMillis; // From the students starting until the last one was helped
+    final FairnessReport fairness; // Per-student waits by priority class
+
+    TaStatistics(int students, int tas, long helped, long visits, long gaveUp, long noChair, double chairWaitMillis,
+            double busyMillis, double makespanMillis, FairnessReport fairness) {
+        this.students = students;
+        this.tas = tas;
+        this.helped = helped;
+        this.visits = visits;
+        this.gaveUp = gaveUp;
+        this.noChair = noChair;
+        this.chairWaitMillis = chairWaitMillis;
+        this.busyMillis = busyMillis;
+        this.makespanMillis = makespanMillis;
+        this.fairness = fairness;
+    }
+
+    double meanChairWaitMillis() {
+        return visits == 0 ? 0 : chairWaitMillis / visits;
+    }
+
+    // Share of the run the TAs spent helping, 0 to 1
+    double utilization() {
+        return makespanMillis <= 0 ? 0 : busyMillis / (makespanMillis * tas);
+    }
+
+    double perStudent(long count) {
+        return students == 0 ? 0 : (double) count / students;
+    }
+
+    // Values compared by compare(), in table order
+    private double[] values() {
+        return new double[] { helped, makespanMillis, meanChairWaitMillis(), utilization(), perStudent(visits),
+                perStudent(gaveUp), perStudent(noChair) };
+    }
+
+    private static final String[] NAMES = { "students helped", "makespan ms", "mean chair wait ms",
+            "TA utilization", "visits per student", "give-ups per student", "no chair per student" };
+
+    // Print two runs side by side with their relative difference. A value passes if the difference is at most
+    // tolerance times the larger of the two (or times 1 for values below 1, so small per-student rates are
+    // not failed over a single extra give-up). Returns true if every value passes.
+    static boolean compare(String leftName, TaStatistics left, String rightName, TaStatistics right,
+            double tolerance) {
+        double[] a = left.values();
+        double[] b = right.values();
+        boolean pass = true;
+        System.out.printf("%-22s %14s %14s %8s%n", "", leftName, rightName, "diff");
+        for (int i = 0; i < NAMES.length; i++) {
+            double scale = Math.max(1, Math.max(Math.abs(a[i]), Math.abs(b[i])));
+            double diff = Math.abs(a[i] - b[i]) / scale;
+            boolean ok = diff <= tolerance;
+            pass &= ok;
+            System.out.printf("%-22s %14.3f %14.3f %7.1f%%%s%n", NAMES[i], a[i], b[i], diff * 100,
+                    ok ? "" : "  <- over " + Math.round(tolerance * 100) + "%");
+        }
+        return pass;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d students, %d TAs: helped %d in %.0f ms, %d visits, mean chair wait %.1f ms,"
+                + " %d give-ups, %d no chair, TA utilization %.1f%%", students, tas, helped, makespanMillis, visits,
+                meanChairWaitMillis(), gaveUp, noChair, utilization() * 100);
+    }
+}
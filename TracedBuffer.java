@@ -0,0 +1,148 @@
+// A buffer engine whose enqueues and dequeues are SyncTrace steps (--trace / --replay). Every insert or
+// remove is one non-blocking attempt on the engine inside SyncTrace.begin()/end(), so the trace has the
+// order the items actually went in and out. A batch is one all-or-nothing attempt (try_insert_items), as
+// it is one claim in the engine. An attempt that finds the buffer full (or empty) is not recorded: the
+// thread waits with the engine's wait strategy and tries again, and a replay simply lets it wait for the
+// turn of its next recorded attempt. The engine's own signals may not reach a blocking strategy (the
+// semaphore engine blocks on its semaphores instead), so every step that changed something signals too.
+final class TracedBuffer implements BufferEngine {
+
+    private final BufferEngine engine;
+
+    TracedBuffer(BufferEngine engine) {
+        this.engine = engine;
+    }
+
+    @Override
+    public void insert_item(int item) throws InterruptedException {
+        insert_items(new int[] { item }, 1);
+    }
+
+    @Override
+    public void insert_items(int[] items, int count) throws InterruptedException {
+        WaitStrategy wait = engine.producerWait();
+        int tries = 0;
+        while (!try_insert_items(items, count)) {
+            tries = wait.idle(tries); // Full: let a consumer in
+        }
+        wait.done(tries);
+    }
+
+    @Override
+    public int remove_item() throws InterruptedException {
+        int[] one = new int[1];
+        remove_items(one, 1);
+        return one[0];
+    }
+
+    @Override
+    public int remove_items(int[] dst, int max) throws InterruptedException {
+        WaitStrategy wait = engine.consumerWait();
+        int tries = 0;
+        int removed;
+        while ((removed = try_remove_items(dst, max)) == 0) {
+            tries = wait.idle(tries); // Empty: let a producer in
+        }
+        wait.done(tries);
+        return removed;
+    }
+
+    @Override
+    public boolean try_insert_item(int item) {
+        boolean inserted = false;
+        SyncTrace.begin();
+        try {
+            inserted = engine.try_insert_item(item);
+        } finally {
+            if (inserted) {
+                SyncTrace.end(SyncTrace.Step.ENQUEUE, 1);
+            } else {
+                SyncTrace.skip(SyncTrace.Step.ENQUEUE);
+            }
+        }
+        if (inserted) {
+            engine.consumerWait().signal();
+        }
+        return inserted;
+    }
+
+    @Override
+    public boolean try_insert_items(int[] items, int count) {
+        boolean inserted = false;
+        SyncTrace.begin();
+        try {
+            inserted = engine.try_insert_items(items, count);
+        } finally {
+            if (inserted) {
+                SyncTrace.end(SyncTrace.Step.ENQUEUE, count);
+            } else {
+                SyncTrace.skip(SyncTrace.Step.ENQUEUE);
+            }
+        }
+        if (inserted) {
+            engine.consumerWait().signal();
+        }
+        return inserted;
+    }
+
+    @Override
+    public int try_remove_items(int[] dst, int max) {
+        int removed = 0;
+        SyncTrace.begin();
+        try {
+            removed = engine.try_remove_items(dst, max);
+        } finally {
+            if (removed > 0) {
+                SyncTrace.end(SyncTrace.Step.DEQUEUE, removed);
+            } else {
+                SyncTrace.skip(SyncTrace.Step.DEQUEUE);
+            }
+        }
+        if (removed > 0) {
+            engine.producerWait().signal();
+        }
+        return removed;
+    }
+
+    @Override
+    public int capacity() {
+        return engine.capacity();
+    }
+
+    @Override
+    public int size() {
+        return engine.size();
+    }
+
+    @Override
+    public void useWaitStrategies(WaitStrategy producers, WaitStrategy consumers) {
+        engine.useWaitStrategies(producers, consumers);
+    }
+
+    @Override
+    public WaitStrategy producerWait() {
+        return engine.producerWait();
+    }
+
+    @Override
+    public WaitStrategy consumerWait() {
+        return engine.consumerWait();
+    }
+
+    // The engine's turns, except while a replay orders the steps: those already go one at a time in the
+    // recorded order, and a producer waiting for its step must not hold a turn the next one needs
+    @Override
+    public boolean serializesTurns() {
+        return engine.serializesTurns() && !SyncTrace.replaying();
+    }
+
+    @Override
+    public String name() {
+        return "traced " + engine.name();
+    }
+
+    @Override
+    public void close() {
+        engine.close();
+    }
+}
@@ -0,0 +1,258 @@
+import java.lang.invoke.VarHandle; // Full fence between publishing and checking for sleeping waiters
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+// What a producer does while the buffer is full, or a consumer while it is empty. Each side of an engine
+// has its own strategy, chosen on the command line:
+//   --producer-wait=<s>, --consumer-wait=<s> or --wait=<s> for both, where <s> is
+//     spin          busy-spin with Thread.onSpinWait: lowest latency, burns a whole core while waiting
+//     yield         spin a little, then Thread.yield so other threads on the core can run
+//     park          spin, yield, then park 50 microseconds at a time (the ring engines' default)
+//     timed[=us]    park a fixed time (default 1000 microseconds) between checks, cheapest when idle
+//     block         sleep until the other side signals: the semaphore engine's default
+//
+// A waiting loop looks like this. The int passed around is the number of tries for the spinning
+// strategies and a ticket for the blocking one, callers only pass it back:
+//   int tries = 0;
+//   while (!tryIt()) { tries = wait.idle(tries); }
+//   wait.done(tries);
+// and the other side calls signal() after every publish/release.
+public abstract class WaitStrategy {
+
+    // Strategy names from the command line, null = engine default
+    private static String producerName = null;
+    private static String consumerName = null;
+
+    // Handle --wait, --producer-wait & --consumer-wait. Returns false if the argument is not ours.
+    public static boolean configure(String arg) {
+        if (arg.startsWith("--wait=")) {
+            producerName = checked(arg.substring("--wait=".length()));
+            consumerName = producerName;
+        } else if (arg.startsWith("--producer-wait=")) {
+            producerName = checked(arg.substring("--producer-wait=".length()));
+        } else if (arg.startsWith("--consumer-wait=")) {
+            consumerName = checked(arg.substring("--consumer-wait=".length()));
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    private static String checked(String name) {
+        create(name); // Throws IllegalArgumentException for a bad name
+        return name;
+    }
+
+    // A new strategy for producers, the one given on the command line or engineDefault
+    static WaitStrategy forProducers(WaitStrategy engineDefault) {
+        return producerName == null ? engineDefault : create(producerName);
+    }
+
+    static WaitStrategy forConsumers(WaitStrategy engineDefault) {
+        return consumerName == null ? engineDefault : create(consumerName);
+    }
+
+    // Build a strategy from its command-line name. Each call gives a new instance: a blocking strategy
+    // keeps the threads waiting on one side of one buffer
+    public static WaitStrategy create(String name) {
+        switch (name) {
+            case "spin":
+                return new BusySpin();
+            case "yield":
+                return new SpinYield();
+            case "park":
+                return new SpinPark();
+            case "timed":
+                return new TimedPark(1000);
+            case "block":
+                return new Blocking();
+            default:
+                if (name.startsWith("timed=")) {
+                    long micros = Long.parseLong(name.substring("timed=".length()));
+                    if (micros <= 0) {
+                        throw new IllegalArgumentException("timed wait must be positive: " + micros);
+                    }
+                    return new TimedPark(micros);
+                }
+                throw new IllegalArgumentException("unknown wait strategy " + name
+                        + ", use spin, yield, park, timed[=us] or block");
+        }
+    }
+
+    // Called after every failed attempt. Waits a little (or until signalled) and returns the value to pass
+    // next time. Throws InterruptedException if the thread was interrupted, for graceful termination.
+    public abstract int idle(int tries) throws InterruptedException;
+
+    // Called once the attempt succeeded, with the last value idle returned
+    public void done(int tries) {
+    }
+
+    // Called by the other side after it published an item or released a slot
+    public void signal() {
+    }
+
+    // True for block: an engine with a blocking primitive of its own (a Semaphore) can use that instead
+    public boolean blocks() {
+        return false;
+    }
+
+    public abstract String name();
+
+    static void checkInterrupt() throws InterruptedException {
+        if (Thread.interrupted()) { // Graceful termination from main function
+            throw new InterruptedException();
+        }
+    }
+
+    static final class BusySpin extends WaitStrategy {
+        @Override
+        public int idle(int tries) throws InterruptedException {
+            checkInterrupt();
+            Thread.onSpinWait(); // Tell the CPU we are spinning (PAUSE on x86)
+            return tries + 1;
+        }
+
+        @Override
+        public String name() {
+            return "spin";
+        }
+    }
+
+    static final class SpinYield extends WaitStrategy {
+        private static final int SPIN_TRIES = 100;
+
+        @Override
+        public int idle(int tries) throws InterruptedException {
+            checkInterrupt();
+            if (tries < SPIN_TRIES) {
+                Thread.onSpinWait();
+            } else {
+                Thread.yield();
+            }
+            return tries + 1;
+        }
+
+        @Override
+        public String name() {
+            return "yield";
+        }
+    }
+
+    // Spin, then yield, then park so a blocked thread does not burn a core forever
+    static final class SpinPark extends WaitStrategy {
+        private static final int SPIN_TRIES = 100; // Busy-spin this many times before yielding
+        private static final int YIELD_TRIES = 200; // then yield this many times before parking
+        private static final long PARK_NANOS = 50_000; // then park 50 microseconds at a time
+
+        @Override
+        public int idle(int tries) throws InterruptedException {
+            checkInterrupt();
+            if (tries < SPIN_TRIES) {
+                Thread.onSpinWait();
+            } else if (tries < SPIN_TRIES + YIELD_TRIES) {
+                Thread.yield();
+            } else {
+                LockSupport.parkNanos(PARK_NANOS);
+            }
+            return tries + 1;
+        }
+
+        @Override
+        public String name() {
+            return "park";
+        }
+    }
+
+    static final class TimedPark extends WaitStrategy {
+        private final long nanos;
+
+        TimedPark(long micros) {
+            nanos = micros * 1000;
+        }
+
+        @Override
+        public int idle(int tries) throws InterruptedException {
+            checkInterrupt();
+            LockSupport.parkNanos(nanos);
+            return tries + 1;
+        }
+
+        @Override
+        public String name() {
+            return "timed=" + nanos / 1000;
+        }
+    }
+
+    // Sleep on a condition until the other side signals. signal() is only a fence & a volatile read while
+    // nobody waits. To not miss a signal that comes between a failed attempt and going to sleep:
+    //   1. the first idle() registers the thread as a waiter and returns without sleeping, so the caller
+    //      tries once more after registering (the other side checks waiters after publishing, so one of
+    //      the two always sees the other)
+    //   2. idle() returns a ticket, the signal generation it has seen. A later idle() only sleeps if no
+    //      signal came since that ticket
+    static final class Blocking extends WaitStrategy {
+        private static final int TICKET_MASK = 0x3fffffff;
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition signalled = lock.newCondition();
+        private final AtomicInteger waiters = new AtomicInteger(); // Registered waiters
+        private int generation = 0; // Signals sent while someone waited. Guarded by lock
+
+        @Override
+        public int idle(int ticket) throws InterruptedException {
+            if (Thread.interrupted()) {
+                done(ticket);
+                throw new InterruptedException();
+            }
+            lock.lock();
+            try {
+                if (ticket == 0) { // Register & let the caller try again
+                    waiters.incrementAndGet();
+                    return (generation & TICKET_MASK) + 1;
+                }
+                if (ticket == (generation & TICKET_MASK) + 1) { // Nothing happened since the last try
+                    signalled.await();
+                }
+                return (generation & TICKET_MASK) + 1;
+            } catch (InterruptedException e) {
+                waiters.decrementAndGet();
+                throw e;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void done(int ticket) {
+            if (ticket != 0) {
+                waiters.decrementAndGet();
+            }
+        }
+
+        @Override
+        public void signal() {
+            VarHandle.fullFence(); // The publish/release before must be visible before waiters is read
+            if (waiters.get() > 0) {
+                lock.lock();
+                try {
+                    generation++;
+                    signalled.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+
+        @Override
+        public boolean blocks() {
+            return true;
+        }
+
+        @Override
+        public String name() {
+            return "block";
+        }
+    }
+}
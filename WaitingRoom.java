@@ -0,0 +1,210 @@
+import java.util.Arrays; // Growing the heap
+import java.util.SplittableRandom; // Seeded priority class draws
+
+// The chairs of one hallway: students waiting for a TA, in the order the TA will call them. It is an
+// indexed binary heap of student ids, so sitting down, being called and giving up (cancel) are all
+// O(log n) instead of the O(n) LinkedList/ArrayDeque remove. A student can be in one room at a time.
+// Who is called first depends on the policy (--room):
+//   fifo      first come, first served (the original hallway)
+//   priority  urgent (deadline-driven) students always go first, first come first served within a class.
+//             Normal students can starve while urgent ones keep coming
+//   aging     an urgent student is seated as if they had arrived --aging ms earlier: they jump ahead of
+//             normal students who arrived less than --aging ms before them, never further. So a normal
+//             student waits at most --aging ms longer than under fifo and nobody starves
+// Students are urgent with probability --urgent (default 0), drawn from the run's seed so the threaded and
+// the event-driven simulation get the same classes.
+// Not thread safe: the threaded simulation only touches a room under its hallway lock.
+final class WaitingRoom {
+
+    enum Policy { FIFO, PRIORITY, AGING }
+
+    static final int NORMAL = 0;
+    static final int URGENT = 1;
+
+    // Settings from the command line, read when a simulation is set up
+    static Policy policy = Policy.FIFO;
+    static double urgentShare = 0;
+    static long agingMillis = 2000;
+
+    // Handle --room, --urgent & --aging. Returns false if the argument is not ours.
+    static boolean configure(String arg) {
+        if (arg.startsWith("--room=")) {
+            policy = Policy.valueOf(arg.substring("--room=".length()).toUpperCase());
+        } else if (arg.startsWith("--urgent=")) {
+            urgentShare = Double.parseDouble(arg.substring("--urgent=".length()));
+            if (!(urgentShare >= 0 && urgentShare <= 1)) {
+                throw new IllegalArgumentException("urgent share must be between 0 and 1: " + urgentShare);
+            }
+        } else if (arg.startsWith("--aging=")) {
+            agingMillis = Long.parseLong(arg.substring("--aging=".length()));
+            if (agingMillis < 0) {
+                throw new IllegalArgumentException("aging time can not be negative: " + agingMillis);
+            }
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    // Priority class of a student, the same for a given seed in every simulation
+    static int priorityClass(long seed, int studentId, double urgentShare) {
+        if (urgentShare <= 0) {
+            return NORMAL;
+        }
+        double draw = new SplittableRandom(seed ^ (studentId * 0x9E3779B97F4A7C15L)).nextDouble();
+        return draw < urgentShare ? URGENT : NORMAL;
+    }
+
+    private final Policy order;
+    private final long boost; // Head start of an urgent student with Policy.AGING, in arrival time units
+    private final int[] position; // Heap index of every student id, -1 if not in the room
+
+    // The heap, in parallel arrays: entry i is student ids[i] with sort key (ranks[i], keys[i], seqs[i])
+    private int[] ids = new int[16];
+    private int[] ranks = new int[16];
+    private long[] keys = new long[16];
+    private long[] seqs = new long[16];
+    private int size = 0;
+    private long seated = 0; // Students seated so far, breaks ties in arrival order
+
+    // A room for students with ids 0..maxId. boost is --aging in the same unit as the arrival times that
+    // will be passed to add (milliseconds for the event-driven simulation, nanoseconds for the threaded one)
+    WaitingRoom(Policy order, long boost, int maxId) {
+        this.order = order;
+        this.boost = boost;
+        position = new int[maxId + 1];
+        Arrays.fill(position, -1);
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    boolean contains(int id) {
+        return position[id] >= 0;
+    }
+
+    // Seat a student who arrived at time arrival
+    void add(int id, int priorityClass, long arrival) {
+        if (position[id] >= 0) {
+            throw new IllegalStateException("student " + id + " is already waiting");
+        }
+        if (size == ids.length) {
+            int capacity = size * 2;
+            ids = Arrays.copyOf(ids, capacity);
+            ranks = Arrays.copyOf(ranks, capacity);
+            keys = Arrays.copyOf(keys, capacity);
+            seqs = Arrays.copyOf(seqs, capacity);
+        }
+        int rank = 0;
+        long key = 0; // FIFO: seqs alone give the order
+        if (order == Policy.PRIORITY) {
+            rank = -priorityClass; // Higher class first
+            key = arrival;
+        } else if (order == Policy.AGING) {
+            key = arrival - priorityClass * boost;
+        }
+        int i = size++;
+        set(i, id, rank, key, seated++);
+        siftUp(i);
+    }
+
+    // Call the next student: remove & return them, -1 if nobody is waiting
+    int poll() {
+        if (size == 0) {
+            return -1;
+        }
+        int id = ids[0];
+        removeAt(0);
+        return id;
+    }
+
+    // Next student to be called, -1 if nobody is waiting
+    int peek() {
+        return size == 0 ? -1 : ids[0];
+    }
+
+    // A student leaves without being called. Returns false if they were not in the room
+    boolean remove(int id) {
+        int i = position[id];
+        if (i < 0) {
+            return false;
+        }
+        removeAt(i);
+        return true;
+    }
+
+    private void removeAt(int i) {
+        position[ids[i]] = -1;
+        int last = --size;
+        if (i == last) {
+            return;
+        }
+        set(i, ids[last], ranks[last], keys[last], seqs[last]); // Fill the hole with the last entry
+        if (i > 0 && before(i, (i - 1) >>> 1)) {
+            siftUp(i);
+        } else {
+            siftDown(i);
+        }
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!before(i, parent)) {
+                break;
+            }
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i) {
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && before(child + 1, child)) {
+                child++;
+            }
+            if (!before(child, i)) {
+                break;
+            }
+            swap(i, child);
+            i = child;
+        }
+    }
+
+    // True if entry a is called before entry b
+    private boolean before(int a, int b) {
+        if (ranks[a] != ranks[b]) {
+            return ranks[a] < ranks[b];
+        }
+        if (keys[a] != keys[b]) {
+            return keys[a] < keys[b];
+        }
+        return seqs[a] < seqs[b];
+    }
+
+    private void swap(int a, int b) {
+        int id = ids[a];
+        int rank = ranks[a];
+        long key = keys[a];
+        long seq = seqs[a];
+        set(a, ids[b], ranks[b], keys[b], seqs[b]);
+        set(b, id, rank, key, seq);
+    }
+
+    private void set(int i, int id, int rank, long key, long seq) {
+        ids[i] = id;
+        ranks[i] = rank;
+        keys[i] = key;
+        seqs[i] = seq;
+        position[id] = i;
+    }
+}
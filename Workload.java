@@ -0,0 +1,258 @@
+import java.io.BufferedReader; // --arrivals=trace:<csv>
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random; // Seeded draws, so a load level can be run again
+
+// Open-loop workload for the load generator (LoadGenerator): when students arrive, how long a TA helps each
+// of them, how long they wait in a chair & how long they work before trying again. Open loop means arrivals
+// do not wait for the system: a student shows up at their time whether the TA is keeping up or not, so
+// pushing the arrival rate past what the TAs can do shows up as rejections & long waits instead of
+// silently slowing the producer down (the original SleepingTA creates a fixed 10 students 500 ms apart).
+// Arrival processes (--arrivals):
+//   poisson         independent arrivals, exponential gaps with the mean of the rate
+//   bursty          bursts arrive like poisson, each burst is --burst students (geometric, that mean) at
+//                   the same moment, so the same mean rate comes in clumps
+//   trace:<csv>     arrival times read from a CSV file, one student per line: arrival ms[,help ms[,patience
+//                   ms]]. Lines not starting with a digit (a header) are skipped. A sweep speeds the whole
+//                   trace up or slows it down to each load level
+// Times are drawn from distributions written kind:numbers (--help-time, --work-time, --patience):
+//   fixed:MS, uniform:LO:HI (whole ms, both included), exp:MEAN, lognormal:MEAN:CV
+// The defaults are the SleepingTA rules. A student who finds no chair or runs out of patience works for a
+// work time and tries again, at most --retries times (default 0: gone for good, a rejection).
+final class Workload {
+
+    enum Arrivals { POISSON, BURSTY, TRACE }
+
+    // A distribution of times in whole milliseconds
+    static final class Distribution {
+        private final String kind;
+        private final double a;
+        private final double b;
+
+        private Distribution(String kind, double a, double b) {
+            this.kind = kind;
+            this.a = a;
+            this.b = b;
+        }
+
+        // Parse kind:numbers, IllegalArgumentException if it is not one of the kinds above
+        static Distribution parse(String spec) {
+            String[] parts = spec.split(":");
+            int needed;
+            switch (parts[0]) {
+                case "fixed":
+                case "exp":
+                    needed = 2;
+                    break;
+                case "uniform":
+                case "lognormal":
+                    needed = 3;
+                    break;
+                default:
+                    needed = -1;
+            }
+            if (parts.length != needed) {
+                throw new IllegalArgumentException("unknown distribution " + spec
+                        + ", use fixed:MS, uniform:LO:HI, exp:MEAN or lognormal:MEAN:CV");
+            }
+            double a = Double.parseDouble(parts[1]);
+            double b = needed == 3 ? Double.parseDouble(parts[2]) : 0;
+            if (!(a >= 0 && b >= 0) || (parts[0].equals("uniform") && b < a)
+                    || (parts[0].equals("lognormal") && a == 0)) {
+                throw new IllegalArgumentException("bad numbers in distribution " + spec);
+            }
+            return new Distribution(parts[0], a, b);
+        }
+
+        // One time in ms. uniform draws exactly like SleepingTA.workTime & patienceTime for the same bounds
+        int draw(Random random) {
+            switch (kind) {
+                case "fixed":
+                    return (int) a;
+                case "uniform":
+                    return (int) a + random.nextInt((int) b - (int) a + 1);
+                case "exp":
+                    return (int) Math.round(-a * Math.log(1 - random.nextDouble()));
+                default: // lognormal with mean a & coefficient of variation b
+                    double sigma2 = Math.log(1 + b * b);
+                    double mu = Math.log(a) - sigma2 / 2;
+                    return (int) Math.round(Math.exp(mu + Math.sqrt(sigma2) * random.nextGaussian()));
+            }
+        }
+
+        double mean() {
+            return kind.equals("uniform") ? ((int) a + (int) b) / 2.0 : a;
+        }
+
+        @Override
+        public String toString() {
+            return kind + ":" + number(a) + (kind.equals("uniform") || kind.equals("lognormal") ? ":" + number(b) : "");
+        }
+
+        private static String number(double x) {
+            return x == Math.rint(x) ? Long.toString((long) x) : Double.toString(x);
+        }
+    }
+
+    // Settings from the command line
+    static Arrivals arrivals = Arrivals.POISSON;
+    static String traceFile;
+    static double burstSize = 5;
+    static Distribution helpTime = Distribution.parse("fixed:" + SleepingTA.HELP_MILLIS);
+    static Distribution workTime = Distribution.parse("uniform:2000:4999"); // SleepingTA.workTime
+    static Distribution patience = Distribution.parse("uniform:1000:2999"); // SleepingTA.patienceTime
+    static int retries = 0;
+
+    // Handle --arrivals, --burst, --help-time, --work-time, --patience & --retries. Returns false if the
+    // argument is not ours.
+    static boolean configure(String arg) {
+        if (arg.startsWith("--arrivals=trace:")) {
+            arrivals = Arrivals.TRACE;
+            traceFile = arg.substring("--arrivals=trace:".length());
+        } else if (arg.startsWith("--arrivals=")) {
+            arrivals = Arrivals.valueOf(arg.substring("--arrivals=".length()).toUpperCase());
+            if (arrivals == Arrivals.TRACE) {
+                throw new IllegalArgumentException("trace arrivals need a file: --arrivals=trace:<csv>");
+            }
+        } else if (arg.startsWith("--burst=")) {
+            burstSize = Double.parseDouble(arg.substring("--burst=".length()));
+            if (!(burstSize >= 1)) {
+                throw new IllegalArgumentException("burst size must be at least 1: " + burstSize);
+            }
+        } else if (arg.startsWith("--help-time=")) {
+            helpTime = Distribution.parse(arg.substring("--help-time=".length()));
+        } else if (arg.startsWith("--work-time=")) {
+            workTime = Distribution.parse(arg.substring("--work-time=".length()));
+        } else if (arg.startsWith("--patience=")) {
+            patience = Distribution.parse(arg.substring("--patience=".length()));
+        } else if (arg.startsWith("--retries=")) {
+            retries = Integer.parseInt(arg.substring("--retries=".length()));
+            if (retries < 0) {
+                throw new IllegalArgumentException("retries can not be negative: " + retries);
+            }
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    // One generated load level: per student (ids 1..n) the arrival time, help time & patience in ms
+    final int n;
+    final long[] arrival;
+    final int[] help;
+    final int[] patienceMillis;
+    final Distribution work; // Time between a failed visit & the next try
+    final int tries; // Visits a student makes at most, retries + 1
+
+    private Workload(int n) {
+        this.n = n;
+        arrival = new long[n + 1];
+        help = new int[n + 1];
+        patienceMillis = new int[n + 1];
+        work = workTime;
+        tries = retries + 1;
+    }
+
+    // n students arriving at ratePerSecond on average with the settings above. The same seed gives the
+    // same students at every rate, only the gaps between them are scaled
+    static Workload generate(int n, double ratePerSecond, long seed) {
+        Workload load = new Workload(n);
+        Random random = new Random(seed);
+        double meanGap = 1000 / ratePerSecond * (arrivals == Arrivals.BURSTY ? burstSize : 1);
+        double t = 0;
+        int id = 1;
+        while (id <= n) {
+            t += -meanGap * Math.log(1 - random.nextDouble()); // Exponential gap
+            int burst = 1;
+            if (arrivals == Arrivals.BURSTY) { // Geometric with mean burstSize
+                while (random.nextDouble() >= 1 / burstSize) {
+                    burst++;
+                }
+            }
+            for (int k = 0; k < burst && id <= n; k++, id++) {
+                load.arrival[id] = Math.round(t);
+            }
+        }
+        Random times = new Random(seed * 31 + 1); // Separate generator so they do not depend on the rate
+        for (id = 1; id <= n; id++) {
+            load.help[id] = helpTime.draw(times);
+            load.patienceMillis[id] = patience.draw(times);
+        }
+        return load;
+    }
+
+    // The students of a trace file, played speedup times faster than recorded. Help & patience columns
+    // that are missing are drawn from the distributions
+    static Workload fromTrace(Trace trace, double speedup, long seed) {
+        Workload load = new Workload(trace.size());
+        Random times = new Random(seed * 31 + 1);
+        for (int id = 1; id <= trace.size(); id++) {
+            load.arrival[id] = Math.round((trace.arrival[id - 1] - trace.arrival[0]) / speedup);
+            load.help[id] = trace.help[id - 1] >= 0 ? trace.help[id - 1] : helpTime.draw(times);
+            load.patienceMillis[id] = trace.patience[id - 1] >= 0 ? trace.patience[id - 1] : patience.draw(times);
+        }
+        return load;
+    }
+
+    // Arrival trace read from a CSV file, sorted by arrival time. -1 where a line has no help or patience
+    static final class Trace {
+        final long[] arrival;
+        final int[] help;
+        final int[] patience;
+
+        private Trace(int size) {
+            arrival = new long[size];
+            help = new int[size];
+            patience = new int[size];
+        }
+
+        int size() {
+            return arrival.length;
+        }
+
+        // Mean arrivals per second over the trace
+        double ratePerSecond() {
+            long span = arrival[arrival.length - 1] - arrival[0];
+            return span <= 0 ? Double.POSITIVE_INFINITY : (arrival.length - 1) * 1000.0 / span;
+        }
+
+        // Problems come back as IllegalArgumentException like a bad option value
+        static Trace read(String file) {
+            List<long[]> rows = new ArrayList<>();
+            try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+                String line;
+                int number = 0;
+                while ((line = in.readLine()) != null) {
+                    number++;
+                    line = line.trim();
+                    if (line.isEmpty() || !Character.isDigit(line.charAt(0))) {
+                        continue; // Header or blank line
+                    }
+                    String[] cells = line.split(",");
+                    try {
+                        rows.add(new long[] { Long.parseLong(cells[0].trim()),
+                                cells.length > 1 ? Long.parseLong(cells[1].trim()) : -1,
+                                cells.length > 2 ? Long.parseLong(cells[2].trim()) : -1 });
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("bad number on line " + number + " of " + file);
+                    }
+                }
+            } catch (IOException e) {
+                throw new IllegalArgumentException("can not read arrival trace " + file + ": " + e.getMessage(), e);
+            }
+            rows.sort((x, y) -> Long.compare(x[0], y[0]));
+            if (rows.size() < 2 || rows.get(0)[0] == rows.get(rows.size() - 1)[0]) { // No rate to scale
+                throw new IllegalArgumentException("need arrivals at two different times in " + file);
+            }
+            Trace trace = new Trace(rows.size());
+            for (int i = 0; i < rows.size(); i++) {
+                trace.arrival[i] = rows.get(i)[0];
+                trace.help[i] = (int) rows.get(i)[1];
+                trace.patience[i] = (int) rows.get(i)[2];
+            }
+            return trace;
+        }
+    }
+}
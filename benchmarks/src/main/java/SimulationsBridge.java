@@ -0,0 +1,80 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import osproj.bench.Simulations;
+
+// Lives in the unnamed package with ProducerConsumer & SleepingTA so it can reach their
+// package-private entry points, and hands them to the benchmarks through osproj.bench.Simulations.
+public class SimulationsBridge implements Simulations {
+
+    public SimulationsBridge() {
+        EventLog.setLevel(EventLog.Level.OFF); // A log call is then just a level check
+    }
+
+    @Override
+    public Buffer buffer(String engineName, int capacity) {
+        BufferEngine engine = engineName.equals("mapped") ? mappedEngine(capacity)
+                : engineName.startsWith("sharded") ? shardedEngine(engineName, capacity)
+                : ProducerConsumer.createEngine(engineName, capacity);
+        if (engine == null) {
+            throw new IllegalArgumentException("Unknown engine: " + engineName);
+        }
+        return new Buffer() {
+            @Override
+            public boolean tryInsert(int item) {
+                return engine.try_insert_item(item);
+            }
+
+            @Override
+            public int tryRemove(int[] dst, int max) {
+                return engine.try_remove_items(dst, max);
+            }
+
+            @Override
+            public int capacity() {
+                return engine.capacity();
+            }
+        };
+    }
+
+    // The mapped ring in a new temporary file, so every trial starts empty instead of resuming the last one
+    private static BufferEngine mappedEngine(int capacity) {
+        try {
+            Path file = Files.createTempFile("osproj-bench", ".ring");
+            file.toFile().deleteOnExit();
+            return new MappedRingBuffer(file, capacity, MappedRingBuffer.Sync.TIMED, 100);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // sharded (per-shard order) or sharded-global: SHARDS lock-free rings with the same total capacity as
+    // the other engines, one shard per producer/consumer thread of the default 4-thread groups
+    private static final int SHARDS = 4;
+
+    private static BufferEngine shardedEngine(String engineName, int capacity) {
+        ShardedBuffer.Ordering ordering = engineName.equals("sharded-global") ? ShardedBuffer.Ordering.GLOBAL
+                : ShardedBuffer.Ordering.SHARD;
+        return new ShardedBuffer(SHARDS, ordering, k -> new LockFreeRingBuffer(Math.max(1, capacity / SHARDS)));
+    }
+
+    @Override
+    public void setUpSleepingTA(int students, int tas, int chairs) {
+        SleepingTA.simulateDelays = false;
+        SleepingTA.setUpSimulation(students, tas, chairs, false, new Random().nextLong());
+    }
+
+    @Override
+    public void runSleepingTA() {
+        SleepingTA.startStudents();
+        SleepingTA.awaitStudents();
+    }
+
+    @Override
+    public void tearDownSleepingTA() {
+        SleepingTA.tearDownSimulation();
+    }
+}
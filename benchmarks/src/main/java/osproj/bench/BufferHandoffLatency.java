@@ -0,0 +1,184 @@
+package osproj.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.HdrHistogram.Histogram;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.infra.Control;
+import org.openjdk.jmh.infra.IterationParams;
+import org.openjdk.jmh.runner.IterationType;
+
+// Hand-off latency: the time from a producer publishing an item to a consumer taking it out. Each
+// item is the low 32 bits of System.nanoTime() when it was inserted, so the consumer can work out the
+// delay with int arithmetic (wraps correctly for anything under ~2 seconds). Delays are recorded in an
+// HdrHistogram per consumer thread and p50/p99/p99.9 over all measurement iterations are printed at the
+// end of each trial. A delay that comes out negative (an item older than that) can not be recorded, it
+// is counted and printed with the percentiles instead. Every iteration starts with a new, empty buffer so
+// items left over from the last iteration do not show up as huge delays in the next one. The ops/sec
+// line JMH prints is the same workload as BufferThroughput.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Group)
+public class BufferHandoffLatency {
+
+    @Param({ "semaphore", "ring" })
+    public String engine;
+
+    @Param({ "8", "1024", "65536" })
+    public int capacity;
+
+    private Simulations simulations;
+    private Simulations.Buffer buffer; // Replaced before every iteration
+    private final List<ConsumerState> consumers = new ArrayList<>(); // One per consumer thread
+    private final Histogram total = new Histogram(3); // Measurement iterations only
+    private long totalWrapped = 0; // Negative delays in the measurement iterations
+
+    @Setup(Level.Trial)
+    public void load() {
+        simulations = Simulations.load();
+    }
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        buffer = simulations.buffer(engine, capacity);
+    }
+
+    synchronized void register(ConsumerState consumer) {
+        consumers.add(consumer);
+    }
+
+    // Fold the consumers' histograms into the total, skipping warmup iterations
+    @TearDown(Level.Iteration)
+    public synchronized void collect(IterationParams iteration) {
+        for (ConsumerState consumer : consumers) {
+            if (iteration.getType() == IterationType.MEASUREMENT) {
+                total.add(consumer.histogram);
+                totalWrapped += consumer.wrapped;
+            }
+            consumer.histogram.reset();
+            consumer.wrapped = 0;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void report(BenchmarkParams params) {
+        System.out.printf("%n%s handoff latency (%s, capacity %d): p50=%d ns p99=%d ns p99.9=%d ns"
+                + " over %d items, %d negative (not recorded)%n", params.getBenchmark(), engine, capacity,
+                total.getValueAtPercentile(50), total.getValueAtPercentile(99),
+                total.getValueAtPercentile(99.9), total.getTotalCount(), totalWrapped);
+    }
+
+    @State(Scope.Thread)
+    public static class ConsumerState {
+        final int[] dst = new int[1];
+        final Histogram histogram = new Histogram(3);
+        long wrapped = 0; // Delays that came out negative this iteration
+
+        @Setup
+        public void register(BufferHandoffLatency group) {
+            group.register(this);
+        }
+    }
+
+    private boolean produce(Control control) {
+        while (!buffer.tryInsert((int) System.nanoTime())) {
+            if (control.stopMeasurement) {
+                return false;
+            }
+            Thread.onSpinWait();
+        }
+        return true;
+    }
+
+    private int consume(Control control, ConsumerState state) {
+        while (buffer.tryRemove(state.dst, 1) == 0) {
+            if (control.stopMeasurement) {
+                return 0;
+            }
+            Thread.onSpinWait();
+        }
+        int latency = (int) System.nanoTime() - state.dst[0];
+        if (latency >= 0) {
+            state.histogram.recordValue(latency);
+        } else { // Older than ~2 seconds, the low 32 bits wrapped
+            state.wrapped++;
+        }
+        return latency;
+    }
+
+    @Benchmark
+    @Group("p1c1")
+    @GroupThreads(1)
+    public boolean p1c1Producer(Control control) {
+        return produce(control);
+    }
+
+    @Benchmark
+    @Group("p1c1")
+    @GroupThreads(1)
+    public int p1c1Consumer(Control control, ConsumerState state) {
+        return consume(control, state);
+    }
+
+    @Benchmark
+    @Group("pNc1")
+    @GroupThreads(4)
+    public boolean pNc1Producer(Control control) {
+        return produce(control);
+    }
+
+    @Benchmark
+    @Group("pNc1")
+    @GroupThreads(1)
+    public int pNc1Consumer(Control control, ConsumerState state) {
+        return consume(control, state);
+    }
+
+    @Benchmark
+    @Group("p1cN")
+    @GroupThreads(1)
+    public boolean p1cNProducer(Control control) {
+        return produce(control);
+    }
+
+    @Benchmark
+    @Group("p1cN")
+    @GroupThreads(4)
+    public int p1cNConsumer(Control control, ConsumerState state) {
+        return consume(control, state);
+    }
+
+    @Benchmark
+    @Group("pNcN")
+    @GroupThreads(4)
+    public boolean pNcNProducer(Control control) {
+        return produce(control);
+    }
+
+    @Benchmark
+    @Group("pNcN")
+    @GroupThreads(4)
+    public int pNcNConsumer(Control control, ConsumerState state) {
+        return consume(control, state);
+    }
+}
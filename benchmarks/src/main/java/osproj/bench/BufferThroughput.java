@@ -0,0 +1,127 @@
+package osproj.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Control;
+
+// Items per second through a buffer engine for the four producer/consumer topologies:
+// 1P1C, NP1C, 1PNC and NPNC with N = 4. Change N with JMH's -tg option, e.g. -tg 8,8 for pNcN.
+// JMH reports the producer and consumer rates separately and their sum for the group. Compare ring with
+// sharded in pNcN to see how much spreading the threads over 4 shards gains on a machine with the cores.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Group)
+public class BufferThroughput {
+
+    @Param({ "semaphore", "ring", "mapped", "sharded", "sharded-global" })
+    public String engine;
+
+    @Param({ "8", "1024", "65536" })
+    public int capacity;
+
+    private Simulations.Buffer buffer;
+
+    @Setup
+    public void setUp() {
+        buffer = Simulations.load().buffer(engine, capacity);
+    }
+
+    // Each consumer thread drains into its own array
+    @State(Scope.Thread)
+    public static class ConsumerState {
+        final int[] dst = new int[1];
+    }
+
+    private boolean produce(Control control) {
+        while (!buffer.tryInsert(42)) {
+            if (control.stopMeasurement) { // Iteration is over and the buffer stays full
+                return false;
+            }
+            Thread.onSpinWait();
+        }
+        return true;
+    }
+
+    private int consume(Control control, ConsumerState state) {
+        int count;
+        while ((count = buffer.tryRemove(state.dst, 1)) == 0) {
+            if (control.stopMeasurement) { // Iteration is over and the buffer stays empty
+                return 0;
+            }
+            Thread.onSpinWait();
+        }
+        return state.dst[0] + count;
+    }
+
+    @Benchmark
+    @Group("p1c1")
+    @GroupThreads(1)
+    public boolean p1c1Producer(Control control) {
+        return produce(control);
+    }
+
+    @Benchmark
+    @Group("p1c1")
+    @GroupThreads(1)
+    public int p1c1Consumer(Control control, ConsumerState state) {
+        return consume(control, state);
+    }
+
+    @Benchmark
+    @Group("pNc1")
+    @GroupThreads(4)
+    public boolean pNc1Producer(Control control) {
+        return produce(control);
+    }
+
+    @Benchmark
+    @Group("pNc1")
+    @GroupThreads(1)
+    public int pNc1Consumer(Control control, ConsumerState state) {
+        return consume(control, state);
+    }
+
+    @Benchmark
+    @Group("p1cN")
+    @GroupThreads(1)
+    public boolean p1cNProducer(Control control) {
+        return produce(control);
+    }
+
+    @Benchmark
+    @Group("p1cN")
+    @GroupThreads(4)
+    public int p1cNConsumer(Control control, ConsumerState state) {
+        return consume(control, state);
+    }
+
+    @Benchmark
+    @Group("pNcN")
+    @GroupThreads(4)
+    public boolean pNcNProducer(Control control) {
+        return produce(control);
+    }
+
+    @Benchmark
+    @Group("pNcN")
+    @GroupThreads(4)
+    public int pNcNConsumer(Control control, ConsumerState state) {
+        return consume(control, state);
+    }
+}
@@ -0,0 +1,39 @@
+package osproj.bench;
+
+// The simulations live in the unnamed (default) package, which JMH benchmarks and any other named
+// package can not import. SimulationsBridge sits in the unnamed package next to them and implements
+// this interface, so it is the only class that has to be loaded by name.
+public interface Simulations {
+
+    // Non-blocking view of a BufferEngine. Benchmarks spin on these instead of the blocking calls so a
+    // producer or consumer never hangs when JMH ends an iteration with the buffer full or empty.
+    interface Buffer {
+        boolean tryInsert(int item);
+
+        int tryRemove(int[] dst, int max);
+
+        int capacity();
+    }
+
+    // Create a buffer engine by its command-line name (semaphore, ring, ...)
+    Buffer buffer(String engine, int capacity);
+
+    // A SleepingTA simulation with the simulated sleeps switched off, tas TAs sharing a hallway of chairs
+    // chairs, in three steps. Set up starts the TA & student threads and returns with the students waiting
+    // to be let go, run lets them go and returns once every student has been helped, tear down stops and
+    // joins the threads.
+    void setUpSleepingTA(int students, int tas, int chairs);
+
+    void runSleepingTA();
+
+    void tearDownSleepingTA();
+
+    // The bridge switches the simulations' event log off so benchmarks measure synchronization only
+    static Simulations load() {
+        try {
+            return (Simulations) Class.forName("SimulationsBridge").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("SimulationsBridge is missing from the benchmark jar", e);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package osproj.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// SleepingTA student -> TA hand-offs with the help, work & arrival sleeps switched off. Each invocation is
+// one simulation of STUDENTS students, but the TA & student threads are started before it and stopped
+// after it (Level.Invocation set up & tear down), so only letting the students go until the last one has
+// been helped is timed. The scores are per hand-off: hand-offs per second and average time per hand-off,
+// for several hallway sizes & TA counts. An invocation takes milliseconds, long enough for JMH's
+// per-invocation fixtures not to skew it.
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TaHandoff {
+
+    static final int STUDENTS = 100;
+
+    @Param({ "1", "3", "10", "50" })
+    public int chairs;
+
+    @Param({ "1", "4" })
+    public int tas;
+
+    private Simulations simulations;
+
+    @Setup(Level.Trial)
+    public void load() {
+        simulations = Simulations.load();
+    }
+
+    // Start every thread of the next simulation, the students wait to be let go
+    @Setup(Level.Invocation)
+    public void setUp() {
+        simulations.setUpSleepingTA(STUDENTS, tas, chairs);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(STUDENTS)
+    public void handoff() {
+        simulations.runSleepingTA();
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDown() {
+        simulations.tearDownSleepingTA();
+    }
+}
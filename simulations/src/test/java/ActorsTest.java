@@ -0,0 +1,61 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+// --threads=pool: an actor handle interrupts and joins the actor like its own thread would, though the pool
+// thread runs other actors before and after it
+class ActorsTest {
+
+    @AfterEach
+    void restore() {
+        Actors.configure("--threads=platform");
+    }
+
+    // With a pool of 1 the second actor waits in the queue behind the first. Its interrupt comes while it is
+    // queued and is delivered when it starts; the first actor's leftover interrupt does not reach it
+    @Test
+    @Timeout(5)
+    void interruptsStayWithTheirActor() throws InterruptedException {
+        Actors.configure("--threads=pool=1");
+        CountDownLatch release = new CountDownLatch(1);
+        Actors.Actor first = Actors.start(() -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt(); // Left set when the actor ends
+            }
+        }, "First");
+        AtomicBoolean secondInterrupted = new AtomicBoolean();
+        Actors.Actor second = Actors.start(() -> secondInterrupted.set(Thread.currentThread().isInterrupted()),
+                "Second");
+        AtomicBoolean thirdInterrupted = new AtomicBoolean(true);
+        Actors.Actor third = Actors.start(() -> thirdInterrupted.set(Thread.currentThread().isInterrupted()),
+                "Third");
+        second.interrupt();
+        first.interrupt();
+        first.join();
+        second.join();
+        third.join();
+        assertTrue(secondInterrupted.get());
+        assertFalse(thirdInterrupted.get());
+    }
+
+    @Test
+    void poolTooSmallForTheForeverActorsIsRefused() {
+        Actors.configure("--threads=pool=3");
+        Actors.requirePool(3, "consumers");
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+                () -> Actors.requirePool(4, "consumers"));
+        assertTrue(e.getMessage().contains("--threads=pool=4"), e.getMessage());
+        assertThrows(IllegalArgumentException.class, () -> Actors.configure("--threads=pool=0"));
+        assertEquals(Actors.Mode.POOL, Actors.mode());
+    }
+}
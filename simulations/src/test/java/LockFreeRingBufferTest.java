@@ -0,0 +1,192 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+// Batch claims of RingSequencer through the int ring: wrap-around, all-or-nothing inserts and many
+// producers & consumers moving batches at once
+class LockFreeRingBufferTest {
+
+    @BeforeAll
+    static void quiet() {
+        EventLog.setLevel(EventLog.Level.OFF);
+    }
+
+    @Test
+    void batchesWrapAroundTheRing() throws InterruptedException {
+        LockFreeRingBuffer ring = new LockFreeRingBuffer(8);
+        int[] dst = new int[8];
+        int next = 0;
+        int expected = 0;
+        for (int round = 0; round < 100; round++) { // 5 in, 5 out: the batch starts at a different slot each time
+            int[] batch = new int[5];
+            for (int i = 0; i < batch.length; i++) {
+                batch[i] = next++;
+            }
+            ring.insert_items(batch, batch.length);
+            assertEquals(5, ring.size());
+            int removed = 0;
+            while (removed < 5) {
+                int count = ring.remove_items(dst, 8);
+                for (int i = 0; i < count; i++) {
+                    assertEquals(expected++, dst[i]);
+                }
+                removed += count;
+            }
+            assertEquals(0, ring.size());
+        }
+    }
+
+    @Test
+    void tryInsertItemsIsAllOrNothing() {
+        LockFreeRingBuffer ring = new LockFreeRingBuffer(8);
+        assertTrue(ring.try_insert_items(new int[] { 1, 2, 3, 4, 5, 6 }, 6));
+        assertFalse(ring.try_insert_items(new int[] { 7, 8, 9 }, 3)); // Only 2 slots left
+        assertEquals(6, ring.size());
+        assertTrue(ring.try_insert_items(new int[] { 7, 8 }, 2));
+        assertFalse(ring.try_insert_item(9));
+        int[] dst = new int[8];
+        assertEquals(8, ring.try_remove_items(dst, 8));
+        assertArrayEquals(new int[] { 1, 2, 3, 4, 5, 6, 7, 8 }, dst);
+        assertEquals(0, ring.try_remove_items(dst, 8));
+    }
+
+    @Test
+    void batchLargerThanTheRingIsRejected() {
+        LockFreeRingBuffer ring = new LockFreeRingBuffer(8);
+        assertThrows(IllegalArgumentException.class, () -> ring.try_insert_items(new int[9], 9));
+        assertThrows(IllegalArgumentException.class, () -> ring.insert_items(new int[9], 9));
+    }
+
+    // 4 producers put batches of 1 to 7 items into a ring of 16 slots while 4 consumers take up to 5 at a
+    // time, so claims wrap around the ring thousands of times. Every item has to come out exactly once, and
+    // a consumer has to see each producer's items in the order that producer put them in
+    @Test
+    @Timeout(60)
+    void manyProducersAndConsumersMoveBatches() throws InterruptedException {
+        int producers = 4;
+        int consumers = 4;
+        int perProducer = 20_000;
+        int total = producers * perProducer;
+        LockFreeRingBuffer ring = new LockFreeRingBuffer(16);
+        AtomicIntegerArray seen = new AtomicIntegerArray(total);
+        AtomicInteger consumed = new AtomicInteger();
+        AtomicReference<String> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+
+        for (int p = 0; p < producers; p++) {
+            int producer = p;
+            threads.add(new Thread(() -> {
+                int[] batch = new int[7];
+                int sent = 0;
+                while (sent < perProducer) {
+                    int count = Math.min(1 + sent % 7, perProducer - sent);
+                    for (int i = 0; i < count; i++) {
+                        batch[i] = producer * perProducer + sent + i; // Item = producer & sequence number
+                    }
+                    try {
+                        ring.insert_items(batch, count);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    sent += count;
+                }
+            }, "producer-" + p));
+        }
+        for (int c = 0; c < consumers; c++) {
+            threads.add(new Thread(() -> {
+                int[] dst = new int[5];
+                int[] last = new int[producers]; // Last sequence number seen from each producer
+                Arrays.fill(last, -1);
+                while (consumed.get() < total) {
+                    int count = ring.try_remove_items(dst, dst.length);
+                    if (count == 0) {
+                        Thread.yield();
+                        continue;
+                    }
+                    for (int i = 0; i < count; i++) {
+                        int item = dst[i];
+                        if (seen.getAndIncrement(item) != 0) {
+                            failure.compareAndSet(null, "item " + item + " came out twice");
+                        }
+                        int producer = item / perProducer;
+                        int sequence = item % perProducer;
+                        if (sequence <= last[producer]) {
+                            failure.compareAndSet(null, "item " + item + " came out after " + last[producer]);
+                        }
+                        last[producer] = sequence;
+                    }
+                    consumed.addAndGet(count);
+                }
+            }, "consumer-" + c));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertNull(failure.get());
+        assertEquals(total, consumed.get());
+        for (int item = 0; item < total; item++) {
+            assertEquals(1, seen.get(item), "item " + item);
+        }
+        assertEquals(0, ring.size());
+    }
+
+    // A batch claimed a slot whose consumer is still copying the old item out (the consumer took position
+    // 0 but has not released it). The producer waits through its wait strategy, asleep with block, keeps
+    // waiting when interrupted, and publishes the batch once the slot is back, with the interrupt still set
+    @Test
+    @Timeout(30)
+    void batchWaitsForASlotThroughTheWaitStrategy() throws InterruptedException {
+        LockFreeRingBuffer ring = new LockFreeRingBuffer(4);
+        ring.useWaitStrategies(WaitStrategy.create("block"), WaitStrategy.create("block"));
+        assertTrue(ring.try_insert_items(new int[] { 1, 2, 3, 4 }, 4));
+        assertTrue(ring.takeRun(ring.headPosition(), 1)); // Consumer took position 0, still copying
+
+        AtomicReference<Boolean> interruptedAfter = new AtomicReference<>();
+        Thread producer = new Thread(() -> {
+            try {
+                ring.insert_items(new int[] { 5 }, 1); // Gets position 4, slot 0
+            } catch (InterruptedException e) {
+                interruptedAfter.set(null);
+                return;
+            }
+            interruptedAfter.set(Thread.currentThread().isInterrupted());
+        });
+        producer.start();
+        awaitState(producer, Thread.State.WAITING); // Asleep, not spinning
+        producer.interrupt();
+        Thread.sleep(50);
+        assertTrue(producer.isAlive()); // Claimed positions are published, not abandoned
+        awaitState(producer, Thread.State.WAITING);
+
+        ring.release(0); // Consumer is done copying, wakes the producer
+        producer.join();
+        assertEquals(Boolean.TRUE, interruptedAfter.get());
+        int[] dst = new int[4];
+        assertEquals(4, ring.try_remove_items(dst, 4));
+        assertArrayEquals(new int[] { 2, 3, 4, 5 }, dst);
+    }
+
+    static void awaitState(Thread thread, Thread.State state) throws InterruptedException {
+        while (thread.getState() != state) {
+            Thread.sleep(1);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// Recovery of the mapped ring when it is opened again: what was queued comes back, a batch a producer had
+// only half written when it died is dropped from the gap on, and a file cut short is not trusted.
+// The file is edited by hand to get it into the state a crash would leave, see the layout in MappedRingBuffer
+class MappedRingBufferTest {
+
+    // File layout, see MappedRingBuffer
+    private static final int TAIL_AT = 64;
+    private static final int DATA_AT = 192;
+    private static final int SLOT_BYTES = 16;
+    private static final int ITEM_AT = 8;
+
+    @TempDir
+    Path dir;
+
+    @BeforeAll
+    static void quiet() {
+        EventLog.setLevel(EventLog.Level.OFF);
+    }
+
+    private MappedRingBuffer open(Path file) throws IOException {
+        return new MappedRingBuffer(file, 8, MappedRingBuffer.Sync.NONE, 0);
+    }
+
+    private static void putLong(Path file, long at, long value) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocate(8).order(ByteOrder.nativeOrder());
+            buffer.putLong(value).flip();
+            channel.write(buffer, at);
+        }
+    }
+
+    private static void putInt(Path file, long at, int value) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocate(4).order(ByteOrder.nativeOrder());
+            buffer.putInt(value).flip();
+            channel.write(buffer, at);
+        }
+    }
+
+    private static int[] drain(MappedRingBuffer ring) {
+        int[] dst = new int[ring.capacity()];
+        int count = ring.try_remove_items(dst, dst.length);
+        return Arrays.copyOf(dst, count);
+    }
+
+    @Test
+    void queuedItemsSurviveAReopen() throws IOException {
+        Path file = dir.resolve("ring");
+        MappedRingBuffer ring = open(file);
+        assertTrue(ring.try_insert_items(new int[] { 1, 2, 3, 4, 5 }, 5));
+        assertEquals(2, ring.try_remove_items(new int[2], 2));
+        ring.close();
+
+        MappedRingBuffer again = open(file);
+        assertEquals(3, again.recovered());
+        assertEquals(3, again.size());
+        assertEquals("[3, 4, 5]", Arrays.toString(drain(again)));
+        again.close();
+    }
+
+    // A producer claimed positions 3, 4 & 5 for a batch, published 3 and 5 but died before publishing 4.
+    // Consumers could never get past 4, so 3 is kept and 4 & 5 are dropped
+    @Test
+    void halfWrittenBatchIsDroppedFromTheGapOn() throws IOException {
+        Path file = dir.resolve("ring");
+        MappedRingBuffer ring = open(file);
+        assertTrue(ring.try_insert_items(new int[] { 10, 20, 30 }, 3));
+        ring.close();
+
+        putLong(file, TAIL_AT, 6);
+        putLong(file, DATA_AT + 3 * SLOT_BYTES, 4); // Published
+        putInt(file, DATA_AT + 3 * SLOT_BYTES + ITEM_AT, 40);
+        putLong(file, DATA_AT + 4 * SLOT_BYTES, 4); // Claimed, never published
+        putLong(file, DATA_AT + 5 * SLOT_BYTES, 6); // Published after the gap
+        putInt(file, DATA_AT + 5 * SLOT_BYTES + ITEM_AT, 60);
+
+        MappedRingBuffer again = open(file);
+        assertEquals(4, again.recovered());
+        assertTrue(again.try_insert_items(new int[] { 50, 60 }, 2)); // Reuses the dropped positions
+        assertEquals("[10, 20, 30, 40, 50, 60]", Arrays.toString(drain(again)));
+        // Every slot is usable again, also the ones that were dropped
+        assertTrue(again.try_insert_items(new int[] { 1, 2, 3, 4, 5, 6, 7, 8 }, 8));
+        assertEquals("[1, 2, 3, 4, 5, 6, 7, 8]", Arrays.toString(drain(again)));
+        again.close();
+    }
+
+    // A file cut off in the middle of its slots has a good header, but its slots can not be trusted
+    @Test
+    void truncatedRingIsRefused() throws IOException {
+        Path file = dir.resolve("ring");
+        MappedRingBuffer ring = open(file);
+        assertTrue(ring.try_insert_items(new int[] { 1, 2, 3 }, 3));
+        ring.close();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(DATA_AT + 3 * SLOT_BYTES);
+        }
+
+        IOException e = assertThrows(IOException.class, () -> open(file));
+        assertEquals("ring file header is damaged", e.getMessage());
+    }
+
+    // Cut off inside the header (or never formatted to the end): started over as a new, empty ring
+    @Test
+    void truncatedHeaderStartsOver() throws IOException {
+        Path file = dir.resolve("ring");
+        MappedRingBuffer ring = open(file);
+        assertTrue(ring.try_insert_items(new int[] { 1, 2, 3 }, 3));
+        ring.close();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(100);
+        }
+
+        MappedRingBuffer again = open(file);
+        assertEquals(0, again.recovered());
+        assertEquals(0, again.size());
+        assertTrue(again.try_insert_items(new int[] { 7 }, 1));
+        assertEquals("[7]", Arrays.toString(drain(again)));
+        again.close();
+    }
+}
@@ -0,0 +1,123 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+// Bucket edges of the log-linear histogram and the percentiles a snapshot reports from them
+class MetricsTest {
+
+    @BeforeAll
+    static void enable() {
+        Metrics.configure("--metrics=3600000"); // Histograms only record while metrics are on
+    }
+
+    private static Map<String, Long> snapshot(Metrics.Histogram histogram) {
+        Map<String, Long> values = new HashMap<>();
+        histogram.snapshot("h", values);
+        return values;
+    }
+
+    @Test
+    void smallValuesGetABucketEach() {
+        for (long value = 0; value < 64; value++) {
+            assertEquals(value, Metrics.Histogram.bucket(value));
+            assertEquals(value, Metrics.Histogram.highestValue((int) value));
+        }
+    }
+
+    // Every value lands in the bucket whose range holds it: above the previous bucket's highest value and
+    // at most its own. A bucket is never wider than 1/32 of the values in it
+    @Test
+    void bucketRangesHoldTheirValues() {
+        long[] edges = { 64, 65, 127, 128, 129, 1000, 1 << 20, (1 << 20) - 1, (1 << 20) + 1, 1_000_000_007L,
+                Long.MAX_VALUE / 3, Long.MAX_VALUE - 1, Long.MAX_VALUE };
+        for (long value : edges) {
+            checkBucket(value);
+        }
+        for (int shift = 6; shift < 63; shift++) { // Both sides of every power of two
+            checkBucket((1L << shift) - 1);
+            checkBucket(1L << shift);
+        }
+        for (long value = 0; value < 100_000; value++) {
+            checkBucket(value);
+        }
+        assertEquals(Metrics.Histogram.BUCKETS - 1, Metrics.Histogram.bucket(Long.MAX_VALUE));
+        assertEquals(Long.MAX_VALUE, Metrics.Histogram.highestValue(Metrics.Histogram.BUCKETS - 1));
+    }
+
+    private static void checkBucket(long value) {
+        int bucket = Metrics.Histogram.bucket(value);
+        long highest = Metrics.Histogram.highestValue(bucket);
+        long lowest = bucket == 0 ? 0 : Metrics.Histogram.highestValue(bucket - 1) + 1;
+        assertTrue(lowest <= value && value <= highest, value + " is not in bucket " + bucket);
+        assertTrue(highest - lowest <= Math.max(0, lowest / 32), "bucket " + bucket + " is too wide");
+    }
+
+    @Test
+    void emptyHistogramReportsZeros() {
+        Map<String, Long> values = snapshot(new Metrics.Histogram());
+        assertEquals(0L, values.get("h.count"));
+        assertEquals(0L, values.get("h.p50_us"));
+        assertEquals(0L, values.get("h.p999_us"));
+        assertEquals(0L, values.get("h.max_us"));
+    }
+
+    // A bucket's upper bound can be above anything recorded, the percentiles are capped at the maximum
+    @Test
+    void singleValueIsEveryPercentile() {
+        Metrics.Histogram histogram = new Metrics.Histogram();
+        histogram.record(1_234_567);
+        Map<String, Long> values = snapshot(histogram);
+        assertEquals(1L, values.get("h.count"));
+        assertEquals(1234L, values.get("h.p50_us"));
+        assertEquals(1234L, values.get("h.p99_us"));
+        assertEquals(1234L, values.get("h.p999_us"));
+        assertEquals(1234L, values.get("h.max_us"));
+        assertEquals(1234L, values.get("h.mean_us"));
+    }
+
+    // 99 fast & 1 slow value: p99 is the 99th value (still fast), p99.9 the 100th. 990 & 10: p99 is the
+    // 990th value, the last fast one
+    @Test
+    void percentilesSplitAtTheirRank() {
+        Metrics.Histogram histogram = new Metrics.Histogram();
+        for (int i = 0; i < 99; i++) {
+            histogram.record(1_000_000);
+        }
+        histogram.record(50_000_000);
+        Map<String, Long> values = snapshot(histogram);
+        assertEquals(100L, values.get("h.count"));
+        assertBetween(1000, 1000 + 1000 / 32, values.get("h.p50_us"));
+        assertBetween(1000, 1000 + 1000 / 32, values.get("h.p99_us"));
+        assertEquals(50_000L, values.get("h.p999_us"));
+        assertEquals(50_000L, values.get("h.max_us"));
+
+        Metrics.Histogram tail = new Metrics.Histogram();
+        for (int i = 0; i < 990; i++) {
+            tail.record(2_000_000);
+        }
+        for (int i = 0; i < 10; i++) {
+            tail.record(9_000_000);
+        }
+        values = snapshot(tail);
+        assertBetween(2000, 2000 + 2000 / 32, values.get("h.p99_us"));
+        assertBetween(9000, 9000, values.get("h.p999_us"));
+    }
+
+    @Test
+    void negativeValuesCountAsZero() {
+        Metrics.Histogram histogram = new Metrics.Histogram();
+        histogram.record(-5);
+        Map<String, Long> values = snapshot(histogram);
+        assertEquals(1L, values.get("h.count"));
+        assertEquals(0L, values.get("h.max_us"));
+    }
+
+    private static void assertBetween(long low, long high, long actual) {
+        assertTrue(low <= actual && actual <= high, actual + " is not in [" + low + ", " + high + "]");
+    }
+}
@@ -0,0 +1,223 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+// Global ordering over K shards: the i-th take gets the i-th item, also while a thread holding tickets is
+// interrupted and after mapped shards recovered what the last run left in them
+class ShardedBufferTest {
+
+    @TempDir
+    Path dir;
+
+    @BeforeAll
+    static void quiet() {
+        EventLog.setLevel(EventLog.Level.OFF);
+    }
+
+    private ShardedBuffer openMapped(int shards) {
+        return new ShardedBuffer(shards, ShardedBuffer.Ordering.GLOBAL, k -> {
+            try {
+                return new MappedRingBuffer(dir.resolve("ring.shard" + k), 4, MappedRingBuffer.Sync.NONE, 0);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    private static ShardedBuffer ringShards(int shards, int slots) {
+        return new ShardedBuffer(shards, ShardedBuffer.Ordering.GLOBAL, k -> new LockFreeRingBuffer(slots));
+    }
+
+    // Ring shard whose inserts can be held up, as if its slot were still taken
+    private static final class GatedRing extends LockFreeRingBuffer {
+        volatile boolean open = true;
+
+        GatedRing(int slots) {
+            super(slots);
+        }
+
+        @Override
+        public boolean try_insert_item(int item) {
+            return open && super.try_insert_item(item);
+        }
+    }
+
+    private static int[] drain(BufferEngine buffer) {
+        int[] dst = new int[buffer.capacity()];
+        int count = buffer.try_remove_items(dst, dst.length);
+        return Arrays.copyOf(dst, count);
+    }
+
+    // 7 items over 3 shards, 2 taken: tickets 2..6 are left, shard 2 holds the oldest. The next run takes
+    // them in order, knows they fill 5 of its 12 slots and puts new items behind them
+    @Test
+    void recoveredItemsKeepTheirGlobalOrder() {
+        ShardedBuffer buffer = openMapped(3);
+        assertTrue(buffer.try_insert_items(new int[] { 1, 2, 3, 4, 5, 6, 7 }, 7));
+        assertEquals(2, buffer.try_remove_items(new int[2], 2));
+        buffer.close();
+
+        ShardedBuffer again = openMapped(3);
+        assertEquals(5, again.size());
+        assertTrue(again.try_insert_items(new int[] { 8, 9, 10, 11, 12, 13, 14 }, 7));
+        assertFalse(again.try_insert_item(15)); // 12 tickets out, no room for a 13th
+        assertEquals("[3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14]", Arrays.toString(drain(again)));
+        again.close();
+    }
+
+    // Two items both in shard 0 can not be two consecutive tickets
+    @Test
+    void itemsNotLeftInGlobalOrderAreRefused() throws IOException {
+        MappedRingBuffer shard = new MappedRingBuffer(dir.resolve("ring.shard0"), 4, MappedRingBuffer.Sync.NONE, 0);
+        assertTrue(shard.try_insert_items(new int[] { 1, 2 }, 2));
+        shard.close();
+
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () -> openMapped(3));
+        assertTrue(e.getMessage().contains("--ordering=shard"), e.getMessage());
+    }
+
+    // Batches of 1 to 12 go in and come out across 3 shards of 4 slots: one item at a time per shard, still
+    // in the order they were inserted
+    @Test
+    @Timeout(10)
+    void oneProducerItemsComeOutInOrder() throws InterruptedException {
+        ShardedBuffer buffer = ringShards(3, 4);
+        int total = 20_000;
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread producer = new Thread(() -> {
+            Random random = new Random(1);
+            int[] batch = new int[12];
+            try {
+                for (int next = 0; next < total;) {
+                    int n = Math.min(total - next, 1 + random.nextInt(12));
+                    for (int i = 0; i < n; i++) {
+                        batch[i] = next++;
+                    }
+                    buffer.insert_items(batch, n);
+                }
+            } catch (Throwable e) {
+                failure.set(e);
+            }
+        });
+        producer.start();
+        Random random = new Random(2);
+        int[] dst = new int[12];
+        for (int expected = 0; expected < total;) {
+            int count = buffer.remove_items(dst, 1 + random.nextInt(12));
+            for (int i = 0; i < count; i++) {
+                assertEquals(expected++, dst[i]);
+            }
+        }
+        producer.join();
+        assertEquals(null, failure.get());
+        assertEquals(0, buffer.size());
+    }
+
+    // 4 producers into one consumer: the producers' tickets interleave, but each producer's items are handed
+    // out in the order it put them in, and none are lost
+    @Test
+    @Timeout(10)
+    void eachProducerKeepsItsOrder() throws InterruptedException {
+        ShardedBuffer buffer = ringShards(3, 4);
+        int producers = 4;
+        int each = 5000;
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            int base = p * each;
+            threads[p] = new Thread(() -> {
+                int[] batch = new int[3];
+                try {
+                    for (int i = 0; i < each; i += 3) {
+                        int n = Math.min(3, each - i);
+                        for (int j = 0; j < n; j++) {
+                            batch[j] = base + i + j;
+                        }
+                        buffer.insert_items(batch, n);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            threads[p].start();
+        }
+        int[] next = new int[producers];
+        int[] dst = new int[8];
+        for (int taken = 0; taken < producers * each;) {
+            int count = buffer.remove_items(dst, dst.length);
+            for (int i = 0; i < count; i++) {
+                int p = dst[i] / each;
+                assertEquals(p * each + next[p]++, dst[i]);
+            }
+            taken += count;
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertArrayEquals(new int[] { each, each, each, each }, next);
+    }
+
+    // A producer holds tickets 1 to 3 and waits for shard 1, a consumer holds take tickets 0 to 3 and waits
+    // for the producer's item 1. Both are interrupted. Each has a partner waiting for its ticket, so both
+    // finish them once shard 1 takes items again, in order, and return with the interrupt kept
+    @Test
+    @Timeout(10)
+    void interruptedTicketHoldersFinishInOrder() throws InterruptedException {
+        GatedRing gated = new GatedRing(4);
+        ShardedBuffer buffer = new ShardedBuffer(2, ShardedBuffer.Ordering.GLOBAL,
+                k -> k == 1 ? gated : new LockFreeRingBuffer(4));
+        buffer.useWaitStrategies(WaitStrategy.create("block"), WaitStrategy.create("block"));
+        gated.open = false;
+
+        AtomicBoolean producerInterrupted = new AtomicBoolean();
+        Thread producer = new Thread(() -> {
+            try {
+                buffer.insert_items(new int[] { 10, 11, 12, 13 }, 4);
+            } catch (InterruptedException e) {
+                return; // Tickets are claimed before any waiting, so this would be a bug
+            }
+            producerInterrupted.set(Thread.currentThread().isInterrupted());
+        });
+        producer.start();
+        LockFreeRingBufferTest.awaitState(producer, Thread.State.WAITING); // Item 10 is in, 11 can not go in
+
+        int[] taken = new int[4];
+        AtomicBoolean consumerInterrupted = new AtomicBoolean();
+        Thread consumer = new Thread(() -> {
+            int count = buffer.try_remove_items(taken, 4); // Claims all 4 take tickets, waits for item 11
+            consumerInterrupted.set(count == 4 && Thread.currentThread().isInterrupted());
+        });
+        consumer.start();
+        LockFreeRingBufferTest.awaitState(consumer, Thread.State.WAITING);
+
+        producer.interrupt();
+        consumer.interrupt();
+        Thread.sleep(50);
+        assertTrue(producer.isAlive()); // Still holding their tickets
+        assertTrue(consumer.isAlive());
+        LockFreeRingBufferTest.awaitState(producer, Thread.State.WAITING);
+
+        gated.open = true;
+        buffer.producerWait().signal();
+        producer.join();
+        consumer.join();
+        assertTrue(producerInterrupted.get());
+        assertTrue(consumerInterrupted.get());
+        assertArrayEquals(new int[] { 10, 11, 12, 13 }, taken);
+        assertEquals(0, buffer.size());
+    }
+}
@@ -0,0 +1,90 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+// The two-step shutdown: no new work once admitting stopped, and the drain waits for the admitted work but
+// never longer than --drain
+class ShutdownTest {
+
+    private final long drainMillis = Shutdown.drainMillis;
+
+    @AfterEach
+    void restore() {
+        Shutdown.drainMillis = drainMillis;
+    }
+
+    @Test
+    @Timeout(5)
+    void nothingAdmittedDrainsRightAway() throws InterruptedException {
+        Shutdown shutdown = new Shutdown();
+        shutdown.stopAdmitting();
+        assertTrue(shutdown.awaitDrained());
+        assertEquals(0, shutdown.outstanding());
+    }
+
+    @Test
+    @Timeout(5)
+    void noWorkIsAdmittedAfterTheStop() throws InterruptedException {
+        Shutdown shutdown = new Shutdown();
+        assertTrue(shutdown.admit(2));
+        shutdown.stopAdmitting();
+        assertFalse(shutdown.admitting());
+        assertFalse(shutdown.admit(1));
+        assertEquals(2, shutdown.outstanding()); // The refused work does not count
+        shutdown.finish(2);
+        assertTrue(shutdown.awaitDrained());
+    }
+
+    // The thread finishing the last piece wakes the drain long before its deadline
+    @Test
+    @Timeout(5)
+    void drainEndsWhenTheLastPieceFinishes() throws InterruptedException {
+        Shutdown.drainMillis = 60_000;
+        Shutdown shutdown = new Shutdown();
+        assertTrue(shutdown.admit(3));
+        shutdown.stopAdmitting();
+        Thread worker = new Thread(() -> {
+            for (int i = 0; i < 3; i++) {
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                shutdown.finish(1);
+            }
+        });
+        worker.start();
+        assertTrue(shutdown.awaitDrained());
+        assertEquals(0, shutdown.outstanding());
+        assertEquals(3, shutdown.finished());
+        worker.join();
+    }
+
+    // Work that never finishes is abandoned once --drain ms are up
+    @Test
+    @Timeout(5)
+    void drainGivesUpAfterTheBound() throws InterruptedException {
+        Shutdown.drainMillis = 200;
+        Shutdown shutdown = new Shutdown();
+        assertTrue(shutdown.admit(2));
+        shutdown.finish(1);
+        shutdown.stopAdmitting();
+        long start = System.nanoTime();
+        assertFalse(shutdown.awaitDrained());
+        long waitedMillis = (System.nanoTime() - start) / 1_000_000;
+        assertTrue(waitedMillis >= 200 && waitedMillis < 2000, "waited " + waitedMillis + " ms");
+        assertEquals(1, shutdown.outstanding());
+    }
+
+    @Test
+    void negativeDrainIsRefused() {
+        assertTrue(Shutdown.configure("--drain=0"));
+        assertFalse(Shutdown.configure("--drained=5"));
+        assertThrows(IllegalArgumentException.class, () -> Shutdown.configure("--drain=-1"));
+    }
+}
@@ -0,0 +1,83 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+// The event-driven simulation is a function of its seed: the same seed gives the same run, event for event.
+// And it follows the same rules as the threaded SleepingTA: both give the same statistics for the same students
+class SleepingTASimulatorTest {
+
+    private final double urgentShare = WaitingRoom.urgentShare;
+    private final double timeScale = SleepingTA.timeScale;
+
+    @AfterEach
+    void restore() {
+        WaitingRoom.urgentShare = urgentShare;
+        SleepingTA.timeScale = timeScale;
+    }
+
+    private static String describe(SleepingTASimulator simulator, TaStatistics stats) {
+        return stats + " after " + simulator.eventsProcessed() + " events";
+    }
+
+    private static void assertSameRun(int n, int tas, int chairs, boolean perTa, long seed, WaitingRoom.Policy room) {
+        SleepingTASimulator first = new SleepingTASimulator(n, tas, chairs, perTa, seed, room);
+        SleepingTASimulator second = new SleepingTASimulator(n, tas, chairs, perTa, seed, room);
+        TaStatistics a = first.run();
+        TaStatistics b = second.run();
+        assertEquals(describe(first, a), describe(second, b));
+        assertEquals(n, a.helped);
+        for (int priority = -1; priority <= WaitingRoom.URGENT; priority++) {
+            assertArrayEquals(a.fairness.summary(priority), b.fairness.summary(priority));
+        }
+    }
+
+    @Test
+    void sameSeedSameRun() {
+        assertSameRun(50, 1, 3, false, 42, WaitingRoom.Policy.FIFO);
+        assertSameRun(200, 4, 5, true, 7, WaitingRoom.Policy.FIFO);
+    }
+
+    @Test
+    void sameSeedSameRunWithPriorityClasses() {
+        WaitingRoom.urgentShare = 0.3;
+        assertSameRun(200, 3, 4, false, 11, WaitingRoom.Policy.PRIORITY);
+        assertSameRun(200, 3, 4, false, 11, WaitingRoom.Policy.AGING);
+    }
+
+    // Not a proof the seed is used, but two seeds giving the same chair waits would be a strange accident
+    @Test
+    void otherSeedOtherRun() {
+        TaStatistics a = new SleepingTASimulator(100, 2, 3, false, 1, WaitingRoom.Policy.FIFO).run();
+        TaStatistics b = new SleepingTASimulator(100, 2, 3, false, 2, WaitingRoom.Policy.FIFO).run();
+        assertNotEquals(a.chairWaitMillis, b.chairWaitMillis);
+    }
+
+    // The same 60 students (fixed seed) through both simulations, the threaded one at a tenth of real time
+    // (about 5 seconds). Every student is helped in both. The threaded run's timers are off by a millisecond
+    // of wall time now and then, 10 simulated ms, so a student whose patience runs out just as a TA calls can
+    // go either way. One such flip changes the per-student rates by 1/60 (1.7%) and the makespan by at most one
+    // help (2 s of ~44 s, 4.5%); over several seeds the differences stayed under 8%. 10% allows about two
+    // flips, while a rule that differs between the simulations (a missed steal, a chair not given back, the
+    // wrong patience) moves these values by much more
+    @Test
+    @Timeout(120)
+    void threadedRunGivesTheSameStatistics() {
+        EventLog.setLevel(EventLog.Level.OFF);
+        int n = 60;
+        int tas = 3;
+        int chairs = 5;
+        long seed = 4;
+        TaStatistics simulated = new SleepingTASimulator(n, tas, chairs, false, seed, WaitingRoom.Policy.FIFO).run();
+        SleepingTA.timeScale = 0.1;
+        TaStatistics threaded = SleepingTA.runSimulation(n, tas, chairs, false, seed);
+        assertEquals(n, simulated.helped);
+        assertEquals(n, threaded.helped);
+        assertTrue(TaStatistics.compare("event-driven", simulated, "threaded", threaded, 0.10),
+                "threaded " + threaded + " differs from event-driven " + simulated);
+    }
+}
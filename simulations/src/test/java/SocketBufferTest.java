@@ -0,0 +1,133 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+// The socket engine end to end: the first open serves the buffer, later ones connect to it and move items
+// through the socket. In one JVM here, but every client request goes over a real Unix-domain socket
+class SocketBufferTest {
+
+    @TempDir
+    Path dir;
+
+    private BufferEngine host;
+
+    @BeforeAll
+    static void quiet() {
+        EventLog.setLevel(EventLog.Level.OFF);
+    }
+
+    @BeforeEach
+    void serve() {
+        SocketBuffer.configure("--socket=" + dir.resolve("buffer.sock"));
+        host = SocketBuffer.open(16, "");
+        assertTrue(host instanceof SocketBuffer.Host);
+    }
+
+    @AfterEach
+    void stop() {
+        host.close();
+        SocketBuffer.configure("--socket=buffer.sock");
+    }
+
+    // 2 producers and a consumer, each connected on its own: every item arrives once, and each producer's
+    // items in the order it sent them
+    @Test
+    @Timeout(20)
+    void producersAndAConsumerRoundTrip() throws InterruptedException {
+        BufferEngine producerSide = SocketBuffer.open(4, ""); // The served buffer keeps its own size
+        BufferEngine consumerSide = SocketBuffer.open(4, "");
+        assertFalse(producerSide instanceof SocketBuffer.Host);
+        assertEquals(16, producerSide.capacity());
+
+        int each = 3000;
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread[] producers = new Thread[2];
+        for (int p = 0; p < producers.length; p++) {
+            int base = p * each;
+            producers[p] = new Thread(() -> {
+                int[] batch = new int[5];
+                try {
+                    for (int i = 0; i < each; i += batch.length) {
+                        for (int j = 0; j < batch.length; j++) {
+                            batch[j] = base + i + j;
+                        }
+                        producerSide.insert_items(batch, batch.length);
+                    }
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            });
+            producers[p].start();
+        }
+        int[] next = new int[producers.length];
+        int[] dst = new int[8];
+        for (int taken = 0; taken < producers.length * each;) {
+            int count = consumerSide.remove_items(dst, dst.length);
+            for (int i = 0; i < count; i++) {
+                int p = dst[i] / each;
+                assertEquals(p * each + next[p]++, dst[i]);
+            }
+            taken += count;
+        }
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        assertEquals(null, failure.get());
+        assertArrayEquals(new int[] { each, each }, next);
+        assertEquals(0, consumerSide.size());
+        producerSide.close();
+        consumerSide.close();
+    }
+
+    // A consumer waiting for items between requests is stopped by an interrupt, with nothing taken, and
+    // the next consumer gets what the serving process put in
+    @Test
+    @Timeout(10)
+    void waitingConsumerCanBeInterrupted() throws InterruptedException {
+        BufferEngine client = SocketBuffer.open(16, "");
+        AtomicReference<Throwable> thrown = new AtomicReference<>();
+        Thread consumer = new Thread(() -> {
+            try {
+                client.remove_items(new int[4], 4);
+            } catch (Throwable e) {
+                thrown.set(e);
+            }
+        });
+        consumer.start();
+        Thread.sleep(50);
+        consumer.interrupt();
+        consumer.join();
+        assertTrue(thrown.get() instanceof InterruptedException, String.valueOf(thrown.get()));
+
+        host.insert_items(new int[] { 7, 8, 9 }, 3);
+        int[] dst = new int[4];
+        assertEquals(3, client.remove_items(dst, 4));
+        assertArrayEquals(new int[] { 7, 8, 9, 0 }, dst);
+        client.close();
+    }
+
+    // Once the serving process is gone a producer stops the way an interrupt stops it
+    @Test
+    @Timeout(10)
+    void lostServerStopsTheClient() throws InterruptedException {
+        BufferEngine client = SocketBuffer.open(16, "");
+        assertTrue(client.try_insert_items(new int[] { 1, 2 }, 2));
+        assertEquals(2, host.size());
+        host.close();
+        assertThrows(InterruptedException.class, () -> client.insert_items(new int[] { 3 }, 1));
+        assertTrue(Thread.interrupted()); // Also set, like after an interrupt
+        client.close();
+    }
+}
@@ -0,0 +1,90 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+// A small traced run and its replay. SyncTrace's settings are static & a run is a whole main, so each run is
+// its own JVM, started the way a user would start it
+class SyncTraceTest {
+
+    @TempDir
+    Path dir;
+
+    private static String run(String main, String... args) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(main);
+        command.addAll(List.of(args));
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+        assertEquals(0, process.waitFor(), output);
+        return output;
+    }
+
+    private static String find(String regex, String output) {
+        Matcher matcher = Pattern.compile(regex).matcher(output);
+        assertTrue(matcher.find(), "no \"" + regex + "\" in:\n" + output);
+        return matcher.group(1);
+    }
+
+    // One TA, two chairs & short patience, so students give up and find no chair: the replay takes every
+    // step the recording did, and so makes the same decisions. Only its times differ, a replay skips the
+    // waits the trace orders anyway
+    @Test
+    @Timeout(60)
+    void replayRedoesTheRecordedSleepingTARun() throws IOException, InterruptedException {
+        String trace = dir.resolve("ta.trace").toString();
+        String[] options = { "--students=30", "--tas=1", "--chairs=2", "--seed=5", "--time-scale=0.01",
+                "--log-level=off", "--room-report" };
+        String recorded = run("SleepingTA", with(options, "--trace=" + trace));
+        String replayed = run("SleepingTA", with(options, "--replay=" + trace));
+
+        String steps = find("Sync trace: (\\d+) steps", recorded);
+        assertEquals(steps + " of " + steps, find("Replayed (\\d+ of \\d+) steps, same interleaving as the recorded"
+                + " run", replayed));
+        assertEquals(decisions(recorded), decisions(replayed));
+    }
+
+    // Producers & consumers on a ring until the 1 s sleep is up: the replay is the same up to the shutdown,
+    // after which main interrupts threads in an order no trace decides
+    @Test
+    @Timeout(60)
+    void replayRedoesTheRecordedProducerConsumerRun() throws IOException, InterruptedException {
+        String trace = dir.resolve("pc.trace").toString();
+        String[] options = { "1", "2", "2", "--engine=ring", "--no-delays", "--seed=3", "--log-level=off" };
+        String recorded = run("ProducerConsumer", with(options, "--trace=" + trace));
+        String replayed = run("ProducerConsumer", with(options, "--replay=" + trace));
+
+        long steps = Long.parseLong(find("Sync trace: (\\d+) steps", recorded));
+        assertTrue(steps > 0);
+        find("Replayed (\\d+) of " + steps + " steps, same interleaving (as the recorded run|up to the shutdown)",
+                replayed);
+    }
+
+    // Students helped, visits, give-ups & no chair from the statistics line
+    private static String decisions(String output) {
+        Matcher matcher = Pattern.compile("helped (\\d+) in \\d+ ms, (\\d+) visits, .*?, (\\d+) give-ups,"
+                + " (\\d+) no chair").matcher(output);
+        assertTrue(matcher.find(), "no statistics in:\n" + output);
+        return matcher.group(1) + " helped, " + matcher.group(2) + " visits, " + matcher.group(3) + " give-ups, "
+                + matcher.group(4) + " no chair";
+    }
+
+    private static String[] with(String[] options, String extra) {
+        List<String> args = new ArrayList<>(List.of(options));
+        args.add(extra);
+        return args.toArray(new String[0]);
+    }
+}
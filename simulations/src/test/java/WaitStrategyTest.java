@@ -0,0 +1,106 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+// The block strategy's handshake: a waiter registers, checks its condition once more and only then sleeps,
+// and only if no signal came in between. A signal that lands between the check and the wait must not be
+// lost, or the waiter sleeps with its item already there. Each of these would hang (and hit the timeout)
+// if a signal were lost
+class WaitStrategyTest {
+
+    // The window on one thread: registered, checked (nothing yet), the signal comes, then the wait
+    @Test
+    @Timeout(5)
+    void signalBetweenCheckAndWaitIsNotLost() throws InterruptedException {
+        WaitStrategy wait = WaitStrategy.create("block");
+        int ticket = wait.idle(0); // Registers and returns at once, the caller checks again
+        wait.signal(); // The producer publishes & signals right after the check failed
+        int next = wait.idle(ticket); // Must see the signal and return instead of sleeping
+        assertNotEquals(ticket, next);
+        wait.done(next);
+    }
+
+    // A signal before anyone registered is not counted, but the waiter checks again after registering
+    @Test
+    @Timeout(5)
+    void signalBeforeRegisteringNeedsNoWakeup() throws InterruptedException {
+        WaitStrategy wait = WaitStrategy.create("block");
+        wait.signal();
+        int ticket = wait.idle(0);
+        assertTrue(ticket != 0);
+        wait.done(ticket);
+    }
+
+    // With nothing in between the waiter does sleep, and the next signal wakes it
+    @Test
+    @Timeout(5)
+    void waiterSleepsUntilTheNextSignal() throws InterruptedException {
+        WaitStrategy wait = WaitStrategy.create("block");
+        Thread waiter = new Thread(() -> {
+            try {
+                int ticket = wait.idle(0);
+                wait.done(wait.idle(ticket));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        waiter.start();
+        LockFreeRingBufferTest.awaitState(waiter, Thread.State.WAITING);
+        wait.signal();
+        waiter.join();
+    }
+
+    // An interrupted waiter gives up its registration: the caller starts over with ticket 0 and the next
+    // wait still works
+    @Test
+    @Timeout(5)
+    void interruptedWaiterStartsOver() throws InterruptedException {
+        WaitStrategy wait = WaitStrategy.create("block");
+        int registered = wait.idle(0);
+        Thread.currentThread().interrupt();
+        assertThrows(InterruptedException.class, () -> wait.idle(registered));
+        int ticket = wait.idle(0);
+        wait.signal();
+        wait.done(wait.idle(ticket));
+    }
+
+    // Two threads hand a counter back and forth 20k times, each waiting for its turn with the usual loop:
+    // try, idle, try again. Every hand-off is a chance for the signal to fall into the window
+    @Test
+    @Timeout(20)
+    void pingPongNeverLosesAWakeup() throws InterruptedException {
+        WaitStrategy wait = WaitStrategy.create("block");
+        AtomicInteger turn = new AtomicInteger();
+        int rounds = 20_000;
+        Thread[] players = new Thread[2];
+        for (int p = 0; p < players.length; p++) {
+            int me = p;
+            players[p] = new Thread(() -> {
+                try {
+                    for (int i = me; i < rounds; i += 2) {
+                        int tries = 0;
+                        while (turn.get() != i) {
+                            tries = wait.idle(tries);
+                        }
+                        wait.done(tries);
+                        turn.set(i + 1);
+                        wait.signal();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            players[p].start();
+        }
+        for (Thread player : players) {
+            player.join();
+        }
+        assertEquals(rounds, turn.get());
+    }
+}
@@ -0,0 +1,148 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+// Call order of the three waiting room policies and giving up (cancel) from the middle of the heap
+class WaitingRoomTest {
+
+    private static List<Integer> pollAll(WaitingRoom room) {
+        List<Integer> order = new ArrayList<>();
+        int id;
+        while ((id = room.poll()) >= 0) {
+            order.add(id);
+        }
+        return order;
+    }
+
+    @Test
+    void fifoCallsInSeatingOrder() {
+        WaitingRoom room = new WaitingRoom(WaitingRoom.Policy.FIFO, 0, 10);
+        room.add(3, WaitingRoom.NORMAL, 50);
+        room.add(1, WaitingRoom.URGENT, 10); // Neither the class nor the arrival time matter
+        room.add(7, WaitingRoom.NORMAL, 0);
+        room.add(2, WaitingRoom.URGENT, 20);
+        assertEquals(3, room.peek());
+        assertEquals(List.of(3, 1, 7, 2), pollAll(room));
+        assertTrue(room.isEmpty());
+        assertEquals(-1, room.poll());
+    }
+
+    @Test
+    void priorityCallsUrgentFirstThenByArrival() {
+        WaitingRoom room = new WaitingRoom(WaitingRoom.Policy.PRIORITY, 0, 10);
+        room.add(1, WaitingRoom.NORMAL, 0);
+        room.add(2, WaitingRoom.URGENT, 30);
+        room.add(3, WaitingRoom.NORMAL, 10);
+        room.add(4, WaitingRoom.URGENT, 20);
+        room.add(5, WaitingRoom.URGENT, 20); // Same arrival as 4: seated later, called later
+        assertEquals(List.of(4, 5, 2, 1, 3), pollAll(room));
+    }
+
+    // With 100 ms of aging an urgent student passes normal students who arrived less than 100 ms before them
+    @Test
+    void agingLetsUrgentStudentsJumpAtMostTheBoost() {
+        WaitingRoom room = new WaitingRoom(WaitingRoom.Policy.AGING, 100, 10);
+        room.add(1, WaitingRoom.NORMAL, 0);
+        room.add(2, WaitingRoom.NORMAL, 50);
+        room.add(3, WaitingRoom.URGENT, 120); // Counts as 20: after 1, before 2
+        room.add(5, WaitingRoom.NORMAL, 250);
+        room.add(4, WaitingRoom.URGENT, 300); // Counts as 200: before 5
+        room.add(6, WaitingRoom.NORMAL, 400);
+        room.add(7, WaitingRoom.URGENT, 500); // Counts as 400: same as 6, who sat down first
+        assertEquals(List.of(1, 3, 2, 4, 5, 6, 7), pollAll(room));
+    }
+
+    @Test
+    void cancelFromTheMiddleKeepsTheOrder() {
+        WaitingRoom room = new WaitingRoom(WaitingRoom.Policy.PRIORITY, 0, 10);
+        for (int id = 1; id <= 8; id++) {
+            room.add(id, id % 2 == 0 ? WaitingRoom.URGENT : WaitingRoom.NORMAL, id);
+        }
+        assertTrue(room.remove(4));
+        assertTrue(room.remove(1));
+        assertFalse(room.remove(4)); // Already gone
+        assertFalse(room.contains(4));
+        assertTrue(room.contains(6));
+        assertEquals(6, room.size());
+        assertEquals(List.of(2, 6, 8, 3, 5, 7), pollAll(room));
+        room.add(4, WaitingRoom.NORMAL, 99); // Can sit down again after leaving
+        assertEquals(List.of(4), pollAll(room));
+    }
+
+    @Test
+    void sittingDownTwiceIsRefused() {
+        WaitingRoom room = new WaitingRoom(WaitingRoom.Policy.FIFO, 0, 10);
+        room.add(1, WaitingRoom.NORMAL, 0);
+        assertThrows(IllegalStateException.class, () -> room.add(1, WaitingRoom.NORMAL, 5));
+    }
+
+    // Random seating, calling & giving up checked against a sorted map of (class, arrival, seat number)
+    @Test
+    void randomOperationsMatchASortedReference() {
+        Random random = new Random(42);
+        int maxId = 500;
+        WaitingRoom room = new WaitingRoom(WaitingRoom.Policy.AGING, 30, maxId);
+        TreeMap<List<Long>, Integer> reference = new TreeMap<>((a, b) -> {
+            for (int i = 0; i < a.size(); i++) {
+                int c = Long.compare(a.get(i), b.get(i));
+                if (c != 0) {
+                    return c;
+                }
+            }
+            return 0;
+        });
+        List<List<Long>> keyOf = new ArrayList<>(Collections.nCopies(maxId + 1, null));
+        long seated = 0;
+        for (int step = 0; step < 20_000; step++) {
+            int id = random.nextInt(maxId + 1);
+            int choice = random.nextInt(3);
+            if (choice == 0 && !room.contains(id)) {
+                int priority = random.nextInt(2);
+                long arrival = step;
+                room.add(id, priority, arrival);
+                List<Long> key = List.of(arrival - priority * 30L, seated++);
+                keyOf.set(id, key);
+                reference.put(key, id);
+            } else if (choice == 1) {
+                int expected = reference.isEmpty() ? -1 : reference.pollFirstEntry().getValue();
+                assertEquals(expected, room.poll());
+            } else {
+                boolean waiting = keyOf.get(id) != null && reference.remove(keyOf.get(id)) != null;
+                assertEquals(waiting, room.remove(id));
+                keyOf.set(id, null);
+            }
+            assertEquals(reference.size(), room.size());
+        }
+    }
+
+    // Giving up is O(log n): 200k students leaving in random order takes milliseconds, where scanning the
+    // room for each of them would take minutes
+    @Test
+    @Timeout(10)
+    void cancellingEveryoneIsFast() {
+        int n = 200_000;
+        WaitingRoom room = new WaitingRoom(WaitingRoom.Policy.FIFO, 0, n);
+        List<Integer> ids = new ArrayList<>();
+        for (int id = 0; id < n; id++) {
+            room.add(id, WaitingRoom.NORMAL, id);
+            ids.add(id);
+        }
+        Collections.shuffle(ids, new Random(7));
+        for (int id : ids.subList(0, n - 3)) {
+            assertTrue(room.remove(id));
+        }
+        List<Integer> left = new ArrayList<>(ids.subList(n - 3, n));
+        Collections.sort(left); // FIFO: in seating order, which is id order here
+        assertEquals(left, pollAll(room));
+    }
+}